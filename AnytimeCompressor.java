@@ -0,0 +1,202 @@
+import java.util.stream.IntStream;
+
+/**
+ * AnytimeCompressor Class.
+ *
+ * Compresses an image within a time limit. A run-length encoding, which is
+ * always valid and cheap to make, is ready straight away, and better drawings
+ * replace it as they are found, until either every strategy has been tried or
+ * the time is up. The shortest drawing found so far is then returned.
+ *
+ * After the run-length encodings, the compressor is run with each colour of
+ * the image as the background in turn, most common first. The route of the
+ * best of those is then planned again with twice the time each round, for as
+ * long as planning is stopped by its time rather than by running out of
+ * improvements.
+ */
+public class AnytimeCompressor
+{
+    /**
+     * The outcome of a compression with a time limit.
+     */
+    public static class Result
+    {
+        public final Drawing drawing;
+        public final boolean converged;
+
+        /**
+         * Create a result.
+         *
+         * @param drawing The shortest drawing found.
+         * @param converged True if every strategy finished before the deadline.
+         */
+        Result(Drawing drawing, boolean converged)
+        {
+            this.drawing = drawing;
+            this.converged = converged;
+        }
+    }
+
+    /**
+     * Main method.
+     */
+    public static void main(String[] args)
+    {
+        // Compress an image file within a number of milliseconds.
+        Image i = new Image(args[0]);
+        Result r = compress(i, Long.parseLong(args[1]) * 1000000);
+        System.out.print(r.drawing.toString());
+        System.err.println(r.converged ? "Converged" : "Deadline reached");
+    }
+
+    /**
+     * Compress an image, returning the best drawing found within a time limit.
+     *
+     * @param image The image to compress.
+     * @param timeoutNanos How long to spend, in nanoseconds.
+     * @return The shortest drawing found, and whether every strategy finished.
+     */
+    public static Result compress(Image image, long timeoutNanos)
+    {
+        long deadline = System.nanoTime() + timeoutNanos;
+        int background = mostCommonColour(image);
+
+        Drawing best = runLengthEncode(image, background, false);
+        if (System.nanoTime() - deadline > 0) {
+            return new Result(best, false);
+        }
+
+        Drawing byColumns = runLengthEncode(image, background, true);
+        if (byColumns.getCommandCount() < best.getCommandCount()) {
+            best = byColumns;
+        }
+        if (System.nanoTime() - deadline > 0) {
+            return new Result(best, false);
+        }
+
+        // A compressor that gets stuck with one background may not with
+        // another, so only the deadline stops the search.
+        int bestBackground = -1;
+        boolean cutShort = false;
+        for (int colour : coloursByFrequency(image)) {
+            Compressor c = new Compressor(image, colour, 0, 0);
+            Drawing compressed = c.compress(deadline);
+            if (System.nanoTime() - deadline > 0) {
+                return new Result(best, false);
+            }
+            if (compressed != null && compressed.getCommandCount() < best.getCommandCount()) {
+                best = compressed;
+                bestBackground = colour;
+                cutShort = c.isRouteCutShort();
+            }
+        }
+
+        for (long millis = Compressor.ROUTE_BUDGET_MS * 2; bestBackground >= 0 && cutShort; millis *= 2) {
+            Compressor c = new Compressor(image, bestBackground, 0, 0);
+            c.setRouteBudget(millis);
+            Drawing compressed = c.compress(deadline);
+            if (System.nanoTime() - deadline > 0) {
+                return new Result(best, false);
+            }
+            if (compressed != null && compressed.getCommandCount() < best.getCommandCount()) {
+                best = compressed;
+            }
+            cutShort = c.isRouteCutShort();
+        }
+        return new Result(best, true);
+    }
+
+    /**
+     * Find the colour with the most pixels, the lowest colour on ties.
+     *
+     * @param image The image.
+     * @return The most common colour.
+     */
+    private static int mostCommonColour(Image image)
+    {
+        return coloursByFrequency(image)[0];
+    }
+
+    /**
+     * List the colours an image uses, the most common first, and the lower
+     * colour first on ties.
+     *
+     * @param image The image.
+     * @return The colours.
+     */
+    private static int[] coloursByFrequency(Image image)
+    {
+        int[] histogram = image.histogram();
+        return IntStream.range(0, 16).filter(colour -> histogram[colour] > 0).boxed()
+                .sorted((a, b) -> histogram[b] - histogram[a]).mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Make the shorter of the run-length encodings along the rows and down
+     * the columns, over the most common colour. This never fails, so it is
+     * what is drawn when the compressor gets stuck.
+     *
+     * @param image The image.
+     * @return The drawing.
+     */
+    static Drawing runLengthEncode(Image image)
+    {
+        int background = mostCommonColour(image);
+        Drawing byRows = runLengthEncode(image, background, false);
+        Drawing byColumns = runLengthEncode(image, background, true);
+        return byColumns.getCommandCount() < byRows.getCommandCount() ? byColumns : byRows;
+    }
+
+    /**
+     * Make a drawing that paints each run of non-background pixels along the
+     * rows (or columns) of an image with one command each.
+     *
+     * @param image The image.
+     * @param background The background colour, whose runs are skipped over.
+     * @param byColumns True to go down the columns instead of along the rows.
+     * @return The drawing.
+     */
+    static Drawing runLengthEncode(Image image, int background, boolean byColumns)
+    {
+        int height = image.getHeight();
+        int width = image.getWidth();
+        Drawing drawing = new Drawing(height, width, background);
+
+        // Lines are what is painted along, positions are where along them.
+        int lines = byColumns ? width : height;
+        int positions = byColumns ? height : width;
+        Direction along = byColumns ? Direction.DOWN : Direction.RIGHT;
+        Direction back = byColumns ? Direction.UP : Direction.LEFT;
+        Direction across = byColumns ? Direction.RIGHT : Direction.DOWN;
+
+        // The cursor starts at line 0, position 0, and each line is painted
+        // from position -1 so its first pixel can be included.
+        int line = 0;
+        int position = 0;
+        for (int l = 0; l < lines; l++) {
+            int p = 0;
+            while (p < positions) {
+                int colour = byColumns ? image.getColor(l, p) : image.getColor(p, l);
+                int end = p + 1;
+                while (end < positions && (byColumns ? image.getColor(l, end) : image.getColor(end, l)) == colour) {
+                    end++;
+                }
+                if (colour != background) {
+                    if (line != l) {
+                        drawing.addCommand(across, l - line, false, 0);
+                        line = l;
+                    }
+                    if (position < p - 1) {
+                        drawing.addCommand(along, p - 1 - position, false, 0);
+                    } else if (position > p - 1) {
+                        drawing.addCommand(back, position - (p - 1), false, 0);
+                    }
+                    drawing.addCommand(along, end - p, true, colour);
+                    position = end - 1;
+                }
+                p = end;
+            }
+        }
+        return drawing;
+    }
+}
@@ -0,0 +1,18 @@
+/**
+ * BadCommand Class.
+ */
+class BadCommand extends Exception
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Returns an error message.
+     *
+     * @param x The value of x.
+     * @param y The value of y.
+     */
+    public BadCommand(int x, int y)
+    {
+        super("Cannot be drawn at coordinate: (" + x + "," + y + ")");
+    }
+}
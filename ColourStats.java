@@ -0,0 +1,79 @@
+import java.util.BitSet;
+
+/**
+ * ColourStats Class.
+ *
+ * The number of pixels of each colour in an image, in all and in each row,
+ * and the rows each colour is in.
+ */
+class ColourStats
+{
+    final int[] counts = new int[16];
+    final BitSet[] rows = new BitSet[16];
+    private final int[] rowCounts;
+
+    /**
+     * Create statistics for an image with no pixels counted yet.
+     *
+     * @param height The height of the image.
+     */
+    ColourStats(int height)
+    {
+        rowCounts = new int[height * 16];
+        for (int color = 0; color < 16; color++) {
+            rows[color] = new BitSet(height);
+        }
+    }
+
+    /**
+     * Count a row of pixels.
+     *
+     * @param y The row.
+     * @param row The colours of the row.
+     */
+    void addRow(int y, int[] row)
+    {
+        for (int x = 0; x < row.length; ) {
+            int end = x + 1;
+            while (end < row.length && row[end] == row[x]) {
+                end++;
+            }
+            add(y, x, end, row[x]);
+            x = end;
+        }
+    }
+
+    /**
+     * Count a span of pixels of one colour.
+     *
+     * @param y The row.
+     * @param x0 The x value of the first pixel.
+     * @param x1 The x value after the last pixel.
+     * @param color The colour.
+     */
+    void add(int y, int x0, int x1, int color)
+    {
+        counts[color] += x1 - x0;
+        if (rowCounts[y * 16 + color] == 0) {
+            rows[color].set(y);
+        }
+        rowCounts[y * 16 + color] += x1 - x0;
+    }
+
+    /**
+     * Stop counting a span of pixels of one colour, which is being painted over.
+     *
+     * @param y The row.
+     * @param x0 The x value of the first pixel.
+     * @param x1 The x value after the last pixel.
+     * @param color The colour.
+     */
+    void remove(int y, int x0, int x1, int color)
+    {
+        counts[color] -= x1 - x0;
+        rowCounts[y * 16 + color] -= x1 - x0;
+        if (rowCounts[y * 16 + color] == 0) {
+            rows[color].clear(y);
+        }
+    }
+}
@@ -0,0 +1,347 @@
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * CommandBuffer Class.
+ *
+ * The commands of a drawing packed one per long, rather than one object per
+ * command, so a drawing of a million commands takes about 8MB. The list can
+ * still be read as DrawingCommand objects, which are made as they are asked
+ * for, but draw() and the compressor read and append the packed form.
+ *
+ * Each long holds the distance in bits 0-31, the op byte of the binary
+ * format (DrawingCommand.toOp) in bits 32-39 and the rows of a fill in bits
+ * 40-63. Commands that do not fit, repeats and fills of more than MAX_ROWS
+ * rows, are kept as objects, and their long holds the op OBJECT and their
+ * index among the objects in place of the distance. The slot of an object
+ * that is replaced or removed is used again for the next one.
+ *
+ * The list is read-only for the commands in it: each command read from it
+ * is a copy, including the body of a repeat, and each command added is
+ * copied in. Changing a command read from the list does not change the
+ * buffer, and a command must be put back with set to change it, so every
+ * change to the commands is counted by getModCount.
+ */
+class CommandBuffer extends AbstractList<DrawingCommand> implements RandomAccess
+{
+    // No plain command has this op, as it would be a fill that does not paint.
+    static final int OBJECT = DrawingCommand.REPEAT_OP;
+    static final int MAX_ROWS = (1 << 24) - 1;
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    private long[] packed = new long[16];
+    private int size;
+    private final ArrayList<DrawingCommand> objects = new ArrayList<DrawingCommand>();
+    private int[] freeSlots = new int[4];
+    private int freeCount;
+
+    /**
+     * Create an empty buffer.
+     */
+    public CommandBuffer()
+    {
+    }
+
+    /**
+     * Add a line command, without making an object for it.
+     *
+     * @param dir The direction to move in.
+     * @param distance How far to move.
+     * @param paint True to paint the spaces moved over, false to just move.
+     * @param colour The colour to paint, if paint is true.
+     */
+    public void add(Direction dir, int distance, boolean paint, int colour)
+    {
+        if (paint) {
+            checkColour(colour);
+        }
+        append(pack(dir.ordinal() | (paint ? 4 | colour << 4 : 0), distance, 0));
+    }
+
+    /**
+     * Add a fill command, without making an object for it.
+     *
+     * @param width The number of columns to paint, starting at the cursor.
+     * @param height The number of rows to paint, starting at the cursor.
+     * @param colour The colour to paint.
+     */
+    public void addFill(int width, int height, int colour)
+    {
+        if (height < 0 || height > MAX_ROWS) {
+            add(DrawingCommand.fill(width, height, colour));
+            return;
+        }
+        checkColour(colour);
+        append(pack(Direction.RIGHT.ordinal() | 4 | 8 | colour << 4, width, height));
+    }
+
+    @Override
+    public void add(int index, DrawingCommand command)
+    {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+        long c = toPacked(command);
+        append(0);
+        System.arraycopy(packed, index, packed, index + 1, size - 1 - index);
+        packed[index] = c;
+    }
+
+    @Override
+    public DrawingCommand set(int index, DrawingCommand command)
+    {
+        DrawingCommand old = get(index);
+        long c = toPacked(command);
+        release(packed[index]);
+        packed[index] = c;
+        modCount++;
+        return old;
+    }
+
+    @Override
+    public DrawingCommand remove(int index)
+    {
+        DrawingCommand old = get(index);
+        release(packed[index]);
+        System.arraycopy(packed, index + 1, packed, index, size - 1 - index);
+        size--;
+        modCount++;
+        return old;
+    }
+
+    @Override
+    public DrawingCommand get(int index)
+    {
+        long c = getPacked(index);
+        int op = op(c);
+        if (op == OBJECT) {
+            return objects.get(distance(c)).copy();
+        }
+        return DrawingCommand.fromOp(op, distance(c), rows(c));
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public void clear()
+    {
+        modCount++;
+        size = 0;
+        objects.clear();
+        freeCount = 0;
+    }
+
+    /**
+     * Get the packed form of a command.
+     *
+     * @param index The index of the command.
+     * @return The command packed into a long.
+     */
+    public long getPacked(int index)
+    {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+        return packed[index];
+    }
+
+    /**
+     * Get the number of changes made to the buffer, which goes up with every
+     * command added, replaced or removed.
+     *
+     * @return The count of changes.
+     */
+    public int getModCount()
+    {
+        return modCount;
+    }
+
+    /**
+     * Check whether two commands are the same, without making objects for
+     * them unless they are kept as objects.
+     *
+     * @param i The index of one command.
+     * @param j The index of the other.
+     * @return True if the commands are equal.
+     */
+    public boolean same(int i, int j)
+    {
+        long a = getPacked(i);
+        long b = getPacked(j);
+        if (op(a) == OBJECT || op(b) == OBJECT) {
+            return get(i).equals(get(j));
+        }
+        return a == b;
+    }
+
+    /**
+     * Make a copy of the buffer with the colour of each command changed
+     * through a table, rewriting the colours of the packed commands in place.
+     *
+     * @param map The new colour for each of the 16 colours.
+     * @return The recoloured commands.
+     */
+    public CommandBuffer remap(int[] map)
+    {
+        CommandBuffer copy = new CommandBuffer();
+        copy.packed = Arrays.copyOf(packed, Math.max(16, size));
+        copy.size = size;
+        for (int i = 0; i < size; i++) {
+            long c = packed[i];
+            int op = op(c);
+            if (op == OBJECT) {
+                copy.packed[i] = copy.toPacked(getObject(c).remap(map));
+            } else if ((op & 4) != 0) {
+                copy.packed[i] = pack(op & 0xf | map[op >>> 4] << 4, distance(c), rows(c));
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Get a command that is kept as an object, one whose op is OBJECT. This
+     * is the command held by the buffer rather than a copy, so it must not be
+     * changed.
+     *
+     * @param c The packed command.
+     * @return The command.
+     */
+    public DrawingCommand getObject(long c)
+    {
+        return objects.get(distance(c));
+    }
+
+    /**
+     * Get the op byte of a packed command.
+     *
+     * @param c The packed command.
+     * @return The op byte, or OBJECT if the command is kept as an object.
+     */
+    static int op(long c)
+    {
+        return (int) (c >>> 32) & 0xff;
+    }
+
+    /**
+     * Get the distance of a packed command, or the width of a fill.
+     *
+     * @param c The packed command.
+     * @return The distance.
+     */
+    static int distance(long c)
+    {
+        return (int) c;
+    }
+
+    /**
+     * Get the number of rows of a packed fill command.
+     *
+     * @param c The packed command.
+     * @return The rows.
+     */
+    static int rows(long c)
+    {
+        return (int) (c >>> 40);
+    }
+
+    /**
+     * Get the direction of a packed command.
+     *
+     * @param c The packed command.
+     * @return The direction.
+     */
+    static Direction dir(long c)
+    {
+        return DIRECTIONS[op(c) & 3];
+    }
+
+    /**
+     * Pack the parts of a command into a long.
+     *
+     * @param op The op byte.
+     * @param distance The distance.
+     * @param rows The rows of a fill, between 0 and MAX_ROWS.
+     * @return The packed command.
+     */
+    private static long pack(int op, int distance, int rows)
+    {
+        return (long) rows << 40 | (op & 0xffL) << 32 | distance & 0xffffffffL;
+    }
+
+    /**
+     * Check that a colour fits in the four bits the op byte has for it.
+     *
+     * @param colour The colour.
+     * @throws IllegalArgumentException If the colour is not between 0 and 15.
+     */
+    private static void checkColour(int colour)
+    {
+        if (colour < 0 || colour > 15) {
+            throw new IllegalArgumentException("Bad colour (should be between 0 and 15): " + colour);
+        }
+    }
+
+    /**
+     * Pack a command into a long, keeping a copy of it as an object if it does
+     * not fit.
+     *
+     * @param command The command.
+     * @return The packed command.
+     * @throws IllegalArgumentException If a command that paints has a colour
+     * that is not between 0 and 15.
+     */
+    private long toPacked(DrawingCommand command)
+    {
+        if (command.body != null || command.rows < 0 || command.rows > MAX_ROWS) {
+            if (freeCount > 0) {
+                int slot = freeSlots[--freeCount];
+                objects.set(slot, command.copy());
+                return pack(OBJECT, slot, 0);
+            }
+            objects.add(command.copy());
+            return pack(OBJECT, objects.size() - 1, 0);
+        }
+        if (command.paint) {
+            checkColour(command.colour);
+        }
+        return pack(command.toOp(), command.distance, command.fill ? command.rows : 0);
+    }
+
+    /**
+     * Free the slot of a command kept as an object, once it is no longer in
+     * the buffer, so the next object can use it.
+     *
+     * @param c The packed command, which may not be kept as an object.
+     */
+    private void release(long c)
+    {
+        if (op(c) != OBJECT) {
+            return;
+        }
+        objects.set(distance(c), null);
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = distance(c);
+    }
+
+    /**
+     * Add a packed command to the end, growing the array if it is full.
+     *
+     * @param c The packed command.
+     */
+    private void append(long c)
+    {
+        if (size == packed.length) {
+            packed = Arrays.copyOf(packed, size * 2);
+        }
+        packed[size++] = c;
+        modCount++;
+    }
+}
@@ -0,0 +1,458 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CompressionService Class.
+ *
+ * A long running HTTP service on localhost, so callers can compress, draw and
+ * export images without starting a new JVM each time.
+ *
+ * POST /compress takes an image and returns its drawing, recolouring the
+ * drawing of an earlier request if the image only differs from it in its
+ * colours, POST /draw takes a drawing (text or binary) and returns its image,
+ * and POST /png takes an image and returns it as a PNG. GET /health and
+ * GET /metrics report on the service itself.
+ *
+ * Requests are handled on virtual threads when the JVM has them. The work of
+ * every endpoint that compresses, draws or exports is handed to a fixed set
+ * of workers through a bounded queue, one job at a time, and a request is
+ * turned away with 503 when the queue is full, or with 504 if its job is not
+ * done within RESULT_TIMEOUT_SECONDS. A request body over MAX_BODY_BYTES, or
+ * an image or drawing of over MAX_PIXELS, is turned away with 413 before any
+ * work is done on it.
+ */
+public class CompressionService
+{
+    private static final int QUEUE_CAPACITY = 256;
+    private static final long RESULT_TIMEOUT_SECONDS = 60;
+    private static final int MAX_BODY_BYTES = 1 << 25;
+    private static final long MAX_PIXELS = 1 << 24;
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final ArrayBlockingQueue<Job<?>> queue = new ArrayBlockingQueue<Job<?>>(QUEUE_CAPACITY);
+    private final Thread[] workers;
+    private final PaletteCache cache = new PaletteCache();
+    private volatile boolean running = true;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong workNanos = new AtomicLong();
+
+    /**
+     * The work of one request, done on a worker.
+     */
+    private interface Task<T>
+    {
+        T run() throws BadCommand;
+    }
+
+    /**
+     * A task waiting for a worker, and where its result is delivered.
+     */
+    private static class Job<T>
+    {
+        final Task<T> task;
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+
+        Job(Task<T> task)
+        {
+            this.task = task;
+        }
+
+        /**
+         * Run the task and deliver its result, or what it threw. An Error
+         * such as running out of memory is delivered too, so the request is
+         * answered and the worker lives on.
+         */
+        void run()
+        {
+            try {
+                result.complete(task.run());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Start the service.
+     *
+     * @param port The port to listen on, on the loopback address.
+     * @param workerCount The number of compression workers.
+     * @throws IOException If the port cannot be bound.
+     */
+    public CompressionService(int port, int workerCount) throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        handlers = newHandlerExecutor();
+        server.setExecutor(handlers);
+        server.createContext("/compress", e -> handle(e, "POST", this::compress));
+        server.createContext("/draw", e -> handle(e, "POST", this::draw));
+        server.createContext("/png", e -> handle(e, "POST", this::png));
+        server.createContext("/health", e -> handle(e, "GET", x -> send(x, 200, "text/plain", "OK\n")));
+        server.createContext("/metrics", e -> handle(e, "GET", this::metrics));
+
+        workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(this::work, "compressor-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        server.start();
+    }
+
+    /**
+     * Main method.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        // Run the service until the process is killed, optionally on a given port.
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        CompressionService service = new CompressionService(port, Runtime.getRuntime().availableProcessors());
+        System.out.println("Listening on http://127.0.0.1:" + service.getPort());
+    }
+
+    /**
+     * Get the port the service is listening on.
+     *
+     * @return The port.
+     */
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stop accepting requests and shut the workers down.
+     */
+    public void stop()
+    {
+        running = false;
+        server.stop(0);
+        handlers.shutdown();
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Create the executor requests are handled on.
+     *
+     * @return A virtual thread per task executor, or a cached thread pool if
+     * this JVM has no virtual threads.
+     */
+    private static ExecutorService newHandlerExecutor()
+    {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * A handler for one endpoint.
+     */
+    private interface Endpoint
+    {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    /**
+     * Run an endpoint, checking the request method and turning any failure
+     * into a 500 response.
+     *
+     * @param exchange The request and response.
+     * @param method The method the endpoint accepts.
+     * @param endpoint The endpoint.
+     */
+    private void handle(HttpExchange exchange, String method, Endpoint endpoint) throws IOException
+    {
+        requests.incrementAndGet();
+        try {
+            if (!exchange.getRequestMethod().equals(method)) {
+                send(exchange, 405, "text/plain", "Expected " + method + "\n");
+            } else {
+                endpoint.handle(exchange);
+            }
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            if (exchange.getResponseCode() == -1) {
+                send(exchange, 500, "text/plain", e + "\n");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Run a task on a worker and wait for its result, sending an error
+     * response if the queue is full, the task fails or it takes too long.
+     *
+     * @param exchange The request and response.
+     * @param task The task.
+     * @return The result, or null if a response has already been sent.
+     */
+    private <T> T submit(HttpExchange exchange, Task<T> task) throws IOException
+    {
+        Job<T> job = new Job<T>(task);
+        if (!queue.offer(job)) {
+            rejected.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            send(exchange, 503, "text/plain", "Too many requests waiting\n");
+            return null;
+        }
+
+        try {
+            return job.result.get(RESULT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.result.cancel(false);
+            send(exchange, 503, "text/plain", "Interrupted\n");
+        } catch (TimeoutException e) {
+            // A worker that has yet to start the job will skip it.
+            timeouts.incrementAndGet();
+            job.result.cancel(false);
+            send(exchange, 504, "text/plain", "Timed out after " + RESULT_TIMEOUT_SECONDS + "s\n");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BadCommand) {
+                send(exchange, 422, "text/plain", e.getCause().getMessage() + "\n");
+            } else {
+                failures.incrementAndGet();
+                send(exchange, 500, "text/plain", e.getCause() + "\n");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compress the image in the request body.
+     *
+     * @param exchange The request and response.
+     */
+    private void compress(HttpExchange exchange) throws IOException
+    {
+        Image image = readImage(exchange);
+        if (image == null) {
+            return;
+        }
+        String drawing = submit(exchange, () -> image.compressCached(cache).toString());
+        if (drawing != null) {
+            send(exchange, 200, "text/plain", drawing);
+        }
+    }
+
+    /**
+     * Draw the drawing in the request body.
+     *
+     * @param exchange The request and response.
+     */
+    private void draw(HttpExchange exchange) throws IOException
+    {
+        byte[] body = readBody(exchange);
+        if (body == null) {
+            return;
+        }
+        Drawing drawing;
+        try (DrawingReader reader = new DrawingReader(new ByteArrayInputStream(body))) {
+            if (tooLarge(exchange, reader.height, reader.width)) {
+                return;
+            }
+            drawing = reader.readAll();
+        } catch (IOException e) {
+            send(exchange, 400, "text/plain", e.getMessage() + "\n");
+            return;
+        }
+
+        String image = submit(exchange, () -> drawing.draw().toString());
+        if (image != null) {
+            send(exchange, 200, "text/plain", image);
+        }
+    }
+
+    /**
+     * Render the image in the request body as a PNG.
+     *
+     * @param exchange The request and response.
+     */
+    private void png(HttpExchange exchange) throws IOException
+    {
+        Image image = readImage(exchange);
+        if (image == null) {
+            return;
+        }
+        byte[] png = submit(exchange, () -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                image.writePNG(out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return out.toByteArray();
+        });
+        if (png != null) {
+            send(exchange, 200, "image/png", png);
+        }
+    }
+
+    /**
+     * Report the service's counters, one "name value" pair per line.
+     *
+     * @param exchange The request and response.
+     */
+    private void metrics(HttpExchange exchange) throws IOException
+    {
+        long count = completed.get();
+        String s = "requests " + requests.get() + "\n"
+                + "rejected " + rejected.get() + "\n"
+                + "failures " + failures.get() + "\n"
+                + "timeouts " + timeouts.get() + "\n"
+                + "queued " + queue.size() + "\n"
+                + "completed " + count + "\n"
+                + "work_ms_mean " + (count == 0 ? 0 : workNanos.get() / count / 1000000.0) + "\n";
+        send(exchange, 200, "text/plain", s);
+    }
+
+    /**
+     * Take jobs off the queue and run them until the service stops.
+     */
+    private void work()
+    {
+        while (running) {
+            Job<?> job;
+            try {
+                job = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == null || job.result.isDone()) {
+                continue;
+            }
+
+            long start = System.nanoTime();
+            job.run();
+            workNanos.addAndGet(System.nanoTime() - start);
+            completed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Read an image from the request body, sending a 400 response if it is
+     * not a valid image.
+     *
+     * @param exchange The request and response.
+     * @return The image, or null if a response has already been sent.
+     */
+    private static Image readImage(HttpExchange exchange) throws IOException
+    {
+        byte[] body = readBody(exchange);
+        if (body == null) {
+            return null;
+        }
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body),
+                StandardCharsets.UTF_8));
+        for (String s = in.readLine(); s != null; s = in.readLine()) {
+            lines.add(s);
+        }
+        if (!lines.isEmpty() && tooLarge(exchange, lines.size(), lines.get(0).length())) {
+            return null;
+        }
+        try {
+            return Image.fromLines(lines);
+        } catch (FormatException e) {
+            send(exchange, 400, "text/plain", e.getMessage() + "\n");
+            return null;
+        }
+    }
+
+    /**
+     * Read the request body, sending a 413 response if it is over
+     * MAX_BODY_BYTES.
+     *
+     * @param exchange The request and response.
+     * @return The body, or null if a response has already been sent.
+     */
+    private static byte[] readBody(HttpExchange exchange) throws IOException
+    {
+        byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY_BYTES + 1);
+        if (body.length > MAX_BODY_BYTES) {
+            send(exchange, 413, "text/plain", "Request too large (should be at most " + MAX_BODY_BYTES + " bytes)\n");
+            return null;
+        }
+        return body;
+    }
+
+    /**
+     * Check the dimensions of an image or drawing, sending a 413 response if
+     * it has over MAX_PIXELS.
+     *
+     * @param exchange The request and response.
+     * @param height The height.
+     * @param width The width.
+     * @return True if a response has been sent.
+     */
+    private static boolean tooLarge(HttpExchange exchange, int height, int width) throws IOException
+    {
+        if ((long) height * width <= MAX_PIXELS) {
+            return false;
+        }
+        send(exchange, 413, "text/plain", "Image too large (should be at most " + MAX_PIXELS + " pixels): "
+                + height + "x" + width + "\n");
+        return true;
+    }
+
+    /**
+     * Send a text response.
+     *
+     * @param exchange The request and response.
+     * @param status The HTTP status code.
+     * @param contentType The content type.
+     * @param body The text of the response.
+     */
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException
+    {
+        send(exchange, status, contentType + "; charset=utf-8", body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Send a response.
+     *
+     * @param exchange The request and response.
+     * @param status The HTTP status code.
+     * @param contentType The content type.
+     * @param body The bytes of the response.
+     */
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException
+    {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -1,9 +1,16 @@
-import java.util.*;
-import java.util.stream.Collectors;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.PriorityQueue;
 
 /**
  * Compressor Class.
  *
+ * Coordinates are handled as packed int indices (y * width + x) rather than
+ * Coordinate objects, so the only per-run allocations are a few arrays sized
+ * to the image.
+ *
  * @author David W. Arnold
  * @version 25/10/2017
  */
@@ -11,13 +18,44 @@ public class Compressor
 {
     private Image image;
     private Drawing drawing;
-    private Coordinate cursor;
-    private List<Coordinate> drawnCoordinates;
-    private List<Integer> colors;
-    private List<Coordinate> allCoordinates;
+    private int width;
+    private int height;
+    private int cursorX;
+    private int cursorY;
+    private int startX;
+    private int startY;
+    private BitSet drawnCoordinates;
+    private int[] colors;
     private int colorIndexToTest = 0;
-    private List<Integer> colorsDrawn;
-    private ArrayList<Coordinate> allCoordinatesExceptBackground;
+    private boolean[] colorsDrawn;
+    private int[][] coordinatesByColor;
+
+    // The order in which neighbouring directions are tried, ties go to the first.
+    private static final Direction[] NEIGHBOUR_ORDER =
+            {Direction.LEFT, Direction.UP, Direction.DOWN, Direction.RIGHT};
+
+    // The latest version of the drawing format the drawing may use, which
+    // decides whether fill and repeat commands are used, and the smallest
+    // number of new pixels a fill has to paint to be worth it.
+    private int maxVersion = DrawingReader.VERSION;
+    private static final int MIN_FILL_PIXELS = 4;
+
+    // The longest body a repeat is looked for with.
+    private static final int MAX_REPEAT_BODY = 32;
+
+    // How long the finished drawing's route may be planned for, to cut down
+    // its moves, in nanoseconds, or 0 not to plan it, and whether planning
+    // was stopped by that time rather than running out of improvements.
+    static final long ROUTE_BUDGET_MS = 100;
+    private long routeBudget = ROUTE_BUDGET_MS * 1000000;
+    private boolean routeCutShort;
+
+    // Scratch state filled in by findBestDrawingCoordinate.
+    private Line line = new Line();
+    private int bestCost;
+    private int bestLength;
+    private int bestTargetX;
+    private int bestTargetY;
 
     /**
      * Reads in the image to be compressed.
@@ -25,35 +63,91 @@ public class Compressor
      * @param image The image to be compressed.
      */
     public Compressor(Image image)
+    {
+        this(image, -1, 0, 0);
+    }
+
+    /**
+     * Reads in the image to be compressed, with a fixed background colour and
+     * a starting cursor position, so that the drawing can carry on from the
+     * commands of a neighbouring part of a larger image.
+     *
+     * @param image The image to be compressed.
+     * @param background The background colour, or -1 to use the most common colour.
+     * @param cursorX The x value the cursor starts at, which may be outside the image.
+     * @param cursorY The y value the cursor starts at, which may be outside the image.
+     */
+    public Compressor(Image image, int background, int cursorX, int cursorY)
     {
         this.image = image;
-        cursor = new Coordinate(0, 0);
-        allCoordinates = new ArrayList<Coordinate>();
-        drawnCoordinates = new ArrayList<Coordinate>();
-        colorsDrawn = new ArrayList<Integer>();
-
-        HashMap<Integer, Integer> mapOfColors = new HashMap<Integer, Integer>();
-        int height = image.pixels.length;
-        int width = image.pixels[0].length;
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int count = 0;
-                int color = image.getColor(x, y);
-                if (mapOfColors.containsKey(color)) {
-                    count = mapOfColors.get(color);
+        height = image.getHeight();
+        width = image.getWidth();
+        this.cursorX = cursorX;
+        this.cursorY = cursorY;
+        startX = cursorX;
+        startY = cursorY;
+        drawnCoordinates = new BitSet(width * height);
+        colorsDrawn = new boolean[16];
+
+        int[] mapOfColors = image.histogram();
+
+        // The background comes first, then the rest of the colours present by
+        // descending frequency, ties keep the lower colour first.
+        boolean[] sorted = new boolean[16];
+        int present = 0;
+        for (int color = 0; color < 16; color++) {
+            if (mapOfColors[color] > 0 || color == background) {
+                present++;
+            }
+        }
+        colors = new int[present];
+        for (int i = 0; i < present; i++) {
+            int best = -1;
+            if (i == 0 && background >= 0) {
+                best = background;
+            } else {
+                for (int color = 0; color < 16; color++) {
+                    if (!sorted[color] && mapOfColors[color] > 0 && (best == -1 || mapOfColors[color] > mapOfColors[best])) {
+                        best = color;
+                    }
                 }
-                count++;
-                mapOfColors.put(color, count);
             }
+            colors[i] = best;
+            sorted[best] = true;
         }
 
-        colors = mapOfColors.entrySet().stream()
-                .sorted((a, b) -> Integer.compare(b.getValue(), a.getValue()))
-                .map(Map.Entry::getKey)
-                .collect(Collectors.toList());
+        // Index every coordinate by its colour, in column-major order. The
+        // image is read a row at a time, so first count each colour in each
+        // column to find where each column's coordinates go.
+        coordinatesByColor = new int[16][];
+        for (int color = 0; color < 16; color++) {
+            coordinatesByColor[color] = new int[mapOfColors[color]];
+        }
+        int[] scratch = new int[width];
+        int[] filled = new int[16 * width];
+        for (int y = 0; y < height; y++) {
+            int[] row = image.getRow(y, scratch);
+            for (int x = 0; x < width; x++) {
+                filled[row[x] * width + x]++;
+            }
+        }
+        for (int color = 0; color < 16; color++) {
+            int sum = 0;
+            for (int x = 0; x < width; x++) {
+                int count = filled[color * width + x];
+                filled[color * width + x] = sum;
+                sum += count;
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            int[] row = image.getRow(y, scratch);
+            for (int x = 0; x < width; x++) {
+                coordinatesByColor[row[x]][filled[row[x] * width + x]++] = pack(x, y);
+            }
+        }
 
         int backgroundColor = getColorToTest();
-        colorsDrawn.add(backgroundColor);
+        colorsDrawn[backgroundColor] = true;
         colorIndexToTest++;
         drawing = new Drawing(height, width, backgroundColor);
     }
@@ -61,208 +155,605 @@ public class Compressor
     /**
      * The method used to compress an image into Drawing commands.
      *
-     * @return The compressed drawing object
+     * @return The compressed drawing object, or null if the compressor got
+     * stuck before every pixel was drawn.
      */
     public Drawing compress()
     {
-        for (int x = 0; x < image.pixels[0].length; x++) {
-            for (int y = 0; y < image.pixels.length; y++) {
-                allCoordinates.add(new Coordinate(x, y));
-            }
-        }
+        return compress(Long.MAX_VALUE);
+    }
 
-        allCoordinatesExceptBackground = new ArrayList<Coordinate>(allCoordinates);
-        allCoordinatesExceptBackground.removeIf(coordinate -> image.getColor(coordinate.x, coordinate.y) == drawing.background);
+    /**
+     * Compress the image, giving up if it is not finished by a deadline.
+     *
+     * @param deadline The System.nanoTime() by which to give up.
+     * @return The compressed drawing object, or null if the deadline passed or
+     * the compressor got stuck before every pixel was drawn.
+     */
+    public Drawing compress(long deadline)
+    {
+        int toDraw = width * height - coordinatesByColor[drawing.background].length;
 
+        // Count the passes in a row that neither draw anything new nor finish
+        // a colour, so a compressor that has got stuck gives up.
         int i = 0;
         int spotInfiniteLoop = 1000;
-        while (!drawnCoordinates.containsAll(allCoordinatesExceptBackground) && i < spotInfiniteLoop) {
-            Map.Entry<Direction, Integer> pairDirectionLength = findBestNeighbourDirection();
-            if (pairDirectionLength == null) {
+        if (colorIndexToTest < colors.length) {
+            fillRectangles();
+            nextColor();
+        }
+        int drawn = drawnCoordinates.cardinality();
+        while (drawn < toDraw && i < spotInfiniteLoop) {
+            if (deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+                return null;
+            }
+
+            int colorIndexBefore = colorIndexToTest;
+            int drawnBefore = drawn;
+            Direction d = findBestNeighbourDirection();
+            if (d == null) {
                 resolveStuckCase();
             } else {
-                Direction d = pairDirectionLength.getKey();
-                int l = pairDirectionLength.getValue();
-                addCommand(d, l, true, getColorToTest());
+                addCommand(d, findNeighboursLength(d), true, getColorToTest());
             }
 
-            ArrayList<Coordinate> currentColorDrawnCoordinates = new ArrayList<Coordinate>(drawnCoordinates);
-            currentColorDrawnCoordinates.removeIf(coordinate -> image.getColor(coordinate) != getColorToTest());
+            nextColor();
 
-            ArrayList<Coordinate> currentColorAllCoordinatesExceptBackground = new ArrayList<Coordinate>(allCoordinatesExceptBackground);
-            currentColorAllCoordinatesExceptBackground.removeIf(coordinate -> image.getColor(coordinate) != getColorToTest());
-
-            if (currentColorDrawnCoordinates.containsAll(currentColorAllCoordinatesExceptBackground)) {
-                colorsDrawn.add(getColorToTest());
-                colorIndexToTest++;
-                clearDrawnCoordinates();
+            drawn = drawnCoordinates.cardinality();
+            if (drawn > drawnBefore || colorIndexToTest != colorIndexBefore) {
+                i = 0;
+            } else {
+                i++;
             }
-
-            System.out.print("");
-            spotInfiniteLoop++;
         }
 
+        if (drawn < toDraw) {
+            return null;
+        }
+        planRoute(deadline);
         return drawing;
     }
 
     /**
-     * Clears the drawnCoordinates list of any coordinates containing colours
-     * which aren't suppose to have been drawn yet.
+     * Reorder the painting commands to cut down the moves between them, and
+     * fold repeats, keeping the order the commands were found in if that
+     * folds into fewer commands.
+     *
+     * @param deadline The System.nanoTime() by which to give up planning.
      */
-    private void clearDrawnCoordinates()
+    private void planRoute(long deadline)
     {
-        drawnCoordinates.removeIf(coordinate -> !colorsDrawn.contains(image.getColor(coordinate)));
+        CommandBuffer planned = null;
+        RoutePlanner planner = null;
+        if (routeBudget > 0) {
+            long routeDeadline = System.nanoTime() + routeBudget;
+            if (deadline != Long.MAX_VALUE && deadline - routeDeadline < 0) {
+                routeDeadline = deadline;
+            }
+            planner = new RoutePlanner(routeDeadline);
+            planned = planner.plan(drawing.commands, startX, startY);
+            routeCutShort = !planner.isFinished();
+        }
+
+        List<DrawingCommand> commands = planned != null ? planned : drawing.commands;
+        if (maxVersion >= 3) {
+            commands = foldRepeats(commands);
+            if (planned != null) {
+                List<DrawingCommand> given = foldRepeats(drawing.commands);
+                if (size(given) < size(commands)) {
+                    drawing.commands = given;
+                    return;
+                }
+            }
+        }
+        drawing.commands = commands;
+        if (planned != null) {
+            cursorX = planner.getEndX();
+            cursorY = planner.getEndY();
+        }
     }
 
     /**
-     * Get the colour we will be painting with as we draw colours on top of the background.
+     * Count commands, counting the commands in the body of a repeat once each.
      *
-     * @return The colour we will be painting.
+     * @param commands The commands.
+     * @return The number of commands.
      */
-    private int getColorToTest()
+    private static int size(List<DrawingCommand> commands)
     {
-        return colors.get(colorIndexToTest);
+        int size = 0;
+        for (DrawingCommand command : commands) {
+            size += command.size();
+        }
+        return size;
     }
 
     /**
-     * If no coordinate adjacent to the cursor is drawable, I look for the next drawable coordinate
-     * with the smallest number of commands to move there, but with the
-     * greatest number of pixels in a straight line (more pixels drawn per command).
+     * Set how long to spend planning the order the painting commands are
+     * drawn in, once the image has been compressed. Planning stops early if
+     * no change to the order saves a move.
+     *
+     * @param millis The time allowed, in milliseconds, or 0 not to plan.
      */
-    private void resolveStuckCase()
+    public void setRouteBudget(long millis)
     {
-        ArrayList<Coordinate> notDrawn = new ArrayList<Coordinate>(allCoordinates);
-        notDrawn.removeAll(drawnCoordinates);
-        notDrawn.removeIf(coordinate -> image.getColor(coordinate.x, coordinate.y) != getColorToTest());
+        routeBudget = millis * 1000000;
+    }
 
-        ArrayList<Line> lines = createLines();
+    /**
+     * Check whether planning the route of the drawing was stopped by its
+     * time budget, so a larger budget might give a shorter drawing.
+     *
+     * @return True if the route could have been planned further.
+     */
+    public boolean isRouteCutShort()
+    {
+        return routeCutShort;
+    }
 
-        List<LineTargetCost> lineTargetCosts = new ArrayList<>();
+    /**
+     * Choose the latest version of the drawing format the drawing may use.
+     * Fill commands need version 2 and repeat commands need version 3. This
+     * is the latest version DrawingReader reads by default.
+     *
+     * @param maxVersion The latest version to use.
+     */
+    public void setMaxVersion(int maxVersion)
+    {
+        this.maxVersion = maxVersion;
+    }
 
-        for (Line line : lines) {
-            lineTargetCosts.addAll(findBestDrawingCoordinate(line));
+    /**
+     * Fold runs of the same sequence of commands, one after another, into
+     * repeat commands, choosing the runs that leave the fewest commands, and
+     * then fold the bodies of those repeats in the same way.
+     *
+     * @param commands The commands to fold.
+     * @return The folded commands, which draw the same image.
+     */
+    static List<DrawingCommand> foldRepeats(List<DrawingCommand> commands)
+    {
+        int n = commands.size();
+        CommandBuffer buffer = commands instanceof CommandBuffer ? (CommandBuffer) commands : null;
+
+        // cost[i] is the fewest commands the commands from i on can be folded
+        // into, starting with a repeat of length[i] commands count[i] times,
+        // or with commands i on its own if length[i] is 0. matches[l] is how
+        // many commands in a row from i are the same as the command l later,
+        // so commands i on repeat every l commands for matches[l] + l of them.
+        int[] cost = new int[n + 1];
+        int[] length = new int[n];
+        int[] count = new int[n];
+        int[] matches = new int[MAX_REPEAT_BODY + 1];
+        for (int i = n - 1; i >= 0; i--) {
+            cost[i] = 1 + cost[i + 1];
+            for (int l = 1; l <= MAX_REPEAT_BODY; l++) {
+                boolean same = i + l < n
+                        && (buffer != null ? buffer.same(i, i + l) : commands.get(i).equals(commands.get(i + l)));
+                matches[l] = same ? matches[l] + 1 : 0;
+                int k = (matches[l] + l) / l;
+                if (k >= 2 && 1 + l + cost[i + l * k] < cost[i]) {
+                    cost[i] = 1 + l + cost[i + l * k];
+                    length[i] = l;
+                    count[i] = k;
+                }
+            }
         }
 
-        int minCost = lineTargetCosts.stream().min(Comparator.comparingInt(o -> o.cost)).get().cost;
+        CommandBuffer folded = new CommandBuffer();
+        int i = 0;
+        while (i < n) {
+            if (length[i] == 0) {
+                folded.add(commands.get(i));
+                i++;
+            } else {
+                folded.add(DrawingCommand.repeat(count[i], foldRepeats(commands.subList(i, i + length[i]))));
+                i += length[i] * count[i];
+            }
+        }
+        return folded;
+    }
 
-        Coordinate target = lineTargetCosts.stream()
-                .filter(lineTargetCost -> lineTargetCost.cost == minCost)
-                .max(Comparator.comparingInt((LineTargetCost ltc) -> ltc.line.getLength()))
-                .get().target;
+    /**
+     * Move on to the next colour once every pixel of the current one has been
+     * drawn, filling the new colour's rectangles first, until a colour is
+     * left to draw.
+     */
+    private void nextColor()
+    {
+        while (colorIndexToTest < colors.length && allDrawn(coordinatesByColor[getColorToTest()])) {
+            colorsDrawn[getColorToTest()] = true;
+            colorIndexToTest++;
+            clearDrawnCoordinates();
+            if (colorIndexToTest < colors.length) {
+                fillRectangles();
+            }
+        }
+    }
 
-        if (target == null) {
-            System.err.println("No coordinate, next to target coordinate, has been selected to resolve this stuck case.");
+    /**
+     * Paint the rectangles that cover the most undrawn pixels of the colour
+     * being drawn with fill commands, one at a time, while they are worth a
+     * command. A rectangle may also cover pixels of colours still to be drawn,
+     * as they are painted over later.
+     *
+     * The rectangles to choose from do not change as they are filled, only
+     * how many undrawn pixels each covers, so they are found in one pass and
+     * kept in order of that count. As a count can only fall, one is counted
+     * again only when it comes to the front, and only the rows of a filled
+     * rectangle are counted again when it is filled.
+     */
+    private void fillRectangles()
+    {
+        if (maxVersion < 2) {
+            return;
+        }
+        int color = getColorToTest();
+        int stride = width + 1;
+        int[] heights = new int[width + 1];
+        int[] stack = new int[width + 2];
+        int[] scratch = new int[width];
+
+        // Only rectangles that reach into the rows holding the colour count
+        // any pixels, and one ending below them counts no more than one
+        // ending on the row after the last of them, which is found first.
+        BitSet rows = image.rowsWith(color);
+        if (rows.isEmpty()) {
             return;
         }
+        int first = rows.nextSetBit(0);
+        int last = Math.min(height - 1, rows.previousSetBit(height - 1) + 1);
+
+        // Count the undrawn pixels of the colour to the left of each point,
+        // and above and to the left of it, so any rectangle can be counted at
+        // once to begin with, and a row at a time once some are filled.
+        int[] undrawnInRow = new int[height * stride];
+        int[] undrawn = new int[(last + 2) * stride];
+        for (int y = 0; y <= last; y++) {
+            if (rows.get(y)) {
+                countRow(undrawnInRow, y, color, scratch);
+            }
+            for (int x = 0; x <= width; x++) {
+                undrawn[(y + 1) * stride + x] = undrawn[y * stride + x] + undrawnInRow[y * stride + x];
+            }
+        }
+
+        // For each row, find the widest rectangle of each height ending on
+        // it, made only of colours that have not been drawn yet. Each is kept
+        // as its left, top, width, height, count and the order it was found
+        // in, which settles ties.
+        PriorityQueue<int[]> candidates = new PriorityQueue<int[]>(
+                (p, q) -> p[4] != q[4] ? Integer.compare(q[4], p[4]) : Integer.compare(p[5], q[5]));
+        int found = 0;
+        for (int y = 0; y <= last; y++) {
+            int[] pixels = image.getRow(y, scratch);
+            for (int x = 0; x < width; x++) {
+                heights[x] = colorsDrawn[pixels[x]] ? 0 : heights[x] + 1;
+            }
+            if (y < first) {
+                continue;
+            }
+            int top = 0;
+            for (int x = 0; x <= width; x++) {
+                while (top > 0 && heights[stack[top - 1]] >= heights[x]) {
+                    int h = heights[stack[--top]];
+                    int left = top > 0 ? stack[top - 1] + 1 : 0;
+                    int w = x - left;
+                    if (h >= 2 && w >= 2) {
+                        int count = undrawn[(y + 1) * stride + left + w] - undrawn[(y + 1 - h) * stride + left + w]
+                                - undrawn[(y + 1) * stride + left] + undrawn[(y + 1 - h) * stride + left];
+                        if (count >= MIN_FILL_PIXELS) {
+                            candidates.add(new int[]{left, y - h + 1, w, h, count, found});
+                        }
+                        found++;
+                    }
+                }
+                stack[top++] = x;
+            }
+        }
+
+        while (!candidates.isEmpty()) {
+            int[] best = candidates.poll();
+            int count = countUndrawn(undrawnInRow, best[0], best[1], best[2], best[3]);
+            if (count < best[4]) {
+                if (count >= MIN_FILL_PIXELS) {
+                    best[4] = count;
+                    candidates.add(best);
+                }
+                continue;
+            }
+            addFillCommand(best[0], best[1], best[2], best[3], color);
+            for (int y = best[1]; y < best[1] + best[3]; y++) {
+                if (rows.get(y)) {
+                    countRow(undrawnInRow, y, color, scratch);
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the undrawn pixels of a colour to the left of each point of a
+     * row.
+     *
+     * @param undrawnInRow The counts, a row of width + 1 at a time.
+     * @param y The row.
+     * @param color The colour.
+     * @param scratch A buffer of the width of the image.
+     */
+    private void countRow(int[] undrawnInRow, int y, int color, int[] scratch)
+    {
+        int[] pixels = image.getRow(y, scratch);
+        int i = y * (width + 1);
+        for (int x = 0; x < width; x++) {
+            undrawnInRow[i + x + 1] = undrawnInRow[i + x]
+                    + (pixels[x] == color && !drawnCoordinates.get(pack(x, y)) ? 1 : 0);
+        }
+    }
+
+    /**
+     * Count the undrawn pixels of the colour being drawn in a rectangle.
+     *
+     * @param undrawnInRow The counts built in fillRectangles.
+     * @param left The x value of the left column.
+     * @param top The y value of the top row.
+     * @param w The number of columns.
+     * @param h The number of rows.
+     * @return The number of undrawn pixels.
+     */
+    private int countUndrawn(int[] undrawnInRow, int left, int top, int w, int h)
+    {
+        int count = 0;
+        for (int y = top; y < top + h; y++) {
+            count += undrawnInRow[y * (width + 1) + left + w] - undrawnInRow[y * (width + 1) + left];
+        }
+        return count;
+    }
 
-        if (target.x < cursor.x) {
-            addCommand(Direction.LEFT, Math.abs(cursor.x - target.x), false, 0);
+    /**
+     * Move the cursor to the top left of a rectangle and fill it.
+     *
+     * @param left The x value of the left column.
+     * @param top The y value of the top row.
+     * @param w The number of columns.
+     * @param h The number of rows.
+     * @param color The colour to fill with.
+     */
+    private void addFillCommand(int left, int top, int w, int h, int color)
+    {
+        if (left < cursorX) {
+            addCommand(Direction.LEFT, cursorX - left, false, 0);
         }
-        if (target.x > cursor.x) {
-            addCommand(Direction.RIGHT, Math.abs(target.x - cursor.x), false, 0);
+        if (left > cursorX) {
+            addCommand(Direction.RIGHT, left - cursorX, false, 0);
         }
-        if (target.y < cursor.y) {
-            addCommand(Direction.UP, Math.abs(cursor.y - target.y), false, 0);
+        if (top < cursorY) {
+            addCommand(Direction.UP, cursorY - top, false, 0);
         }
-        if (target.y > cursor.y) {
-            addCommand(Direction.DOWN, Math.abs(target.y - cursor.y), false, 0);
+        if (top > cursorY) {
+            addCommand(Direction.DOWN, top - cursorY, false, 0);
+        }
+        drawing.addFill(w, h, color);
+        for (int y = top; y < top + h; y++) {
+            for (int x = left; x < left + w; x++) {
+                drawnCoordinates.set(pack(x, y));
+            }
         }
     }
 
     /**
-     * Creates an arraylist of potential lines which can be drawn, so that the
-     * resolveStuckCase method can decide which one is best to draw next.
+     * Get the x value of the cursor, where the last command left it.
+     *
+     * @return The x value of the cursor.
+     */
+    public int getCursorX()
+    {
+        return cursorX;
+    }
+
+    /**
+     * Get the y value of the cursor, where the last command left it.
+     *
+     * @return The y value of the cursor.
+     */
+    public int getCursorY()
+    {
+        return cursorY;
+    }
+
+    /**
+     * Packs an in-bounds coordinate into a single int index.
+     *
+     * @param x The x value.
+     * @param y The y value.
+     * @return The packed index of the coordinate.
+     */
+    private int pack(int x, int y)
+    {
+        return y * width + x;
+    }
+
+    /**
+     * Checks whether a coordinate lies inside the image.
+     *
+     * @param x The x value.
+     * @param y The y value.
+     * @return True if the coordinate is inside the image.
+     */
+    private boolean inBounds(int x, int y)
+    {
+        return x >= 0 && x < width && y >= 0 && y < height;
+    }
+
+    /**
+     * Checks whether every packed coordinate given has been drawn.
      *
-     * @return The potential lines to draw in a stuck case scenario.
+     * @param coordinates The packed coordinates to check.
+     * @return True if they have all been drawn.
      */
-    private ArrayList<Line> createLines()
+    private boolean allDrawn(int[] coordinates)
     {
-        ArrayList<Line> lines = new ArrayList<Line>();
-        ArrayList<Coordinate> notDrawn = new ArrayList<>(allCoordinatesExceptBackground);
-        notDrawn.removeIf(coordinate -> drawnCoordinates.contains(coordinate));
-        notDrawn.removeIf(coordinate -> getColorToTest() != image.getColor(coordinate));
-        for (Coordinate c : notDrawn) {
-            int left = findNeighboursLength(Direction.LEFT);
-            int right = findNeighboursLength(Direction.RIGHT);
-            int up = findNeighboursLength(Direction.UP);
-            int down = findNeighboursLength(Direction.DOWN);
-            int horizontal = left + right + 1;
-            int vertical = up + down + 1;
+        for (int c : coordinates) {
+            if (!drawnCoordinates.get(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Clears the drawnCoordinates set of any coordinates containing colours
+     * which aren't suppose to have been drawn yet.
+     */
+    private void clearDrawnCoordinates()
+    {
+        for (int c = drawnCoordinates.nextSetBit(0); c >= 0; c = drawnCoordinates.nextSetBit(c + 1)) {
+            if (!colorsDrawn[image.getColor(c % width, c / width)]) {
+                drawnCoordinates.clear(c);
+            }
+        }
+    }
+
+    /**
+     * Get the colour we will be painting with as we draw colours on top of the background.
+     *
+     * @return The colour we will be painting.
+     */
+    private int getColorToTest()
+    {
+        return colors[colorIndexToTest];
+    }
+
+    /**
+     * If no coordinate adjacent to the cursor is drawable, I look for the next drawable coordinate
+     * with the smallest number of commands to move there, but with the
+     * greatest number of pixels in a straight line (more pixels drawn per command).
+     */
+    private void resolveStuckCase()
+    {
+        int left = findNeighboursLength(Direction.LEFT);
+        int right = findNeighboursLength(Direction.RIGHT);
+        int up = findNeighboursLength(Direction.UP);
+        int down = findNeighboursLength(Direction.DOWN);
+        int horizontal = left + right + 1;
+        int vertical = up + down + 1;
+
+        bestCost = Integer.MAX_VALUE;
+        bestLength = 0;
+        for (int c : coordinatesByColor[getColorToTest()]) {
+            if (drawnCoordinates.get(c)) {
+                continue;
+            }
+            int x = c % width;
+            int y = c / width;
             if (horizontal == 1 && vertical == 1) {
-                lines.add(new Line(c, c));
+                line.set(x, y, x, y);
+                findBestDrawingCoordinate(line);
                 continue;
             }
             if (vertical > 1) {
-                lines.add(new Line(new Coordinate(c.x, c.y - up), new Coordinate(c.x, c.y + down)));
+                line.set(x, y - up, x, y + down);
+                findBestDrawingCoordinate(line);
             }
             if (horizontal > 1) {
-                lines.add(new Line(new Coordinate(c.x - left, c.y), new Coordinate(c.x + right, c.y)));
+                line.set(x - left, y, x + right, y);
+                findBestDrawingCoordinate(line);
             }
         }
 
-        return lines;
+        if (bestCost == Integer.MAX_VALUE) {
+            System.err.println("No coordinate, next to target coordinate, has been selected to resolve this stuck case.");
+            return;
+        }
+
+        if (bestTargetX < cursorX) {
+            addCommand(Direction.LEFT, cursorX - bestTargetX, false, 0);
+        }
+        if (bestTargetX > cursorX) {
+            addCommand(Direction.RIGHT, bestTargetX - cursorX, false, 0);
+        }
+        if (bestTargetY < cursorY) {
+            addCommand(Direction.UP, cursorY - bestTargetY, false, 0);
+        }
+        if (bestTargetY > cursorY) {
+            addCommand(Direction.DOWN, bestTargetY - cursorY, false, 0);
+        }
     }
 
     /**
-     * Finds the best coordinate to move to to draw a line in a stuck case scenario.
+     * Considers the coordinates we could move to to draw a line in a stuck
+     * case scenario, keeping the cheapest one seen so far (ties go to the
+     * longest line, then to the first one found).
      *
      * @param l The line we know we are going to draw.
-     * @return A ListTargetCost object containing detail of the line, the target
-     * coordinate and the cost of getting to that coordinate.
      */
-    private List<LineTargetCost> findBestDrawingCoordinate(Line l)
+    private void findBestDrawingCoordinate(Line l)
     {
-        ArrayList<Coordinate> coordinates = new ArrayList<Coordinate>();
         Direction direction = l.getDirecton();
         LineType lineType = l.findLineType();
-        if (lineType.equals(LineType.VERTICAL)) {
+        if (lineType == LineType.VERTICAL) {
 
-            if (direction.equals(Direction.DOWN)) {
-                coordinates.add(new Coordinate(l.start.x, l.start.y - 1));
-                coordinates.add(new Coordinate(l.end.x, l.end.y + 1));
+            if (direction == Direction.DOWN) {
+                considerTarget(l, l.startX, l.startY - 1);
+                considerTarget(l, l.endX, l.endY + 1);
             } else {
                 // up
-                coordinates.add(new Coordinate(l.start.x, l.start.y + 1));
-                coordinates.add(new Coordinate(l.end.x, l.end.y - 1));
+                considerTarget(l, l.startX, l.startY + 1);
+                considerTarget(l, l.endX, l.endY - 1);
             }
 
-        } else if (lineType.equals(LineType.HORIZONTAL)) {
+        } else if (lineType == LineType.HORIZONTAL) {
 
-            if (direction.equals(Direction.RIGHT)) {
+            if (direction == Direction.RIGHT) {
                 // right
-                coordinates.add(new Coordinate(l.start.x - 1, l.start.y));
-                coordinates.add(new Coordinate(l.end.x + 1, l.end.y));
+                considerTarget(l, l.startX - 1, l.startY);
+                considerTarget(l, l.endX + 1, l.endY);
             } else {
                 // left
-                coordinates.add(new Coordinate(l.start.x + 1, l.start.y));
-                coordinates.add(new Coordinate(l.end.x - 1, l.end.y));
+                considerTarget(l, l.startX + 1, l.startY);
+                considerTarget(l, l.endX - 1, l.endY);
             }
 
-        } else if (lineType.equals(LineType.SINGLE)) {
-            coordinates.add(new Coordinate(l.start.x - 1, l.start.y));
-            coordinates.add(new Coordinate(l.start.x + 1, l.start.y));
-            coordinates.add(new Coordinate(l.start.x, l.start.y - 1));
-            coordinates.add(new Coordinate(l.start.x, l.start.y + 1));
+        } else if (lineType == LineType.SINGLE) {
+            considerTarget(l, l.startX - 1, l.startY);
+            considerTarget(l, l.startX + 1, l.startY);
+            considerTarget(l, l.startX, l.startY - 1);
+            considerTarget(l, l.startX, l.startY + 1);
         }
+    }
 
-        return coordinates.stream()
-                .map(coordinate -> new LineTargetCost(l, coordinate, calculateCost(coordinate)))
-                .collect(Collectors.toList());
+    /**
+     * Records a target coordinate if it beats the best one found so far.
+     *
+     * @param l The line we want to draw.
+     * @param x The x value of the coordinate we move to to draw this line.
+     * @param y The y value of the coordinate we move to to draw this line.
+     */
+    private void considerTarget(Line l, int x, int y)
+    {
+        int cost = calculateCost(x, y);
+        int length = l.getLength();
+        if (cost < bestCost || (cost == bestCost && length > bestLength)) {
+            bestCost = cost;
+            bestLength = length;
+            bestTargetX = x;
+            bestTargetY = y;
+        }
     }
 
     /**
      * Calculates the cost of moving to a specific coordinate from where the cursor is currently positioned.
      *
-     * @param c The coordinate to test.
+     * @param x The x value of the coordinate to test.
+     * @param y The y value of the coordinate to test.
      * @return The number of moves it would take to move there.
      */
-    private int calculateCost(Coordinate c)
+    private int calculateCost(int x, int y)
     {
         int cost = 0;
-        if (c.x != cursor.x) {
+        if (x != cursorX) {
             cost++;
         }
-        if (c.y != cursor.y) {
+        if (y != cursorY) {
             cost++;
         }
 
@@ -279,72 +770,52 @@ public class Compressor
      */
     private void addCommand(Direction d, int l, boolean paint, int color)
     {
-        String newHexColor = Integer.toString(color, 16);
-        if (paint) {
-            drawing.addCommand(new DrawingCommand(d + " " + l + " " + newHexColor));
-        } else {
-            drawing.addCommand(new DrawingCommand(d + " " + l));
-        }
-
-        if (paint) {
-            if (d == Direction.LEFT) {
-                for (int i = 1; i <= l; i++) {
-                    drawnCoordinates.add(new Coordinate(cursor.x - i, cursor.y));
-                }
-            }
-            if (d == Direction.RIGHT) {
-                for (int i = 1; i <= l; i++) {
-                    drawnCoordinates.add(new Coordinate(cursor.x + i, cursor.y));
-                }
-            }
-            if (d == Direction.UP) {
-                for (int i = 1; i <= l; i++) {
-                    drawnCoordinates.add(new Coordinate(cursor.x, cursor.y - i));
-                }
-            }
-            if (d == Direction.DOWN) {
-                for (int i = 1; i <= l; i++) {
-                    drawnCoordinates.add(new Coordinate(cursor.x, cursor.y + i));
-                }
-            }
-        }
+        drawing.addCommand(d, l, paint, color);
 
+        int dx = 0;
+        int dy = 0;
         if (d == Direction.LEFT) {
-            cursor = new Coordinate(cursor.x - l, cursor.y);
+            dx = -1;
         }
         if (d == Direction.RIGHT) {
-            cursor = new Coordinate(cursor.x + l, cursor.y);
+            dx = 1;
         }
         if (d == Direction.UP) {
-            cursor = new Coordinate(cursor.x, cursor.y - l);
+            dy = -1;
         }
         if (d == Direction.DOWN) {
-            cursor = new Coordinate(cursor.x, cursor.y + l);
+            dy = 1;
+        }
+
+        if (paint) {
+            for (int i = 1; i <= l; i++) {
+                drawnCoordinates.set(pack(cursorX + dx * i, cursorY + dy * i));
+            }
         }
+
+        cursorX += dx * l;
+        cursorY += dy * l;
     }
 
     /**
      * Finds the best way to move out of the adjacent pixels from the cursor.
      *
-     * @return A map entry set
+     * @return The direction which paints the longest line, or null if none
+     * of the adjacent pixels can be drawn.
      */
-    private Map.Entry<Direction, Integer> findBestNeighbourDirection()
+    private Direction findBestNeighbourDirection()
     {
-        Map<Direction, Integer> map = new HashMap<Direction, Integer>();
-        map.put(Direction.LEFT, findNeighboursLength(Direction.LEFT));
-        map.put(Direction.RIGHT, findNeighboursLength(Direction.RIGHT));
-        map.put(Direction.UP, findNeighboursLength(Direction.UP));
-        map.put(Direction.DOWN, findNeighboursLength(Direction.DOWN));
-
-        map = map.entrySet().stream()
-                .filter(e -> e.getValue() > 0)
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
-
-        if (map.size() == 0) {
-            return null;
+        Direction best = null;
+        int bestLength = 0;
+        for (Direction d : NEIGHBOUR_ORDER) {
+            int length = findNeighboursLength(d);
+            if (length > bestLength) {
+                best = d;
+                bestLength = length;
+            }
         }
 
-        return Collections.max(map.entrySet(), Comparator.comparingInt(Map.Entry::getValue));
+        return best;
     }
 
     /**
@@ -358,215 +829,61 @@ public class Compressor
     {
         boolean ifTheLineContainsColor = false;
         boolean ifTheLineHasNewThingsToBeDrawn = false;
-        int i = -1;
-        int reverseDirection = 1;
-        if (d == Direction.LEFT || d == Direction.RIGHT) {
+        int dx = 0;
+        int dy = 0;
+        if (d == Direction.LEFT) {
+            dx = -1;
+        } else if (d == Direction.RIGHT) {
+            dx = 1;
+        } else if (d == Direction.UP) {
+            dy = -1;
+        } else {
+            dy = 1;
+        }
 
-            if (d == Direction.LEFT) {
-                reverseDirection = -1;
-            }
-            while (true) {
-                i++;
-                int newColor;
-                int newX = cursor.x + ((i + 1) * reverseDirection);
-                int y = cursor.y;
-                try {
-                    newColor = image.getColor(newX, y);
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    break;
-                }
-                if (colorsDrawn.contains(newColor)) {
+        int i = 0;
+        int x = cursorX + dx;
+        int y = cursorY + dy;
+        if (dy == 0 && y >= 0 && y < height) {
+            // Along a row, step a whole run of one colour at a time.
+            while (x >= 0 && x < width) {
+                int newColor = image.getColor(x, y);
+                if (colorsDrawn[newColor]) {
                     break;
                 }
+                int end = dx > 0 ? image.runEnd(x, y) - 1 : image.runStart(x, y);
                 if (newColor == getColorToTest()) {
                     ifTheLineContainsColor = true;
                 }
-                if (!drawnCoordinates.contains(new Coordinate(newX, y))) {
-                    ifTheLineHasNewThingsToBeDrawn = true;
+                if (!ifTheLineHasNewThingsToBeDrawn) {
+                    ifTheLineHasNewThingsToBeDrawn = dx > 0
+                            ? drawnCoordinates.nextClearBit(pack(x, y)) <= pack(end, y)
+                            : drawnCoordinates.previousClearBit(pack(x, y)) >= pack(end, y);
                 }
-            }
-            if (!ifTheLineContainsColor || !ifTheLineHasNewThingsToBeDrawn) {
-                return 0;
+                i += Math.abs(end - x) + 1;
+                x = end + dx;
             }
         } else {
-            if (d == Direction.UP) {
-                reverseDirection = -1;
-            }
-            while (true) {
-                i++;
-                int newColor;
-                int newY = cursor.y + ((i + 1) * reverseDirection);
-                int x = cursor.x;
-                try {
-                    newColor = image.getColor(x, newY);
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    break;
-                }
-                if (colorsDrawn.contains(newColor)) {
+            while (inBounds(x, y)) {
+                int newColor = image.getColor(x, y);
+                if (colorsDrawn[newColor]) {
                     break;
                 }
                 if (newColor == getColorToTest()) {
                     ifTheLineContainsColor = true;
                 }
-                if (!drawnCoordinates.contains(new Coordinate(x, newY))) {
+                if (!drawnCoordinates.get(pack(x, y))) {
                     ifTheLineHasNewThingsToBeDrawn = true;
                 }
+                i++;
+                x += dx;
+                y += dy;
             }
-            if (!ifTheLineContainsColor || !ifTheLineHasNewThingsToBeDrawn) {
-                return 0;
-            }
-        }
-
-        return i;
-    }
-}
-
-/**
- * LineType Enum.
- */
-enum LineType
-{
-    VERTICAL, HORIZONTAL, SINGLE;
-}
-
-/**
- * Line Class.
- */
-class Line
-{
-    protected Coordinate start;
-    protected Coordinate end;
-
-    /**
-     * Create a line, with a start and end point, so we can try to draw an entire line in one command.
-     *
-     * @param s The start coordinate.
-     * @param e The end coordinate.
-     */
-    public Line(Coordinate s, Coordinate e)
-    {
-        start = s;
-        end = e;
-    }
-
-    /**
-     * Finds out whether the line is a single coordinate, a vertical line or a horizontal line.
-     *
-     * @return A LineType object, which is one of three Enums: SINGLE, VERTICAL and HORIZONTAL.
-     */
-    protected LineType findLineType()
-    {
-        if (start.equals(end)) {
-            return LineType.SINGLE;
-        }
-        if (start.x == end.x) {
-            return LineType.VERTICAL;
-        }
-        if (start.y == end.y) {
-            return LineType.HORIZONTAL;
-        }
-
-        return null;
-    }
-
-    /**
-     * Gets the direction of a line by comparing the x and y values of the start and end points.
-     *
-     * @return A Direction object defining the direction of travel.
-     */
-    protected Direction getDirecton()
-    {
-        if (start.x < end.x) {
-            return Direction.RIGHT;
-        }
-        if (start.x > end.x) {
-            return Direction.LEFT;
-        }
-        if (start.y < end.y) {
-            return Direction.DOWN;
         }
-        if (start.y > end.y) {
-            return Direction.UP;
+        if (!ifTheLineContainsColor || !ifTheLineHasNewThingsToBeDrawn) {
+            return 0;
         }
 
-        return null;
-    }
-
-    /**
-     * Calculates the length of a line.
-     *
-     * @return The length of the line.
-     */
-    protected int getLength()
-    {
-        return Math.abs((start.x - end.x) + (start.y - end.y)) + 1;
-    }
-}
-
-/**
- * LineTargetCost Class.
- */
-class LineTargetCost
-{
-    protected Line line;
-    protected Coordinate target;
-    protected int cost;
-
-    /**
-     * Defining an object containing the target to start drawing a line and
-     * the cost of moving the cursor to that point.
-     *
-     * @param line The line we want to draw.
-     * @param target The coordinate we move to to draw this line.
-     * @param cost The cost of moving to that coordinate.
-     */
-    public LineTargetCost(Line line, Coordinate target, int cost)
-    {
-        this.line = line;
-        this.target = target;
-        this.cost = cost;
-    }
-}
-
-/**
- * Coordinate Class.
- */
-class Coordinate
-{
-    int x;
-    int y;
-
-    /**
-     * Provide x and y values for the Coordinate object.
-     *
-     * @param x
-     * @param y
-     */
-    public Coordinate(int x, int y)
-    {
-        this.x = x;
-        this.y = y;
-    }
-
-    @Override
-    public int hashCode()
-    {
-        return x * y + x;
-    }
-
-    @Override
-    public boolean equals(Object obj)
-    {
-        if (obj instanceof Coordinate) {
-            Coordinate c = (Coordinate) obj;
-            return c.x == this.x && c.y == this.y;
-        }
-        return false;
-    }
-
-    @Override
-    public String toString()
-    {
-        return x + "," + y;
+        return i;
     }
 }
@@ -5,10 +5,34 @@ import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameter;
 import org.junit.runners.Parameterized.Parameters;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 @RunWith(Enclosed.class)
@@ -52,10 +76,11 @@ public class CompressorTestWithScore
 
             String name = filename.substring(2);
 
-            System.out.println(name + " Commands: " + d.commands.size());
+            System.out.println(name + " Commands: " + d.getCommandCount());
 
             try {
-                assertEquals(i.toString(), d.draw().toString());
+                List<Span> diff = i.diff(d.draw());
+                assertTrue("Mismatched spans: " + diff, diff.isEmpty());
             } catch (BadCommand e) {
                 fail(e.toString());
             }
@@ -72,11 +97,1125 @@ public class CompressorTestWithScore
             for (Object[] f : CompressorTestWithScore.data()) {
                 Image i = new Image((String) f[0]);
                 Drawing d = i.compress();
-                score += d.commands.size();
+                score += d.getCommandCount();
             }
 
             System.out.println("Total Commands: " + score);
             System.out.println();
         }
+
+        @Test
+        public void roundTrips() throws IOException, BadCommand
+        {
+            for (Drawing d : versions()) {
+                byte[] text = d.toString().getBytes(StandardCharsets.UTF_8);
+                ByteArrayOutputStream binary = new ByteArrayOutputStream();
+                d.writeBinary(binary);
+                for (byte[] bytes : new byte[][]{text, binary.toByteArray()}) {
+                    Drawing read = read(bytes);
+                    assertEquals(d.toString(), read.toString());
+                    assertEquals(d.draw().toString(), read.draw().toString());
+                }
+            }
+        }
+
+        @Test
+        public void laterVersionsRejectedByOlderReaders() throws IOException
+        {
+            for (Drawing d : versions()) {
+                // A reader that only knows version 1 takes the first line as
+                // the height, so stops there.
+                String first = d.toString().split("\n")[0];
+                assertEquals(d.getVersion() > 1, !first.matches("[0-9]+"));
+
+                // This reader stops at the header of a version it does not know.
+                String text = "v" + (DrawingReader.VERSION + 1) + d.toString().substring(first.length());
+                ByteArrayOutputStream binary = new ByteArrayOutputStream();
+                d.writeBinary(binary);
+                byte[] bytes = binary.toByteArray();
+                bytes[DrawingReader.MAGIC.length] = (byte) (DrawingReader.VERSION + 1);
+                assertRejected(text.getBytes(StandardCharsets.UTF_8), 1);
+                assertRejected(bytes, 0);
+
+                // Commands of a later version than the header are rejected.
+                if (d.getVersion() > 1) {
+                    String older = (d.getVersion() > 2 ? "v" + (d.getVersion() - 1) + "\n" : "")
+                            + d.toString().substring(first.length() + 1);
+                    assertRejected(older.getBytes(StandardCharsets.UTF_8), -1);
+                }
+            }
+        }
+
+        @Test
+        public void foldedRepeatsDrawTheSame() throws BadCommand
+        {
+            for (Object[] f : CompressorTestWithScore.data()) {
+                Compressor c = new Compressor(new Image((String) f[0]));
+                c.setMaxVersion(2);
+                assertFoldsTheSame(c.compress());
+            }
+            Drawing steps = new Drawing(20, 20, 0);
+            for (int i = 0; i < 12; i++) {
+                steps.addCommand(Direction.RIGHT, 1, true, 12);
+                steps.addCommand(Direction.DOWN, 1, true, 12);
+            }
+            assertEquals(3, assertFoldsTheSame(steps).getVersion());
+        }
+
+        @Test
+        public void drawParallelMatchesDraw() throws IOException
+        {
+            List<Drawing> drawings = new ArrayList<Drawing>(versions());
+            for (Object[] f : CompressorTestWithScore.data()) {
+                drawings.add(new Image((String) f[0]).compress());
+            }
+            // Tall enough for every band to have commands of its own, and
+            // fills and repeats that cross from one band into the next.
+            Image tall = new SyntheticImages(5).colours(7).noise(0.002).islands(60).stripePeriod(6).generate(301, 97);
+            drawings.add(tall.compress());
+            drawings.add(AnytimeCompressor.runLengthEncode(tall, 0, true));
+            Drawing outside = versions().get(1);
+            outside.addCommand(Direction.LEFT, outside.width, true, 3);
+            drawings.add(outside);
+            drawings.add(read("2\n2\n0\nright 1 1\ndown 2 4\n".getBytes(StandardCharsets.UTF_8)));
+
+            for (Drawing d : drawings) {
+                String expected;
+                try {
+                    expected = d.draw().toString();
+                } catch (BadCommand e) {
+                    expected = e.getMessage();
+                }
+                String actual;
+                try {
+                    actual = d.drawParallel().toString();
+                } catch (BadCommand e) {
+                    actual = e.getMessage();
+                }
+                assertEquals(expected, actual);
+            }
+        }
+
+        /**
+         * Make a drawing of each version of the format, using every kind of
+         * command that version allows.
+         *
+         * @return The drawings, of versions 1, 2 and 3.
+         */
+        static List<Drawing> versions()
+        {
+            Drawing v1 = new Drawing(6, 8, 2);
+            v1.addCommand(Direction.RIGHT, 7, true, 4);
+            v1.addCommand(Direction.DOWN, 5, true, 15);
+            v1.addCommand(Direction.LEFT, 3, false, 0);
+            v1.addCommand(Direction.UP, 2, true, 0);
+
+            Drawing v2 = new Drawing(6, 8, 2);
+            v2.addCommand(Direction.RIGHT, 1, false, 0);
+            v2.addFill(5, 4, 9);
+            v2.addCommand(Direction.DOWN, 5, true, 1);
+
+            Drawing v3 = new Drawing(6, 8, 0);
+            v3.addFill(2, 2, 7);
+            v3.addCommand(DrawingCommand.repeat(5, Arrays.asList(
+                    new DrawingCommand(Direction.RIGHT, 1, true, 12),
+                    new DrawingCommand(Direction.DOWN, 1, true, 12))));
+
+            assertEquals(1, v1.getVersion());
+            assertEquals(2, v2.getVersion());
+            assertEquals(3, v3.getVersion());
+            return Arrays.asList(v1, v2, v3);
+        }
+
+        /**
+         * Read a drawing from its text or binary format.
+         *
+         * @param bytes The drawing.
+         * @return The drawing read.
+         */
+        static Drawing read(byte[] bytes) throws IOException
+        {
+            try (DrawingReader reader = new DrawingReader(new ByteArrayInputStream(bytes))) {
+                return reader.readAll();
+            }
+        }
+
+        /**
+         * Check that a drawing is rejected as malformed.
+         *
+         * @param bytes The drawing.
+         * @param line The line it should be rejected on, or -1 for any line.
+         */
+        private static void assertRejected(byte[] bytes, int line) throws IOException
+        {
+            try {
+                read(bytes);
+                fail("Read a drawing that should have been rejected");
+            } catch (FormatException e) {
+                if (line >= 0) {
+                    assertEquals(e.getMessage(), line, e.getLine());
+                }
+            }
+        }
+
+        /**
+         * Check that folding the repeats of a drawing gives one that draws
+         * the same image.
+         *
+         * @param d The drawing.
+         * @return The folded drawing.
+         */
+        private static Drawing assertFoldsTheSame(Drawing d) throws BadCommand
+        {
+            Drawing folded = new Drawing(d.height, d.width, d.background);
+            for (DrawingCommand c : Compressor.foldRepeats(d.commands)) {
+                folded.addCommand(c);
+            }
+            assertTrue(folded.getCommandCount() <= d.getCommandCount());
+            assertEquals(d.draw().toString(), folded.draw().toString());
+            return folded;
+        }
+    }
+
+    public static class RunLengthTests
+    {
+        @Test
+        public void drawWritesRuns() throws IOException, BadCommand
+        {
+            Drawing d = SingleTests.read("40\n30\n1\nright 20 3\ndown 10 5\nleft 5 7\nup 4\n"
+                    .getBytes(StandardCharsets.UTF_8));
+            String first = d.draw().toString();
+            // Past the threshold the drawing is compiled, and must still give runs.
+            for (int i = 0; i <= DrawingCompiler.THRESHOLD; i++) {
+                Image image = d.draw();
+                assertTrue(image.isRuns());
+                assertEquals(first, image.toString());
+            }
+        }
+
+        @Test
+        public void fillRowMatchesPixels()
+        {
+            Random random = new Random(1);
+            for (int t = 0; t < 1000; t++) {
+                int height = 1 + random.nextInt(4);
+                int width = 1 + random.nextInt(30);
+                int colours = 1 + random.nextInt(4);
+                RunLengthRows rows = new RunLengthRows(height, width, 0);
+                int[][] pixels = new int[height][width];
+                for (int k = 0; k < 60; k++) {
+                    int y = random.nextInt(height);
+                    int x0 = random.nextInt(width);
+                    int x1 = x0 + 1 + (random.nextBoolean() ? 0 : random.nextInt(width - x0));
+                    int colour = random.nextInt(colours);
+                    rows.fillRow(y, x0, x1, colour);
+                    Arrays.fill(pixels[y], x0, x1, colour);
+
+                    long runs = 0;
+                    int[] row = new int[width];
+                    for (int r = 0; r < height; r++) {
+                        rows.getRow(r, row);
+                        assertTrue(Arrays.equals(pixels[r], row));
+                        for (int x = 0; x < width; x++) {
+                            if (x == 0 || row[x] != row[x - 1]) {
+                                runs++;
+                                assertEquals(x, rows.runStart(x, r));
+                            }
+                        }
+                    }
+                    assertEquals(runs, rows.getRunCount());
+                }
+            }
+        }
+
+        @Test
+        public void statsFollowPainting() throws IOException, BadCommand
+        {
+            Random random = new Random(4);
+            Image image = Image.createRuns(12, 16, 0);
+            image.histogram();
+            for (int k = 0; k < 500; k++) {
+                int x = random.nextInt(16);
+                int y = random.nextInt(12);
+                if (random.nextBoolean()) {
+                    image.set(x, y, random.nextInt(4));
+                } else {
+                    image.fillRow(y, x, x + 1 + random.nextInt(16 - x), random.nextInt(4));
+                }
+                Image counted = Image.fromLines(Arrays.asList(image.toString().split("\n")));
+                assertTrue(Arrays.equals(counted.histogram(), image.histogram()));
+                for (int c = 0; c < 4; c++) {
+                    assertEquals(counted.rowsWith(c), image.rowsWith(c));
+                }
+            }
+        }
+
+        @Test
+        @SuppressWarnings("deprecation")
+        public void getPixels() throws BadCommand
+        {
+            Image image = Image.createRuns(3, 4, 2);
+            image.set(1, 1, 5);
+            assertEquals(11, image.histogram()[2]);
+            int[][] pixels = image.getPixels();
+            assertTrue(!image.isRuns());
+            assertEquals(5, pixels[1][1]);
+            pixels[0][0] = 5;
+            assertEquals(2, image.histogram()[5]);
+            assertEquals("5222\n2522\n2222\n", image.toString());
+        }
+    }
+
+    public static class CommandBufferTests
+    {
+        @Test
+        public void commandsReadAreCopies() throws IOException, BadCommand
+        {
+            Drawing d = SingleTests.read("v3\n8\n8\n0\nrepeat 3 {\nright 2 4\ndown 1\n}\nleft 1 9\n"
+                    .getBytes(StandardCharsets.UTF_8));
+            String text = d.toString();
+            // Compile the drawing, then change the commands read from it.
+            for (int i = 0; i <= DrawingCompiler.THRESHOLD; i++) {
+                d.draw();
+            }
+            String drawn = d.draw().toString();
+            DrawingCommand repeat = d.commands.get(0);
+            repeat.body.add(new DrawingCommand(Direction.DOWN, 1, true, 7));
+            d.commands.get(1).colour = 3;
+            assertEquals(text, d.toString());
+            assertEquals(drawn, d.draw().toString());
+
+            // Putting a changed command back is seen by the compiled drawing.
+            d.commands.set(0, repeat);
+            Image expected = SingleTests.read(d.toString().getBytes(StandardCharsets.UTF_8)).draw();
+            assertEquals(expected.toString(), d.draw().toString());
+            assertTrue(!drawn.equals(expected.toString()));
+        }
+
+        @Test
+        public void badColour()
+        {
+            CommandBuffer buffer = new CommandBuffer();
+            for (Runnable add : new Runnable[]{
+                    () -> buffer.add(Direction.RIGHT, 1, true, 16),
+                    () -> buffer.addFill(2, 2, -1),
+                    () -> buffer.add(new DrawingCommand(Direction.UP, 1, true, 20)),
+                    () -> buffer.add(0, DrawingCommand.fill(1, 1, 99))}) {
+                try {
+                    add.run();
+                    fail();
+                } catch (IllegalArgumentException e) {
+                    assertEquals(0, buffer.size());
+                }
+            }
+            buffer.add(Direction.RIGHT, 1, false, 16);
+            assertEquals("right 1", buffer.get(0).toString().trim());
+        }
+    }
+
+    public static class DrawingEditorTests
+    {
+        @Test
+        public void editsMatchDrawing() throws BadCommand
+        {
+            Random random = new Random(5);
+            Image image = new SyntheticImages(3).colours(6).noise(0.02).islands(20).stripePeriod(8).generate(90, 120);
+            Drawing d = AnytimeCompressor.runLengthEncode(image, 0, false);
+            DrawingEditor editor = new DrawingEditor(d, 16);
+            assertEquals(image.toString(), editor.getImage().toString());
+            for (int k = 0; k < 200; k++) {
+                int n = d.commands.size();
+                DrawingCommand command = random.nextBoolean()
+                        ? DrawingCommand.fill(1 + random.nextInt(5), 1 + random.nextInt(5), random.nextInt(16))
+                        : new DrawingCommand(Direction.values()[random.nextInt(4)], random.nextInt(4),
+                        random.nextBoolean(), random.nextInt(16));
+                String edited;
+                try {
+                    int op = random.nextInt(3);
+                    if (op == 0) {
+                        editor.set(random.nextInt(n), command);
+                    } else if (op == 1) {
+                        editor.insert(random.nextInt(n + 1), command);
+                    } else {
+                        editor.remove(random.nextInt(n));
+                    }
+                    edited = editor.getImage().toString();
+                } catch (BadCommand e) {
+                    edited = null;
+                }
+                assertEquals(drawAgain(d), edited);
+            }
+        }
+
+        @Test
+        public void unchangedStopsAtSnapshot() throws BadCommand
+        {
+            Image image = new SyntheticImages(1).colours(6).noise(0.01).islands(40).stripePeriod(16).generate(256, 256);
+            Drawing d = AnytimeCompressor.runLengthEncode(image, 0, false);
+            DrawingEditor editor = new DrawingEditor(d, 64);
+            editor.getImage();
+            // Setting a command to itself draws no further than the next snapshot.
+            int index = d.commands.size() / 3;
+            long before = editor.getReplayed();
+            assertEquals(image.toString(), editor.set(index, d.commands.get(index)).toString());
+            assertTrue(editor.getReplayed() - before <= 64);
+        }
+
+        /**
+         * Draw a copy of a drawing from its first command.
+         *
+         * @param d The drawing.
+         * @return The image as a string, or null if it cannot be drawn.
+         */
+        private static String drawAgain(Drawing d)
+        {
+            Drawing copy = new Drawing(d.height, d.width, d.background);
+            for (DrawingCommand c : d.commands) {
+                copy.addCommand(c);
+            }
+            try {
+                return copy.draw().toString();
+            } catch (BadCommand e) {
+                return null;
+            }
+        }
+    }
+
+    public static class PaletteCacheTests
+    {
+        @Test
+        public void recolouredImagesHit() throws BadCommand
+        {
+            PaletteCache cache = new PaletteCache();
+            Image base = new SyntheticImages(4).colours(5).noise(0.01).islands(12).stripePeriod(5).generate(40, 48);
+            assertEquals(base.toString(), base.compressCached(cache).draw().toString());
+            int[] map = new int[16];
+            for (int v = 1; v <= 3; v++) {
+                for (int c = 0; c < 16; c++) {
+                    map[c] = (c * 7 + v) % 16;
+                }
+                Image variant = recolour(base, map);
+                assertEquals(variant.toString(), variant.compressCached(cache).draw().toString());
+            }
+            assertEquals(3, cache.getHits());
+            assertEquals(1, cache.getMisses());
+
+            // Merging two colours changes the shapes, so it is not a hit.
+            map[1] = map[2];
+            Image merged = recolour(base, map);
+            assertEquals(merged.toString(), merged.compressCached(cache).draw().toString());
+            assertEquals(2, cache.getMisses());
+        }
+
+        @Test
+        public void leastRecentlyUsedDropped() throws BadCommand
+        {
+            PaletteCache cache = new PaletteCache(1);
+            Image a = new SyntheticImages(1).colours(3).islands(4).generate(20, 20);
+            Image b = new SyntheticImages(2).colours(3).islands(4).generate(20, 20);
+            for (Image image : new Image[]{a, a, b, a}) {
+                assertEquals(image.toString(), image.compressCached(cache).draw().toString());
+            }
+            assertEquals(1, cache.getHits());
+            assertEquals(3, cache.getMisses());
+        }
+
+        @Test
+        public void drawWithMap() throws BadCommand
+        {
+            Image image = new SyntheticImages(6).colours(8).noise(0.02).islands(10).generate(30, 30);
+            int[] map = new int[16];
+            for (int c = 0; c < 16; c++) {
+                map[c] = 15 - c;
+            }
+            assertEquals(recolour(image, map).toString(), image.compress().draw(map).toString());
+        }
+
+        /**
+         * Change the colour of every pixel of an image through a table.
+         *
+         * @param image The image.
+         * @param map The new colour for each of the 16 colours.
+         * @return The recoloured copy.
+         */
+        private static Image recolour(Image image, int[] map) throws BadCommand
+        {
+            Image copy = new Image(image.getHeight(), image.getWidth(), 0);
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    copy.set(x, y, map[image.getColor(x, y)]);
+                }
+            }
+            return copy;
+        }
+    }
+
+    public static class DrawingVerifierTests
+    {
+        @Test
+        public void firstMismatch() throws BadCommand
+        {
+            Image image = new Image("./pixel-art2");
+            Drawing d = image.compress();
+            assertEquals(null, DrawingVerifier.verify(d, image));
+            int colour = image.getColor(5, 5);
+            image.set(5, 5, (colour + 1) % 16);
+            Mismatch m = DrawingVerifier.verify(d, image);
+            assertEquals(5, m.x);
+            assertEquals(5, m.y);
+            assertEquals((colour + 1) % 16, m.expected);
+            assertEquals(colour, m.actual);
+
+            Mismatch background = DrawingVerifier.verify(new Drawing(2, 3, 1), new Image(2, 3, 0));
+            assertEquals(-1, background.command);
+            assertEquals(1, background.actual);
+        }
+
+        @Test
+        public void agreesWithDraw() throws BadCommand
+        {
+            Random random = new Random(2);
+            for (int t = 0; t < 2000; t++) {
+                int height = 1 + random.nextInt(10);
+                int width = 1 + random.nextInt(10);
+                Drawing d = new Drawing(height, width, random.nextInt(3));
+                for (int i = random.nextInt(20); i > 0; i--) {
+                    d.addCommand(Direction.values()[random.nextInt(4)], random.nextInt(4),
+                            random.nextBoolean(), random.nextInt(3));
+                }
+                Image drawn;
+                try {
+                    drawn = d.draw();
+                } catch (BadCommand e) {
+                    drawn = null;
+                }
+                Image image = new Image(height, width, 0);
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        image.set(x, y, drawn != null && random.nextInt(20) > 0 ? drawn.getColor(x, y) : random.nextInt(3));
+                    }
+                }
+                try {
+                    Mismatch m = DrawingVerifier.verify(d, image);
+                    assertTrue(drawn != null);
+                    assertEquals(drawn.pixelsEqual(image), m == null);
+                    if (m != null) {
+                        assertEquals(drawn.getColor(m.x, m.y), m.actual);
+                        assertEquals(image.getColor(m.x, m.y), m.expected);
+                        assertTrue(m.actual != m.expected);
+                    }
+                } catch (BadCommand e) {
+                    assertEquals(null, drawn);
+                }
+            }
+        }
+    }
+
+    public static class DrawingCompilerTests
+    {
+        @Test
+        public void compiledPaintsTheSame() throws BadCommand
+        {
+            List<Drawing> drawings = new ArrayList<Drawing>();
+            for (Object[] f : CompressorTestWithScore.data()) {
+                drawings.add(new Image((String) f[0]).compress());
+            }
+            drawings.addAll(SingleTests.versions());
+            for (Drawing d : drawings) {
+                DrawingCompiler.Program p = DrawingCompiler.compile(d);
+                assertTrue(p != DrawingCompiler.NOT_COMPILED);
+                int[][] pixels = new int[d.height][d.width];
+                for (int[] row : pixels) {
+                    Arrays.fill(row, d.background);
+                }
+                p.paint(pixels);
+                Image drawn = d.draw();
+                for (int y = 0; y < d.height; y++) {
+                    for (int x = 0; x < d.width; x++) {
+                        assertEquals(drawn.getColor(x, y), pixels[y][x]);
+                    }
+                }
+            }
+        }
+
+        @Test
+        public void outsideNotCompiled()
+        {
+            Drawing d = new Drawing(4, 4, 0);
+            d.addCommand(Direction.RIGHT, 2, true, 5);
+            d.addCommand(Direction.DOWN, 6, true, 5);
+            assertTrue(DrawingCompiler.compile(d) == DrawingCompiler.NOT_COMPILED);
+            for (int i = 0; i <= DrawingCompiler.THRESHOLD; i++) {
+                try {
+                    d.draw();
+                    fail();
+                } catch (BadCommand e) {
+                    assertEquals("BadCommand: Cannot be drawn at coordinate: (2,4)", e.toString());
+                }
+            }
+        }
+
+        @Test
+        public void changedDrawingRecompiled() throws BadCommand
+        {
+            Drawing d = new Drawing(6, 6, 0);
+            d.addCommand(Direction.RIGHT, 5, true, 3);
+            d.addCommand(Direction.DOWN, 2, true, 4);
+            for (int i = 0; i <= DrawingCompiler.THRESHOLD; i++) {
+                d.draw();
+            }
+            d.addCommand(Direction.LEFT, 3, true, 9);
+            assertEquals("033333\n000004\n009994\n000000\n000000\n000000\n", d.draw().toString());
+            d.commands.remove(1);
+            assertEquals("039993\n000000\n000000\n000000\n000000\n000000\n", d.draw().toString());
+        }
+    }
+
+    public static class RoutePlannerTests
+    {
+        @Test
+        public void samePictureNoLonger() throws BadCommand
+        {
+            Random random = new Random(7);
+            for (int t = 0; t < 300; t++) {
+                Drawing d = new Drawing(20, 20, 0);
+                int x = 0;
+                int y = 0;
+                for (int i = random.nextInt(40); i > 0; i--) {
+                    Direction dir = Direction.values()[random.nextInt(4)];
+                    int room = dir == Direction.UP ? y : dir == Direction.DOWN ? 19 - y
+                            : dir == Direction.LEFT ? x : 19 - x;
+                    int distance = random.nextInt(Math.min(room, 6) + 1);
+                    d.addCommand(dir, distance, random.nextInt(4) > 0, 1 + random.nextInt(2));
+                    DrawingCommand c = d.commands.get(d.commands.size() - 1);
+                    x += c.moveX();
+                    y += c.moveY();
+                }
+
+                RoutePlanner planner = new RoutePlanner(System.nanoTime() + 1000000000L);
+                Drawing planned = new Drawing(20, 20, 0);
+                planned.commands = planner.plan(d.commands, 0, 0);
+                assertEquals(d.draw().toString(), planned.draw().toString());
+                assertTrue(planned.commands.size() <= d.commands.size());
+                assertTrue(planner.isFinished());
+
+                int endX = 0;
+                int endY = 0;
+                for (DrawingCommand c : planned.commands) {
+                    endX += c.moveX();
+                    endY += c.moveY();
+                }
+                assertEquals(endX, planner.getEndX());
+                assertEquals(endY, planner.getEndY());
+            }
+        }
+
+        @Test
+        public void scatteredPixelsReordered() throws BadCommand
+        {
+            // Pixels painted left, right, left, right are joined up in order.
+            Drawing d = new Drawing(1, 10, 0);
+            int x = 0;
+            for (int to : new int[]{1, 9, 2, 8, 3, 7}) {
+                if (to - 1 != x) {
+                    d.addCommand(to - 1 > x ? Direction.RIGHT : Direction.LEFT, Math.abs(to - 1 - x), false, 0);
+                }
+                d.addCommand(Direction.RIGHT, 1, true, 4);
+                x = to;
+            }
+            Drawing planned = new Drawing(1, 10, 0);
+            planned.commands = new RoutePlanner(System.nanoTime() + 1000000000L).plan(d.commands, 0, 0);
+            assertEquals(11, d.getCommandCount());
+            assertEquals(7, planned.getCommandCount());
+            assertEquals("0444000444\n", planned.draw().toString());
+        }
+
+        @Test
+        public void repeatsNotPlanned()
+        {
+            List<DrawingCommand> commands = new ArrayList<DrawingCommand>();
+            commands.add(DrawingCommand.repeat(2, Arrays.asList(new DrawingCommand(Direction.RIGHT, 1, true, 3))));
+            assertEquals(null, new RoutePlanner(System.nanoTime()).plan(commands, 0, 0));
+        }
+    }
+
+    public static class StreamingCompressorTests
+    {
+        @Test
+        public void bandsDrawTheImage() throws IOException, BadCommand
+        {
+            for (Object[] f : CompressorTestWithScore.data()) {
+                for (int band : new int[]{1, 7, 64}) {
+                    StringWriter out = new StringWriter();
+                    new StreamingCompressor((String) f[0], band).compress(out);
+                    Drawing d = SingleTests.read(out.toString().getBytes(StandardCharsets.UTF_8));
+                    assertEquals(new Image((String) f[0]).toString(), d.draw().toString());
+                }
+            }
+        }
+
+        @Test
+        public void badFilesThrow() throws IOException
+        {
+            String[][] cases = {
+                    {"12\n3x\n", "2:2"},
+                    {"12\n1\n", "2:2"},
+                    {"\n1\n", "1:1"},
+                    {"", "1:1"}};
+            Path file = Files.createTempFile("image", "");
+            try {
+                for (String[] c : cases) {
+                    Files.write(file, c[0].getBytes(StandardCharsets.UTF_8));
+                    try {
+                        new StreamingCompressor(file.toString(), 4);
+                        fail();
+                    } catch (FormatException e) {
+                        assertEquals(c[1], e.getLine() + ":" + e.getColumn());
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(file);
+            }
+            try {
+                new StreamingCompressor(file.toString(), 4);
+                fail();
+            } catch (FileNotFoundException e) {
+                // The file has been deleted.
+            }
+        }
+    }
+
+    public static class WorkerTests
+    {
+        @Test
+        public void jobs() throws IOException
+        {
+            Path directory = Files.createTempDirectory("worker");
+            try {
+                String image = new Image("./test-image3").toString();
+                String file = directory.resolve("image").toString();
+                Files.write(Paths.get(file), image.getBytes(StandardCharsets.UTF_8));
+                for (String job : new String[]{"compress " + file, "draw " + file + ".drawing",
+                        "png " + file, "import " + file + ".png"}) {
+                    assertTrue(Worker.run(job).startsWith("ok " + job + " "));
+                }
+                assertEquals(image, read(file + ".drawing.image"));
+                assertEquals(image, read(file + ".png.image"));
+
+                String bad = directory.resolve("bad").toString();
+                Files.write(Paths.get(bad), "12\n3x\n".getBytes(StandardCharsets.UTF_8));
+                assertEquals("error compress " + bad + " 2:2 Invalid contents: x on line 2", Worker.run("compress " + bad));
+                assertTrue(!Files.exists(Paths.get(bad + ".drawing")));
+                assertTrue(Worker.run("compress " + directory.resolve("missing")).startsWith("error "));
+                assertEquals("error compress 0:0 Bad job (should be an action and a file)", Worker.run("compress"));
+                assertTrue(Worker.run("scale " + file).startsWith("error scale " + file + " 0:0 Bad action"));
+            } finally {
+                DrawingArchiveTests.delete(directory);
+            }
+        }
+
+        /**
+         * Read the whole of a file written by a job.
+         *
+         * @param file The file.
+         * @return Its text.
+         */
+        private static String read(String file) throws IOException
+        {
+            return new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+        }
+    }
+
+    public static class PngReaderTests
+    {
+        @Test
+        public void importRoundTrip() throws IOException
+        {
+            Path file = Files.createTempFile("image", ".png");
+            try {
+                for (Object[] f : CompressorTestWithScore.data()) {
+                    Image image = new Image((String) f[0]);
+                    try (OutputStream out = Files.newOutputStream(file)) {
+                        image.writePNG(out);
+                    }
+                    assertEquals(image.toString(), Image.readPNG(file.toString()).toString());
+                }
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        @Test
+        public void decodedTypes()
+        {
+            Image image = new SyntheticImages(8).colours(16).noise(0.05).islands(6).generate(23, 37);
+            byte[] r = new byte[16];
+            byte[] g = new byte[16];
+            byte[] b = new byte[16];
+            for (int c = 0; c < 16; c++) {
+                r[c] = (byte) (Image.colours[c] >> 16);
+                g[c] = (byte) (Image.colours[c] >> 8);
+                b[c] = (byte) Image.colours[c];
+            }
+            List<BufferedImage> decoded = new ArrayList<BufferedImage>();
+            for (int type : new int[]{BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+                    BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR}) {
+                decoded.add(new BufferedImage(image.getWidth(), image.getHeight(), type));
+            }
+            decoded.add(new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_INDEXED,
+                    new IndexColorModel(8, 16, r, g, b)));
+            for (BufferedImage im : decoded) {
+                for (int y = 0; y < image.getHeight(); y++) {
+                    for (int x = 0; x < image.getWidth(); x++) {
+                        im.setRGB(x, y, Image.colours[image.getColor(x, y)]);
+                    }
+                }
+                assertEquals(image.toString(), PngReader.fromBufferedImage(im).toString());
+            }
+        }
+
+        @Test
+        public void nearestColour()
+        {
+            for (int c = 0; c < 16; c++) {
+                assertEquals(c, PngReader.nearest(Image.colours[c]));
+            }
+            assertEquals(1, PngReader.nearest(0x0000a0));
+            assertEquals(10, PngReader.nearest(0x50f050));
+            assertEquals(6, PngReader.nearest(0xa05a08));
+            assertEquals(15, PngReader.nearest(0xfff0ff));
+        }
+
+        @Test
+        public void badFiles() throws IOException
+        {
+            try {
+                Image.readPNG("./test-image1");
+                fail();
+            } catch (FormatException e) {
+                assertEquals(1, e.getLine());
+            }
+            try {
+                Image.readPNG("./no-such-image.png");
+                fail();
+            } catch (FileNotFoundException e) {
+                // Reported before ImageIO is asked.
+            }
+        }
+    }
+
+    public static class RepeatTests
+    {
+        @Test
+        public void nestedRepeatsDrawExpanded() throws IOException, BadCommand
+        {
+            Drawing d = SingleTests.read(("v3\n6\n8\n0\nrepeat 2 {\n  repeat 3 {\n    right 1 5\n  }\n"
+                    + "  down 1 6\n}\nrepeat 0 {\n  right 50 1\n}\nleft 2 7\n").getBytes(StandardCharsets.UTF_8));
+            Drawing expanded = new Drawing(6, 8, 0);
+            for (int i = 0; i < 2; i++) {
+                for (int j = 0; j < 3; j++) {
+                    expanded.addCommand(Direction.RIGHT, 1, true, 5);
+                }
+                expanded.addCommand(Direction.DOWN, 1, true, 6);
+            }
+            expanded.addCommand(Direction.LEFT, 2, true, 7);
+            assertEquals(3, d.getVersion());
+            assertEquals(7, d.getCommandCount());
+            assertEquals(expanded.draw().toString(), d.draw().toString());
+
+            ByteArrayOutputStream binary = new ByteArrayOutputStream();
+            d.writeBinary(binary);
+            for (byte[] bytes : new byte[][]{d.toString().getBytes(StandardCharsets.UTF_8), binary.toByteArray()}) {
+                Drawing read = SingleTests.read(bytes);
+                assertEquals(d.toString(), read.toString());
+                assertEquals(expanded.draw().toString(), read.draw().toString());
+            }
+        }
+
+        @Test
+        public void badRepeats()
+        {
+            String[][] cases = {
+                    {"v3\n2\n2\n0\nrepeat 2 {\nright 1 1\n", "7:1"},
+                    {"v3\n2\n2\n0\nrepeat x {\n}\n", "5:8"},
+                    {"v3\n2\n2\n0\nrepeat -1 {\n}\n", "5:8"},
+                    {"v3\n2\n2\n0\nrepeat 2\n", "5:1"},
+                    {"v2\n2\n2\n0\nrepeat 2 {\n}\n", "5:1"}};
+            for (String[] c : cases) {
+                try {
+                    SingleTests.read(c[0].getBytes(StandardCharsets.UTF_8));
+                    fail(c[0]);
+                } catch (FormatException e) {
+                    assertEquals(c[1], e.getLine() + ":" + e.getColumn());
+                } catch (IOException e) {
+                    fail(e.toString());
+                }
+            }
+        }
+    }
+
+    public static class MappedCanvasTests
+    {
+        @Test
+        public void oneColumn() throws IOException, BadCommand
+        {
+            Path file = Files.createTempFile("canvas", ".cnv");
+            try {
+                try (Image image = Image.createMapped(file.toString(), 5, 1, 3)) {
+                    image.set(0, 4, 9);
+                }
+                try (Image image = Image.openMapped(file.toString())) {
+                    assertEquals("3\n3\n3\n3\n9\n", image.toString());
+                }
+
+                String text = "5\n1\n3\ndown 1\ndown 3 c\n";
+                Image expected = new Drawing(5, 1, 3).draw();
+                for (int y = 1; y < 4; y++) {
+                    expected.set(0, y + 1, 12);
+                }
+                try (MappedCanvas canvas = StreamingRenderer.render(
+                        new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), file.toString())) {
+                    assertEquals(expected.toString(), new Image(canvas).toString());
+                }
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        @Test
+        public void renderDrawings() throws IOException, BadCommand
+        {
+            Path file = Files.createTempFile("canvas", ".cnv");
+            try {
+                for (Drawing d : SingleTests.versions()) {
+                    byte[] text = d.toString().getBytes(StandardCharsets.UTF_8);
+                    try (MappedCanvas canvas = StreamingRenderer.render(new ByteArrayInputStream(text), file.toString())) {
+                        assertEquals(d.draw().toString(), new Image(canvas).toString());
+                        StringWriter hex = new StringWriter();
+                        canvas.writeHex(hex);
+                        assertEquals(d.draw().toString(), hex.toString());
+                    }
+                }
+
+                byte[] outside = "3\n3\n0\nright 2 1\ndown 3 1\n".getBytes(StandardCharsets.UTF_8);
+                try {
+                    StreamingRenderer.render(new ByteArrayInputStream(outside), file.toString()).close();
+                    fail();
+                } catch (BadCommand e) {
+                    assertEquals("BadCommand: Cannot be drawn at coordinate: (2,3)", e.toString());
+                }
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    public static class CompressionServiceTests
+    {
+        @Test
+        public void compressAndDraw() throws IOException, BadCommand
+        {
+            CompressionService service = new CompressionService(0, 2);
+            try {
+                Image image = new Image("./test-image3");
+                String drawing = post(service, "/compress", image.toString(), 200);
+                assertEquals(image.toString(), SingleTests.read(drawing.getBytes(StandardCharsets.UTF_8)).draw().toString());
+                assertEquals(image.toString(), post(service, "/draw", drawing, 200));
+                post(service, "/draw", "2\n2\n0\nright 3 1\n", 422);
+            } finally {
+                service.stop();
+            }
+        }
+
+        @Test
+        public void tooLarge() throws IOException
+        {
+            CompressionService service = new CompressionService(0, 1);
+            try {
+                post(service, "/draw", "100000\n100000\n0\n", 413);
+                post(service, "/compress", "0".repeat(5000) + "\n" + "0".repeat(5000) + "\n".repeat(4000), 413);
+                post(service, "/png", "01\n".repeat((1 << 25) / 3 + 1), 413);
+            } finally {
+                service.stop();
+            }
+        }
+
+        /**
+         * Post a request to the service and check its status.
+         *
+         * @param service The service.
+         * @param path The endpoint.
+         * @param body The request body.
+         * @param status The status expected.
+         * @return The response body.
+         */
+        private static String post(CompressionService service, String path, String body, int status)
+                throws IOException
+        {
+            HttpURLConnection c = (HttpURLConnection) new URL("http://127.0.0.1:" + service.getPort() + path)
+                    .openConnection();
+            c.setRequestMethod("POST");
+            c.setDoOutput(true);
+            try (OutputStream out = c.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                // The service may answer before reading the whole body.
+            }
+            assertEquals(status, c.getResponseCode());
+            try (InputStream in = status == 200 ? c.getInputStream() : c.getErrorStream()) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    public static class DrawingArchiveTests
+    {
+        @Test
+        public void packAndUnpack() throws IOException, BadCommand
+        {
+            Path from = Files.createTempDirectory("pack");
+            Path archive = Files.createTempFile("drawings", ".dra");
+            Path to = Files.createTempDirectory("unpack");
+            try {
+                Files.createDirectories(from.resolve("sprites"));
+                Files.copy(Paths.get("./test-drawing/test-drawing1"), from.resolve("test-drawing"));
+                Files.write(from.resolve("sprites/image1"),
+                        new Image("./test-image1").compress().toString().getBytes(StandardCharsets.UTF_8));
+                assertEquals(2, DrawingArchive.pack(from, archive.toString()));
+
+                try (DrawingArchive a = new DrawingArchive(archive.toString())) {
+                    assertEquals(Arrays.asList("sprites/image1", "test-drawing"), a.names());
+                    assertEquals(Drawing.read("./test-drawing/test-drawing1").toString(), a.get("test-drawing").toString());
+                    assertEquals(new Image("./test-image1").toString(), a.get("sprites/image1").draw().toString());
+
+                    // Into a directory given relative to the working directory.
+                    Path relative = Paths.get("").toAbsolutePath().relativize(to);
+                    a.unpack(relative);
+                    assertEquals(a.get("sprites/image1").toString(),
+                            new String(Files.readAllBytes(to.resolve("sprites/image1")), StandardCharsets.UTF_8));
+                }
+            } finally {
+                delete(from);
+                delete(to);
+                Files.deleteIfExists(archive);
+            }
+        }
+
+        @Test
+        public void unpackIntoWorkingDirectory() throws IOException
+        {
+            String name = "unpack-test-" + System.nanoTime() + "/drawing";
+            Path archive = Files.createTempFile("drawings", ".dra");
+            try {
+                DrawingArchive.write(archive.toString(), Arrays.asList(name),
+                        Arrays.asList(Drawing.read("./test-drawing/test-drawing1")));
+                try (DrawingArchive a = new DrawingArchive(archive.toString())) {
+                    a.unpack(Paths.get("."));
+                }
+                assertTrue(Files.isRegularFile(Paths.get(name)));
+            } finally {
+                delete(Paths.get(name).getParent());
+                Files.deleteIfExists(archive);
+            }
+        }
+
+        @Test
+        public void entryOutsideDirectory() throws IOException
+        {
+            Path archive = Files.createTempFile("drawings", ".dra");
+            Path to = Files.createTempDirectory("unpack");
+            String outside = "../" + to.getFileName() + "-outside";
+            try {
+                DrawingArchive.write(archive.toString(), Arrays.asList(outside),
+                        Arrays.asList(Drawing.read("./test-drawing/test-drawing1")));
+                try (DrawingArchive a = new DrawingArchive(archive.toString())) {
+                    a.unpack(to);
+                    fail("Unpacked an entry outside of the directory");
+                } catch (IOException e) {
+                    assertTrue(e.getMessage(), e.getMessage().startsWith("Entry outside of the directory"));
+                }
+                assertTrue(!Files.exists(to.resolve(outside).normalize()));
+            } finally {
+                delete(to);
+                Files.deleteIfExists(archive);
+            }
+        }
+
+        /**
+         * Delete a directory and everything in it.
+         *
+         * @param directory The directory.
+         */
+        static void delete(Path directory) throws IOException
+        {
+            if (!Files.exists(directory)) {
+                return;
+            }
+            try (Stream<Path> walk = Files.walk(directory)) {
+                for (Path p : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(p);
+                }
+            }
+        }
+    }
+
+    public static class PngTests
+    {
+        @Test
+        public void readBack() throws IOException
+        {
+            for (Object[] f : CompressorTestWithScore.data()) {
+                Image image = new Image((String) f[0]);
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                image.writePNG(png);
+                assertSame(image, ImageIO.read(new ByteArrayInputStream(png.toByteArray())));
+            }
+        }
+
+        @Test
+        public void readBackInChunks() throws IOException
+        {
+            // An odd width, and enough rows for several chunks, each primed
+            // with the window of the one before.
+            Image image = new SyntheticImages(1).colours(16).noise(0.01).islands(300).generate(1025, 1023);
+            for (boolean parallel : new boolean[]{false, true}) {
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                PngWriter.write(png, image.getHeight(), image.getWidth(),
+                        (y, row) -> System.arraycopy(image.getRow(y, row), 0, row, 0, row.length), parallel);
+                assertSame(image, ImageIO.read(new ByteArrayInputStream(png.toByteArray())));
+            }
+        }
+
+        @Test
+        public void toPNG() throws IOException
+        {
+            Path file = Files.createTempFile("image", "");
+            try {
+                Image image = new Image("./pixel-art2");
+                image.toPNG(file.toString());
+                assertSame(image, ImageIO.read(new File(file + ".png")));
+            } finally {
+                Files.deleteIfExists(Paths.get(file + ".png"));
+                Files.deleteIfExists(file);
+            }
+        }
+
+        /**
+         * Check that a decoded PNG has every pixel of an image in its colour.
+         *
+         * @param image The image.
+         * @param im The PNG, as decoded by ImageIO.
+         */
+        private static void assertSame(Image image, BufferedImage im)
+        {
+            assertEquals(image.getHeight(), im.getHeight());
+            assertEquals(image.getWidth(), im.getWidth());
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    assertEquals("(" + x + "," + y + ")", Image.colours[image.getColor(x, y)],
+                            im.getRGB(x, y) & 0xffffff);
+                }
+            }
+        }
     }
 }
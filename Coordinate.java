@@ -0,0 +1,42 @@
+/**
+ * Coordinate Class.
+ */
+class Coordinate
+{
+    int x;
+    int y;
+
+    /**
+     * Provide x and y values for the Coordinate object.
+     *
+     * @param x
+     * @param y
+     */
+    public Coordinate(int x, int y)
+    {
+        this.x = x;
+        this.y = y;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * x + y;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (obj instanceof Coordinate) {
+            Coordinate c = (Coordinate) obj;
+            return c.x == this.x && c.y == this.y;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString()
+    {
+        return x + "," + y;
+    }
+}
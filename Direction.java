@@ -0,0 +1,40 @@
+/**
+ * Direction Enum Class.
+ */
+enum Direction
+{
+    UP(0, -1) {
+        public String toString()
+        {
+            return "up";
+        }
+    },
+    DOWN(0, 1) {
+        public String toString()
+        {
+            return "down";
+        }
+    },
+    LEFT(-1, 0) {
+        public String toString()
+        {
+            return "left";
+        }
+    },
+    RIGHT(1, 0) {
+        public String toString()
+        {
+            return "right";
+        }
+    };
+
+    // The change in x and y for each step in this direction.
+    final int dx;
+    final int dy;
+
+    Direction(int dx, int dy)
+    {
+        this.dx = dx;
+        this.dy = dy;
+    }
+}
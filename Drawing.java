@@ -1,140 +1,13 @@
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
-
-/**
- * Direction Enum Class.
- */
-enum Direction
-{
-    UP {
-        public String toString()
-        {
-            return "up";
-        }
-    },
-    DOWN {
-        public String toString()
-        {
-            return "down";
-        }
-    },
-    LEFT {
-        public String toString()
-        {
-            return "left";
-        }
-    },
-    RIGHT {
-        public String toString()
-        {
-            return "right";
-        }
-    }
-}
-
-/**
- * DrawingCommand Class.
- *
- * A single drawing command. Which direction to go in, how far to move, and
- * whether to paint all of the spaces in-between, or leave them as-is. Also
- * indicate which colour if painting.
- */
-class DrawingCommand
-{
-    public Direction dir;
-    public int distance;
-    public boolean paint;
-    public int colour;
-
-    // Reads in a Drawing commands from a string
-    // The format should be "direction distance colour" or "direction distance"
-    // if moving without painting, for example
-    // left 10 3
-    // up 1
-    // up 2 c
-
-    /**
-     * Reads in Drawing commands from a string.
-     * The format should be "direction distance colour" or "direction distance"
-     * if moving without painting for example.
-     *
-     * @param s The string of Drawing commands to be read.
-     */
-    public DrawingCommand(String s)
-    {
-        // Split the string by whitespace
-        String[] elems = s.split("\\s");
-
-        if (elems.length != 3 && elems.length != 2) {
-            System.out.println("Bad command (should have 2 or 3 parts): " + s);
-            System.exit(1);
-        }
-
-        if (elems[0].equals("up"))
-            dir = Direction.UP;
-        else if (elems[0].equals("down"))
-            dir = Direction.DOWN;
-        else if (elems[0].equals("left"))
-            dir = Direction.LEFT;
-        else if (elems[0].equals("right"))
-            dir = Direction.RIGHT;
-        else {
-            System.out.println("Bad direction (should be up, down, left, or right): " + elems[0]);
-            System.exit(1);
-        }
-
-        try {
-            distance = Integer.parseInt(elems[1]);
-        } catch (NumberFormatException e) {
-            System.out.println("Bad distance (should be a number): " + elems[1]);
-            System.exit(1);
-        }
-        // Check for the optional colour
-        if (elems.length == 2)
-            paint = false;
-        else {
-            paint = true;
-            try {
-                colour = Integer.parseInt(elems[2], 16);
-                if (colour < 0 || colour > 15)
-                    throw new NumberFormatException();
-            } catch (NumberFormatException e) {
-                System.out.println("Bad colour (should be a hex number betweeen 0 and f): " + elems[2]);
-                System.exit(1);
-            }
-        }
-    }
-
-    /**
-     * Custom toString method.
-     *
-     * @return A string for a single Drawing command.
-     */
-    public String toString()
-    {
-        return (dir.toString() + " " + distance + " " + (paint ? Integer.toHexString(colour) : ""));
-    }
-}
-
-/**
- * BadCommand Class.
- */
-class BadCommand extends Exception
-{
-    /**
-     * Returns an error message.
-     *
-     * @param x The value of x.
-     * @param y The value of y.
-     */
-    public BadCommand(int x, int y)
-    {
-        super("Cannot be drawn at coordinate: (" + x + "," + y + ")");
-    }
-}
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
 
 // Represent a picture as the height and width, and a sequence of drawing
 // commands to build it. Also has an initial background colour. Each command
@@ -183,7 +56,16 @@ public class Drawing
     public int height;
     public int width;
     public int background;
-    ArrayList<DrawingCommand> commands;
+    // Held as a CommandBuffer unless replaced by another list.
+    List<DrawingCommand> commands;
+
+    // How many times the commands have been drawn, and the compiled form of
+    // them once they have been drawn often enough, for the list of commands
+    // they were compiled from and its count of changes.
+    private int replays;
+    private DrawingCompiler.Program program;
+    private List<DrawingCommand> programCommands;
+    private int programModCount;
 
     /**
      * Read in an ArrayList of drawing commands from a file. There should be
@@ -195,44 +77,40 @@ public class Drawing
      */
     public Drawing(String filename)
     {
-        commands = new ArrayList<DrawingCommand>();
         try {
-            BufferedReader in = new BufferedReader(new FileReader(filename));
-            String s = in.readLine();
-            try {
-                height = Integer.parseInt(s);
-            } catch (NumberFormatException e) {
-                System.out.println("Expected the height on the first line: " + s);
-                System.exit(1);
-            }
-
-            s = in.readLine();
-            try {
-                width = Integer.parseInt(s);
-            } catch (NumberFormatException e) {
-                System.out.println("Expected the width on the second line: " + s);
-                System.exit(1);
-            }
-
-            s = in.readLine();
-            try {
-                background = Integer.parseInt(s, 16);
-            } catch (NumberFormatException e) {
-                System.out.println("Expected the background colour on the third line: " + s);
-                System.exit(1);
-            }
-
-            for (s = in.readLine(); s != null; s = in.readLine()) {
-                commands.add(new DrawingCommand(s));
-            }
+            Drawing d = read(filename);
+            height = d.height;
+            width = d.width;
+            background = d.background;
+            commands = d.commands;
         } catch (FileNotFoundException e) {
             System.out.println("File not found: " + filename);
             System.exit(1);
+        } catch (FormatException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
         } catch (IOException e) {
             System.exit(2);
         }
     }
 
+    /**
+     * Read in a drawing from a file, in the text format read by
+     * Drawing(String) or the binary format written by writeBinary, throwing
+     * an exception rather than exiting if anything goes wrong.
+     *
+     * @param filename The file name containing the Drawing commands.
+     * @return The drawing.
+     * @throws FormatException If the file is not a valid drawing.
+     * @throws IOException If the file cannot be read.
+     */
+    public static Drawing read(String filename) throws IOException
+    {
+        try (DrawingReader reader = new DrawingReader(new FileInputStream(filename))) {
+            return reader.readAll();
+        }
+    }
+
     /**
      * Create an empty drawing of the given dimensions.
      *
@@ -246,7 +124,7 @@ public class Drawing
         width = w;
         assert (b >= 0 && b <= 15);
         background = b;
-        commands = new ArrayList<DrawingCommand>();
+        commands = new CommandBuffer();
     }
 
     /**
@@ -273,6 +151,113 @@ public class Drawing
         commands.add(c);
     }
 
+    /**
+     * Add a line command to the list of commands, without making an object
+     * for it if the commands are held in a CommandBuffer.
+     *
+     * @param dir The direction to move in.
+     * @param distance How far to move.
+     * @param paint True to paint the spaces moved over, false to just move.
+     * @param colour The colour to paint, if paint is true.
+     */
+    public void addCommand(Direction dir, int distance, boolean paint, int colour)
+    {
+        if (commands instanceof CommandBuffer) {
+            ((CommandBuffer) commands).add(dir, distance, paint, colour);
+        } else {
+            commands.add(new DrawingCommand(dir, distance, paint, colour));
+        }
+    }
+
+    /**
+     * Add a fill command to the list of commands, without making an object
+     * for it if the commands are held in a CommandBuffer.
+     *
+     * @param w The number of columns to paint, starting at the cursor.
+     * @param h The number of rows to paint, starting at the cursor.
+     * @param colour The colour to paint.
+     */
+    public void addFill(int w, int h, int colour)
+    {
+        if (commands instanceof CommandBuffer) {
+            ((CommandBuffer) commands).addFill(w, h, colour);
+        } else {
+            commands.add(DrawingCommand.fill(w, h, colour));
+        }
+    }
+
+    /**
+     * Get the oldest version of the drawing format that can hold this drawing.
+     *
+     * @return 3 if any command is a repeat, 2 if any command is a fill,
+     * otherwise 1.
+     */
+    public int getVersion()
+    {
+        int version = 1;
+        for (DrawingCommand command : commands) {
+            version = Math.max(version, command.getVersion());
+        }
+        return version;
+    }
+
+    /**
+     * Get the number of commands the drawing is written as, counting the
+     * commands in the body of a repeat once each, however many times they run.
+     *
+     * @return The number of commands.
+     */
+    public int getCommandCount()
+    {
+        int count = 0;
+        for (DrawingCommand command : commands) {
+            count += command.size();
+        }
+        return count;
+    }
+
+    /**
+     * Write the drawing out in the binary format read by DrawingReader.
+     *
+     * @param out The stream to write to.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void writeBinary(OutputStream out) throws IOException
+    {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.write(DrawingReader.MAGIC);
+        data.writeByte(getVersion());
+        data.writeInt(height);
+        data.writeInt(width);
+        data.writeByte(background);
+        for (DrawingCommand command : commands) {
+            writeBinary(data, command);
+        }
+        data.flush();
+    }
+
+    /**
+     * Write one command out in the binary format, followed by its body if it
+     * is a repeat.
+     *
+     * @param data The stream to write to.
+     * @param command The command.
+     * @throws IOException If the stream cannot be written.
+     */
+    private static void writeBinary(DataOutputStream data, DrawingCommand command) throws IOException
+    {
+        data.writeByte(command.toOp());
+        data.writeInt(command.distance);
+        if (command.fill) {
+            data.writeInt(command.rows);
+        } else if (command.body != null) {
+            data.writeInt(command.body.size());
+            for (DrawingCommand c : command.body) {
+                writeBinary(data, c);
+            }
+        }
+    }
+
     /**
      * Custom toString method for a list of Drawing commands.
      *
@@ -281,6 +266,9 @@ public class Drawing
     public String toString()
     {
         StringBuilder s = new StringBuilder();
+        if (getVersion() > 1) {
+            s.append("v" + getVersion() + "\n");
+        }
         s.append(height + "\n");
         s.append(width + "\n");
         s.append(Integer.toHexString(background) + "\n");
@@ -303,48 +291,525 @@ public class Drawing
      */
     public Image draw() throws BadCommand
     {
-        Coordinate cursor = new Coordinate(0,0);
-        Coordinate newCursor = new Coordinate(0,0);
-        Image newImage = new Image(height, width, background);
+        // Drawn into runs whether or not the drawing has been compiled yet,
+        // so the image is held the same way however often it is drawn. The
+        // interpreter paints whole spans into the runs, and a compiled drawing
+        // paints pixels that are read back into runs.
+        return draw(Image.createRuns(height, width, background), getProgram());
+    }
+
+    /**
+     * Draw the image with every colour changed through a table, which gives
+     * the same image as drawing and then changing the colour of each pixel.
+     *
+     * @param map The colour to draw in place of each of the 16 colours.
+     * @return An Image object.
+     * @throws BadCommand If any command tries to paint outside of the image.
+     */
+    public Image draw(int[] map) throws BadCommand
+    {
+        return remap(map).draw();
+    }
+
+    /**
+     * Make a copy of the drawing with every colour, the background's
+     * included, changed through a table. A table that gives each colour a
+     * different colour recolours the image without changing its shapes.
+     *
+     * @param map The new colour for each of the 16 colours.
+     * @return The recoloured drawing.
+     */
+    public Drawing remap(int[] map)
+    {
+        Drawing recoloured = new Drawing(height, width, map[background]);
+        if (commands instanceof CommandBuffer) {
+            recoloured.commands = ((CommandBuffer) commands).remap(map);
+        } else {
+            for (DrawingCommand command : commands) {
+                recoloured.addCommand(command.remap(map));
+            }
+        }
+        return recoloured;
+    }
+
+    /**
+     * Execute all of the drawing commands on top of an existing image, which
+     * may be held on the heap or in a memory mapped canvas. The image is not
+     * cleared to the background colour first.
+     *
+     * @param newImage The image to draw into.
+     * @return The same image, after drawing.
+     * @throws BadCommand If any command tries to paint outside of the image.
+     */
+    public Image draw(Image newImage) throws BadCommand
+    {
+        return draw(newImage, getProgram());
+    }
+
+    /**
+     * Execute all of the drawing commands on top of an existing image, using
+     * the compiled form of the drawing if there is one and the image can take it.
+     *
+     * @param newImage The image to draw into.
+     * @param p The compiled drawing, or null or NOT_COMPILED to interpret the commands.
+     * @return The same image, after drawing.
+     * @throws BadCommand If any command tries to paint outside of the image.
+     */
+    private Image draw(Image newImage, DrawingCompiler.Program p) throws BadCommand
+    {
+        if (p != null && p != DrawingCompiler.NOT_COMPILED
+                && newImage.getHeight() == height && newImage.getWidth() == width
+                && newImage.writePixels(p::paint)) {
+            return newImage;
+        }
+        draw(commands, newImage, new Coordinate(0,0), new Coordinate(0,0));
+        return newImage;
+    }
+
+    /**
+     * Count a replay of the drawing, compiling it once it has been drawn
+     * DrawingCompiler.THRESHOLD times. Any change to the commands, adding,
+     * removing or replacing one, starts the count again. Commands held in
+     * anything but a CommandBuffer cannot be told to have changed, so they
+     * are never compiled.
+     *
+     * @return The compiled drawing, DrawingCompiler.NOT_COMPILED if it cannot
+     * be compiled, or null if it has not been drawn often enough yet.
+     */
+    private DrawingCompiler.Program getProgram()
+    {
+        int modCount = commands instanceof CommandBuffer ? ((CommandBuffer) commands).getModCount() : -1;
+        if (programCommands != commands || programModCount != modCount || modCount < 0) {
+            programCommands = commands;
+            programModCount = modCount;
+            replays = 0;
+            program = null;
+        }
+        if (program == null && ++replays >= DrawingCompiler.THRESHOLD) {
+            program = DrawingCompiler.compile(this);
+        }
+        return program;
+    }
+
+    /**
+     * Execute a list of drawing commands, running the body of a repeat in
+     * place as many times as it asks rather than expanding it.
+     *
+     * @param commands The commands.
+     * @param newImage The image to draw into.
+     * @param cursor The cursor, which is moved by the commands.
+     * @param newCursor Where the cursor is moving to, the same as cursor
+     * between commands.
+     * @throws BadCommand If any command tries to paint outside of the image.
+     */
+    private static void draw(List<DrawingCommand> commands, Image newImage, Coordinate cursor, Coordinate newCursor)
+            throws BadCommand
+    {
+        if (commands instanceof CommandBuffer) {
+            // Read the packed commands, only making objects for repeats.
+            CommandBuffer buffer = (CommandBuffer) commands;
+            for (int i = 0; i < buffer.size(); i++) {
+                long c = buffer.getPacked(i);
+                int op = CommandBuffer.op(c);
+                if (op == CommandBuffer.OBJECT) {
+                    draw(buffer.getObject(c), newImage, cursor, newCursor);
+                } else if ((op & 8) != 0) {
+                    newImage.fillRect(cursor.x, cursor.y, CommandBuffer.distance(c), CommandBuffer.rows(c), op >>> 4);
+                } else {
+                    drawLine(CommandBuffer.dir(c), CommandBuffer.distance(c), (op & 4) != 0, op >>> 4,
+                            newImage, cursor, newCursor);
+                }
+            }
+            return;
+        }
         for (DrawingCommand command : commands) {
-            if (command.distance == 0) {
-                if (command.paint) {
-                    newImage.set(cursor.x, cursor.y, command.colour);
+            draw(command, newImage, cursor, newCursor);
+        }
+    }
+
+    /**
+     * Execute one drawing command, running the body of a repeat in place.
+     *
+     * @param command The command.
+     * @param newImage The image to draw into.
+     * @param cursor The cursor, which is moved by the command.
+     * @param newCursor Where the cursor is moving to.
+     * @throws BadCommand If the command tries to paint outside of the image.
+     */
+    static void draw(DrawingCommand command, Image newImage, Coordinate cursor, Coordinate newCursor)
+            throws BadCommand
+    {
+        if (command.body != null) {
+            for (int i = 0; i < command.distance; i++) {
+                draw(command.body, newImage, cursor, newCursor);
+            }
+        } else if (command.fill) {
+            newImage.fillRect(cursor.x, cursor.y, command.distance, command.rows, command.colour);
+        } else {
+            drawLine(command.dir, command.distance, command.paint, command.colour, newImage, cursor, newCursor);
+        }
+    }
+
+    /**
+     * Execute a line command, one that moves the cursor.
+     *
+     * @param dir The direction to move in.
+     * @param distance How far to move.
+     * @param paint True to paint the spaces moved over, false to just move.
+     * @param colour The colour to paint, if paint is true.
+     * @param newImage The image to draw into.
+     * @param cursor The cursor, which is moved by the command.
+     * @param newCursor Where the cursor is moving to.
+     * @throws BadCommand If the command tries to paint outside of the image.
+     */
+    private static void drawLine(Direction dir, int distance, boolean paint, int colour, Image newImage,
+            Coordinate cursor, Coordinate newCursor) throws BadCommand
+    {
+        if (distance == 0) {
+            if (paint) {
+                newImage.set(cursor.x, cursor.y, colour);
+            }
+        } else if (dir == Direction.UP) {
+            for (int i = 0; i < distance; i++) {
+                newCursor.y--;
+                if (paint) {
+                    newImage.set(cursor.x, newCursor.y, colour);
                 }
-            } else if (command.dir == Direction.UP) {
-                for (int i = 0; i < command.distance; i++) {
-                    newCursor.y--;
-                    if (command.paint) {
-                        newImage.set(cursor.x, newCursor.y, command.colour);
-                    }
+            }
+            cursor.y = newCursor.y;
+        } else if (dir == Direction.DOWN) {
+            for (int i = 0; i < distance; i++) {
+                newCursor.y++;
+                if (paint) {
+                    newImage.set(cursor.x, newCursor.y, colour);
                 }
-                cursor.y = newCursor.y;
-            } else if (command.dir == Direction.DOWN) {
-                for (int i = 0; i < command.distance; i++) {
-                    newCursor.y++;
-                    if (command.paint) {
-                        newImage.set(cursor.x, newCursor.y, command.colour);
-                    }
+            }
+            cursor.y = newCursor.y;
+        } else if (paint && insideRow(newImage, cursor, dir, distance)) {
+            // A line along a row inside the image is painted as one span.
+            int from = dir.dx > 0 ? cursor.x + 1 : cursor.x - distance;
+            newImage.fillRow(cursor.y, from, from + distance, colour);
+            newCursor.x += dir.dx * distance;
+            cursor.x = newCursor.x;
+        } else if (dir == Direction.LEFT) {
+            for (int i = 0; i < distance; i++) {
+                newCursor.x--;
+                if (paint) {
+                    newImage.set(newCursor.x, cursor.y, colour);
                 }
-                cursor.y = newCursor.y;
-            } else if (command.dir == Direction.LEFT) {
-                for (int i = 0; i < command.distance; i++) {
-                    newCursor.x--;
-                    if (command.paint) {
-                        newImage.set(newCursor.x, cursor.y, command.colour);
-                    }
+            }
+            cursor.x = newCursor.x;
+        } else if (dir == Direction.RIGHT) {
+            for (int i = 0; i < distance; i++) {
+                newCursor.x++;
+                if (paint) {
+                    newImage.set(newCursor.x, cursor.y, colour);
+                }
+            }
+            cursor.x = newCursor.x;
+        }
+    }
+
+    /**
+     * Check whether a line along a row stays inside an image.
+     *
+     * @param image The image.
+     * @param cursor Where the line starts, which is not painted.
+     * @param dir Left or right.
+     * @param distance How far the line goes.
+     * @return True if the distance is above 0 and every pixel the line
+     * paints is inside the image.
+     */
+    private static boolean insideRow(Image image, Coordinate cursor, Direction dir, int distance)
+    {
+        long from = dir.dx > 0 ? cursor.x + 1L : (long) cursor.x - distance;
+        return distance > 0 && cursor.y >= 0 && cursor.y < image.getHeight()
+                && from >= 0 && from + distance <= image.getWidth();
+    }
+
+    /**
+     * Draw the image using several threads, giving exactly the same result as
+     * draw. The cursor position before each command and the rows it paints
+     * are worked out first, and each command is listed under every band of
+     * rows it lands in. The bands are then painted at the same time, each
+     * running only the parts of its own commands that land in it, in order.
+     *
+     * @return An Image object.
+     * @throws BadCommand If any command tries to paint outside of the picture,
+     * for the same coordinate that draw would report.
+     */
+    public Image drawParallel() throws BadCommand
+    {
+        // The commands are read out once, as a CommandBuffer makes a new
+        // object for each one read.
+        DrawingCommand[] list = commands.toArray(new DrawingCommand[0]);
+        int n = list.length;
+        int[] startX = new int[n];
+        int[] startY = new int[n];
+        trace(list, startX, startY);
+
+        // The first and last rows each command paints, and the commands of
+        // each band, a band at a time from members[first[band]].
+        int bands = Math.min(height, Runtime.getRuntime().availableProcessors() * 4);
+        int[] firstRow = new int[n];
+        int[] lastRow = new int[n];
+        int[] first = new int[bands + 1];
+        int[] span = new int[2];
+        for (int c = 0; c < n; c++) {
+            span[0] = Integer.MAX_VALUE;
+            span[1] = Integer.MIN_VALUE;
+            rowSpan(list[c], startX[c], startY[c], span);
+            firstRow[c] = span[0];
+            lastRow[c] = span[1];
+            if (span[0] <= span[1]) {
+                for (int band = bandOf(span[0], bands); band <= bandOf(span[1], bands); band++) {
+                    first[band + 1]++;
                 }
-                cursor.x = newCursor.x;
-            } else if (command.dir == Direction.RIGHT) {
-                for (int i = 0; i < command.distance; i++) {
-                    newCursor.x++;
-                    if (command.paint) {
-                        newImage.set(newCursor.x, cursor.y, command.colour);
-                    }
+            }
+        }
+        for (int band = 0; band < bands; band++) {
+            first[band + 1] += first[band];
+        }
+        int[] members = new int[first[bands]];
+        int[] next = Arrays.copyOf(first, bands);
+        for (int c = 0; c < n; c++) {
+            if (firstRow[c] <= lastRow[c]) {
+                for (int band = bandOf(firstRow[c], bands); band <= bandOf(lastRow[c], bands); band++) {
+                    members[next[band]++] = c;
                 }
-                cursor.x = newCursor.x;
             }
         }
+
+        Image newImage = new Image(height, width, background);
+        newImage.writePixels(pixels -> IntStream.range(0, bands).parallel().forEach(band -> {
+            int top = (int) ((long) height * band / bands);
+            int bottom = (int) ((long) height * (band + 1) / bands);
+            for (int i = first[band]; i < first[band + 1]; i++) {
+                int c = members[i];
+                paintBand(pixels, list[c], startX[c], startY[c], top, bottom);
+            }
+        }));
         return newImage;
     }
+
+    /**
+     * Find the band a row is in, where band b starts at row height * b / bands.
+     *
+     * @param row The row.
+     * @param bands The number of bands.
+     * @return The band.
+     */
+    private int bandOf(int row, int bands)
+    {
+        return (int) (((row + 1L) * bands - 1) / height);
+    }
+
+    /**
+     * Widen a span of rows to take in every row a command paints.
+     *
+     * @param command The command, which is known to stay inside the picture.
+     * @param x The x value of the cursor before the command.
+     * @param y The y value of the cursor before the command.
+     * @param span The first and last rows, which are widened.
+     */
+    private static void rowSpan(DrawingCommand command, int x, int y, int[] span)
+    {
+        if (command.body != null) {
+            for (int i = 0; i < command.distance; i++) {
+                for (DrawingCommand c : command.body) {
+                    rowSpan(c, x, y, span);
+                    x += c.moveX();
+                    y += c.moveY();
+                }
+            }
+            return;
+        }
+        if (!command.paint || command.distance < 0) {
+            return;
+        }
+        int from = y;
+        int to = y;
+        if (command.fill) {
+            if (command.distance <= 0 || command.rows <= 0) {
+                return;
+            }
+            to = y + command.rows - 1;
+        } else if (command.distance > 0 && command.dir.dy > 0) {
+            from = y + 1;
+            to = y + command.distance;
+        } else if (command.distance > 0 && command.dir.dy < 0) {
+            from = y - command.distance;
+            to = y - 1;
+        }
+        span[0] = Math.min(span[0], from);
+        span[1] = Math.max(span[1], to);
+    }
+
+    /**
+     * Work out where the cursor is before each command, checking that no
+     * command paints outside of the picture.
+     *
+     * @param startX Filled in with the x value of the cursor before each command.
+     * @param startY Filled in with the y value of the cursor before each command.
+     * @throws BadCommand For the same coordinate that draw would report.
+     */
+    void trace(int[] startX, int[] startY) throws BadCommand
+    {
+        trace(commands.toArray(new DrawingCommand[0]), startX, startY);
+    }
+
+    /**
+     * Work out where the cursor is before each of a list of commands.
+     *
+     * @param list The commands of the drawing.
+     * @param startX Filled in with the x value of the cursor before each command.
+     * @param startY Filled in with the y value of the cursor before each command.
+     * @throws BadCommand For the same coordinate that draw would report.
+     */
+    private void trace(DrawingCommand[] list, int[] startX, int[] startY) throws BadCommand
+    {
+        int x = 0;
+        int y = 0;
+        for (int c = 0; c < list.length; c++) {
+            DrawingCommand command = list[c];
+            startX[c] = x;
+            startY[c] = y;
+            checkInside(command, x, y);
+            x += command.moveX();
+            y += command.moveY();
+        }
+    }
+
+    /**
+     * Check that a painting command stays inside the picture.
+     *
+     * @param command The command to check.
+     * @param x The x value of the cursor before the command.
+     * @param y The y value of the cursor before the command.
+     * @throws BadCommand For the first pixel the command would paint outside of the picture.
+     */
+    private void checkInside(DrawingCommand command, int x, int y) throws BadCommand
+    {
+        if (command.body != null) {
+            // Every run of the body is checked, in the order draw paints it.
+            for (int i = 0; i < command.distance; i++) {
+                for (DrawingCommand c : command.body) {
+                    checkInside(c, x, y);
+                    x += c.moveX();
+                    y += c.moveY();
+                }
+            }
+            return;
+        }
+        if (!command.paint || command.distance < 0) {
+            return;
+        }
+        if (command.fill) {
+            // Fills are painted a row at a time, from the top left.
+            if (command.distance <= 0 || command.rows <= 0) {
+                return;
+            }
+            if (x < 0 || x >= width || y < 0 || y >= height) {
+                throw new BadCommand(x, y);
+            }
+            if (x + command.distance > width) {
+                throw new BadCommand(width, y);
+            }
+            if (y + command.rows > height) {
+                throw new BadCommand(x, height);
+            }
+            return;
+        }
+        if (command.distance == 0) {
+            if (x < 0 || x >= width || y < 0 || y >= height) {
+                throw new BadCommand(x, y);
+            }
+            return;
+        }
+        int step;
+        if (command.dir.dx == 0) {
+            step = x < 0 || x >= width ? 1 : firstOutside(y, command.dir.dy, command.distance, height);
+        } else {
+            step = y < 0 || y >= height ? 1 : firstOutside(x, command.dir.dx, command.distance, width);
+        }
+        if (step > 0) {
+            throw new BadCommand(x + command.dir.dx * step, y + command.dir.dy * step);
+        }
+    }
+
+    /**
+     * Find the first step of a straight line that leaves the range 0 to limit.
+     *
+     * @param start Where the line starts, which is not painted.
+     * @param dir 1 or -1 for the direction of travel.
+     * @param distance The number of steps.
+     * @param limit The end of the range, exclusive.
+     * @return The first step outside of the range, or 0 if every step is inside.
+     */
+    private static int firstOutside(int start, int dir, int distance, int limit)
+    {
+        // In long, as a cursor far outside the picture or a long line could
+        // overflow an int and seem to land inside it.
+        long first = (long) start + dir;
+        if (first < 0 || first >= limit) {
+            return 1;
+        }
+        long last = start + (long) dir * distance;
+        if (last < 0) {
+            return start + 1;
+        }
+        if (last >= limit) {
+            return limit - start;
+        }
+        return 0;
+    }
+
+    /**
+     * Paint the part of a command that lands between two rows.
+     *
+     * @param pixels The pixels of the image.
+     * @param command The command, which is known to stay inside the picture.
+     * A command that does not paint is skipped over.
+     * @param x The x value of the cursor before the command.
+     * @param y The y value of the cursor before the command.
+     * @param top The first row of the band.
+     * @param bottom The row after the last row of the band.
+     */
+    private static void paintBand(int[][] pixels, DrawingCommand command, int x, int y, int top, int bottom)
+    {
+        if (command.body != null) {
+            for (int i = 0; i < command.distance; i++) {
+                for (DrawingCommand c : command.body) {
+                    paintBand(pixels, c, x, y, top, bottom);
+                    x += c.moveX();
+                    y += c.moveY();
+                }
+            }
+            return;
+        }
+        if (!command.paint || command.distance < 0) {
+            return;
+        }
+        if (command.fill) {
+            if (command.distance > 0) {
+                for (int row = Math.max(y, top); row < Math.min(y + command.rows, bottom); row++) {
+                    Arrays.fill(pixels[row], x, x + command.distance, command.colour);
+                }
+            }
+        } else if (command.distance == 0) {
+            if (y >= top && y < bottom) {
+                pixels[y][x] = command.colour;
+            }
+        } else if (command.dir.dx == 0) {
+            int from = command.dir.dy > 0 ? y + 1 : y - command.distance;
+            int to = command.dir.dy > 0 ? y + command.distance : y - 1;
+            for (int row = Math.max(from, top); row <= Math.min(to, bottom - 1); row++) {
+                pixels[row][x] = command.colour;
+            }
+        } else if (y >= top && y < bottom) {
+            int from = command.dir.dx > 0 ? x + 1 : x - command.distance;
+            int to = command.dir.dx > 0 ? x + command.distance : x - 1;
+            Arrays.fill(pixels[y], from, to + 1, command.colour);
+        }
+    }
 }
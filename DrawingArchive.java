@@ -0,0 +1,347 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * DrawingArchive Class.
+ *
+ * Many drawings held in one file, so that a collection of small drawings can
+ * be read without a directory scan and an open call for each one. The file
+ * is memory mapped and an index of the entries is read when it is opened, so
+ * a drawing can be fetched by name without reading any of the others.
+ *
+ * The file starts with the 4 bytes of MAGIC and the number of entries as an
+ * int, followed by the index, one entry per drawing: the length of the name
+ * in bytes as a short and the name in UTF-8, the offset of the entry
+ * from the start of the file as a long, the stored and original lengths as
+ * ints and the method as a byte. Each entry holds the drawing in the binary
+ * format of Drawing.writeBinary, deflated if that made it smaller (METHOD_DEFLATE)
+ * or as it is otherwise (METHOD_STORE). Names are unique, and no drawing is
+ * longer than MAX_LENGTH bytes once inflated.
+ */
+public class DrawingArchive implements AutoCloseable
+{
+    static final byte[] MAGIC = {'D', 'R', 'A', 1};
+    static final int METHOD_STORE = 0;
+    static final int METHOD_DEFLATE = 1;
+    static final int MAX_LENGTH = 1 << 26;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final List<String> names = new ArrayList<String>();
+    private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Where one drawing is in the archive.
+     */
+    private static class Entry
+    {
+        final int offset;
+        final int storedLength;
+        final int length;
+        final int method;
+
+        Entry(int offset, int storedLength, int length, int method)
+        {
+            this.offset = offset;
+            this.storedLength = storedLength;
+            this.length = length;
+            this.method = method;
+        }
+    }
+
+    /**
+     * Open an archive and read its index, without reading any of the drawings.
+     *
+     * @param filename The archive file.
+     * @throws IOException If the file cannot be opened or is not an archive.
+     */
+    public DrawingArchive(String filename) throws IOException
+    {
+        channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Archive file too large (should be under 2GB): " + filename);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            byte[] magic = new byte[MAGIC.length];
+            if (buffer.remaining() >= MAGIC.length + 4) {
+                buffer.get(magic);
+            }
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a drawing archive: " + filename);
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[buffer.getShort() & 0xffff];
+                buffer.get(name);
+                long offset = buffer.getLong();
+                int storedLength = buffer.getInt();
+                int length = buffer.getInt();
+                int method = buffer.get();
+                if (offset < 0 || storedLength < 0 || offset + storedLength > buffer.capacity()) {
+                    throw new IOException("Truncated drawing archive: " + filename);
+                }
+                String s = new String(name, StandardCharsets.UTF_8);
+                // The length is trusted to size the buffer an entry is
+                // inflated into, so it is checked before anything is read.
+                if (length < 0 || length > MAX_LENGTH || method == METHOD_STORE && length != storedLength) {
+                    throw new FormatException("Bad entry (length " + length + "): " + s, 0, 1);
+                }
+                if (entries.putIfAbsent(s, new Entry((int) offset, storedLength, length, method)) != null) {
+                    throw new FormatException("Bad archive (duplicate entry): " + s, 0, 1);
+                }
+                names.add(s);
+            }
+        } catch (BufferUnderflowException e) {
+            channel.close();
+            throw new IOException("Truncated drawing archive: " + filename);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Main method.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        // Pack a directory into an archive, unpack an archive into a
+        // directory, or list the drawings in an archive.
+        if (args.length == 3 && args[0].equals("pack")) {
+            int count = pack(Paths.get(args[2]), args[1]);
+            System.out.println("Packed " + count + " drawings into " + args[1]);
+        } else if (args.length == 3 && args[0].equals("unpack")) {
+            try (DrawingArchive archive = new DrawingArchive(args[1])) {
+                archive.unpack(Paths.get(args[2]));
+                System.out.println("Unpacked " + archive.names().size() + " drawings into " + args[2]);
+            }
+        } else if (args.length == 2 && args[0].equals("list")) {
+            try (DrawingArchive archive = new DrawingArchive(args[1])) {
+                for (String name : archive.names()) {
+                    Entry e = archive.entries.get(name);
+                    System.out.println(name + " " + e.length + " " + e.storedLength);
+                }
+            }
+        } else {
+            System.out.println("Usage: DrawingArchive pack archive directory | unpack archive directory | list archive");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Pack every drawing file under a directory into a new archive. Entries
+     * are named by their path relative to the directory, with / between the
+     * parts, and are in name order.
+     *
+     * @param directory The directory holding the drawings, in text or binary format.
+     * @param filename The archive file, which is overwritten.
+     * @return The number of drawings packed.
+     * @throws FormatException If one of the files is not a valid drawing.
+     * @throws IOException If a file cannot be read or the archive written.
+     */
+    public static int pack(Path directory, String filename) throws IOException
+    {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+
+        List<String> names = new ArrayList<String>();
+        List<Drawing> drawings = new ArrayList<Drawing>();
+        for (Path file : files) {
+            names.add(directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/"));
+            drawings.add(Drawing.read(file.toString()));
+        }
+        write(filename, names, drawings);
+        return drawings.size();
+    }
+
+    /**
+     * Write drawings into a new archive.
+     *
+     * @param filename The archive file, which is overwritten.
+     * @param names The name of each drawing.
+     * @param drawings The drawings.
+     * @throws IOException If the archive cannot be written.
+     */
+    public static void write(String filename, List<String> names, List<Drawing> drawings) throws IOException
+    {
+        // The index comes first, so every entry is encoded before any of them
+        // can be written.
+        int n = drawings.size();
+        byte[][] stored = new byte[n][];
+        int[] lengths = new int[n];
+        int[] methods = new int[n];
+        long offset = MAGIC.length + 4;
+        if (new HashSet<String>(names).size() != names.size()) {
+            throw new IOException("Two drawings with the same name");
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        for (int i = 0; i < n; i++) {
+            ByteArrayOutputStream binary = new ByteArrayOutputStream();
+            drawings.get(i).writeBinary(binary);
+            byte[] raw = binary.toByteArray();
+            if (raw.length > MAX_LENGTH) {
+                throw new IOException("Drawing too large (should be under 64MB): " + names.get(i));
+            }
+            byte[] deflated = deflate(deflater, raw);
+            lengths[i] = raw.length;
+            methods[i] = deflated.length < raw.length ? METHOD_DEFLATE : METHOD_STORE;
+            stored[i] = methods[i] == METHOD_DEFLATE ? deflated : raw;
+            int nameLength = names.get(i).getBytes(StandardCharsets.UTF_8).length;
+            if (nameLength > 0xffff) {
+                throw new IOException("Name too long (should be under 64KB in UTF-8): " + names.get(i));
+            }
+            offset += 2 + nameLength + 8 + 4 + 4 + 1;
+        }
+        deflater.end();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)))) {
+            out.write(MAGIC);
+            out.writeInt(n);
+            for (int i = 0; i < n; i++) {
+                byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeLong(offset);
+                out.writeInt(stored[i].length);
+                out.writeInt(lengths[i]);
+                out.writeByte(methods[i]);
+                offset += stored[i].length;
+            }
+            for (int i = 0; i < n; i++) {
+                out.write(stored[i]);
+            }
+        }
+    }
+
+    /**
+     * Write every drawing in the archive out into a directory, in the text
+     * format, under its name.
+     *
+     * @param directory The directory to write into, which is created if needed.
+     * @throws IOException If a drawing cannot be read or written.
+     */
+    public void unpack(Path directory) throws IOException
+    {
+        // Compared as absolute paths, as "." normalises to the empty path,
+        // which no entry starts with.
+        Path root = directory.toAbsolutePath().normalize();
+        for (String name : names) {
+            Path file = root.resolve(name).normalize();
+            if (!file.startsWith(root) || file.equals(root)) {
+                throw new IOException("Entry outside of the directory: " + name);
+            }
+            Files.createDirectories(file.getParent());
+            try (Writer w = Files.newBufferedWriter(file)) {
+                w.write(get(name).toString());
+            }
+        }
+    }
+
+    /**
+     * Get the names of the drawings in the archive.
+     *
+     * @return The names, in the order they were packed.
+     */
+    public List<String> names()
+    {
+        return names;
+    }
+
+    /**
+     * Read one drawing from the archive.
+     *
+     * @param name The name of the drawing.
+     * @return The drawing, or null if the archive has no drawing of that name.
+     * @throws FormatException If the entry is not a valid drawing.
+     * @throws IOException If the entry cannot be read.
+     */
+    public Drawing get(String name) throws IOException
+    {
+        Entry e = entries.get(name);
+        if (e == null) {
+            return null;
+        }
+
+        ByteBuffer slice = buffer.slice(e.offset, e.storedLength);
+        byte[] raw = new byte[e.length];
+        if (e.method == METHOD_STORE) {
+            slice.get(raw);
+        } else if (e.method == METHOD_DEFLATE) {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(slice);
+                if (inflater.inflate(raw) != e.length || !inflater.finished()) {
+                    throw new FormatException("Bad entry (wrong length once inflated): " + name, 0, 1);
+                }
+            } catch (DataFormatException x) {
+                throw new FormatException("Bad entry (cannot be inflated): " + name, 0, 1);
+            } finally {
+                inflater.end();
+            }
+        } else {
+            throw new FormatException("Bad entry (unknown method " + e.method + "): " + name, 0, 1);
+        }
+
+        try (DrawingReader reader = new DrawingReader(new ByteArrayInputStream(raw))) {
+            return reader.readAll();
+        }
+    }
+
+    /**
+     * Close the archive.
+     *
+     * @throws IOException If the file cannot be closed.
+     */
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    /**
+     * Deflate some bytes.
+     *
+     * @param deflater The deflater to use, which is reset first.
+     * @param raw The bytes.
+     * @return The deflated bytes.
+     */
+    private static byte[] deflate(Deflater deflater, byte[] raw)
+    {
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,428 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * DrawingCommand Class.
+ *
+ * A single drawing command. Which direction to go in, how far to move, and
+ * whether to paint all of the spaces in-between, or leave them as-is. Also
+ * indicate which colour if painting.
+ *
+ * A fill command instead paints a rectangle, distance columns wide and rows
+ * rows high, whose top left corner is the cursor, and leaves the cursor where
+ * it is. Fill commands need version 2 of the drawing format.
+ *
+ * A repeat command runs the commands in its body distance times over, each
+ * time carrying on from where the last left the cursor. Repeat commands need
+ * version 3 of the drawing format.
+ */
+class DrawingCommand
+{
+    public Direction dir;
+    public int distance;
+    public boolean paint;
+    public int colour;
+    public boolean fill;
+    public int rows;
+    public ArrayList<DrawingCommand> body;
+
+    // Reads in a Drawing commands from a string
+    // The format should be "direction distance colour" or "direction distance"
+    // if moving without painting, for example
+    // left 10 3
+    // up 1
+    // up 2 c
+    // or "fill width height colour" to paint a rectangle, for example
+    // fill 4 3 a
+    // A repeat is read by DrawingReader, as its body is on the lines after it
+    // repeat 3 {
+    //   right 2 7
+    //   down 1
+    // }
+
+    /**
+     * Reads in Drawing commands from a string.
+     * The format should be "direction distance colour" or "direction distance"
+     * if moving without painting for example, or "fill width height colour".
+     *
+     * @param s The string of Drawing commands to be read.
+     */
+    public DrawingCommand(String s)
+    {
+        try {
+            parse(s, 1);
+        } catch (FormatException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads in a Drawing command from a string, in the same format as
+     * DrawingCommand(String), without exiting on bad input.
+     *
+     * @param s The string of the Drawing command to be read.
+     * @param line The line the command is on, for error reporting.
+     * @return The command.
+     * @throws FormatException If the string is not a valid command.
+     */
+    static DrawingCommand fromString(String s, int line) throws FormatException
+    {
+        DrawingCommand command = new DrawingCommand(Direction.UP, 0, false, 0);
+        command.parse(s, line);
+        return command;
+    }
+
+    /**
+     * Fill in this command from a string.
+     *
+     * @param s The string of the Drawing command to be read.
+     * @param line The line the command is on, for error reporting.
+     * @throws FormatException If the string is not a valid command.
+     */
+    private void parse(String s, int line) throws FormatException
+    {
+        // Split the string by whitespace
+        String[] elems = s.split("\\s");
+
+        if (elems[0].equals("fill")) {
+            parseFill(elems, s, line);
+            return;
+        }
+
+        if (elems.length != 3 && elems.length != 2) {
+            throw new FormatException("Bad command (should have 2 or 3 parts): " + s, line, 1);
+        }
+
+        if (elems[0].equals("up"))
+            dir = Direction.UP;
+        else if (elems[0].equals("down"))
+            dir = Direction.DOWN;
+        else if (elems[0].equals("left"))
+            dir = Direction.LEFT;
+        else if (elems[0].equals("right"))
+            dir = Direction.RIGHT;
+        else {
+            throw new FormatException("Bad direction (should be up, down, left, or right): " + elems[0], line, 1);
+        }
+
+        try {
+            distance = Integer.parseInt(elems[1]);
+        } catch (NumberFormatException e) {
+            throw new FormatException("Bad distance (should be a number): " + elems[1], line, elems[0].length() + 2);
+        }
+        // Check for the optional colour
+        if (elems.length == 2)
+            paint = false;
+        else {
+            paint = true;
+            try {
+                colour = Integer.parseInt(elems[2], 16);
+                if (colour < 0 || colour > 15)
+                    throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                throw new FormatException("Bad colour (should be a hex number betweeen 0 and f): " + elems[2],
+                        line, elems[0].length() + elems[1].length() + 3);
+            }
+        }
+    }
+
+    /**
+     * Fill in this command from the parts of a fill command.
+     *
+     * @param elems The parts of the command, the first being "fill".
+     * @param s The string of the Drawing command, for error reporting.
+     * @param line The line the command is on, for error reporting.
+     * @throws FormatException If the parts are not a valid fill command.
+     */
+    private void parseFill(String[] elems, String s, int line) throws FormatException
+    {
+        if (elems.length != 4) {
+            throw new FormatException("Bad fill (should be fill width height colour): " + s, line, 1);
+        }
+        fill = true;
+        paint = true;
+        dir = Direction.RIGHT;
+        int column = elems[0].length() + 2;
+        try {
+            distance = Integer.parseInt(elems[1]);
+            column += elems[1].length() + 1;
+            rows = Integer.parseInt(elems[2]);
+        } catch (NumberFormatException e) {
+            throw new FormatException("Bad size (should be a number): " + s, line, column);
+        }
+        column += elems[2].length() + 1;
+        try {
+            colour = Integer.parseInt(elems[3], 16);
+            if (colour < 0 || colour > 15)
+                throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            throw new FormatException("Bad colour (should be a hex number betweeen 0 and f): " + elems[3], line, column);
+        }
+    }
+
+    /**
+     * Create a fill command.
+     *
+     * @param width The number of columns to paint, starting at the cursor.
+     * @param height The number of rows to paint, starting at the cursor.
+     * @param colour The colour to paint.
+     * @return The command.
+     */
+    static DrawingCommand fill(int width, int height, int colour)
+    {
+        DrawingCommand command = new DrawingCommand(Direction.RIGHT, width, true, colour);
+        command.fill = true;
+        command.rows = height;
+        return command;
+    }
+
+    /**
+     * Create a repeat command.
+     *
+     * @param count The number of times to run the body.
+     * @param body The commands to run each time.
+     * @return The command.
+     */
+    static DrawingCommand repeat(int count, List<DrawingCommand> body)
+    {
+        DrawingCommand command = new DrawingCommand(Direction.RIGHT, count, false, 0);
+        command.body = new ArrayList<DrawingCommand>(body);
+        return command;
+    }
+
+    /**
+     * Make a copy of this command, including the body of a repeat, which can
+     * be changed without changing this one.
+     *
+     * @return The copy.
+     */
+    DrawingCommand copy()
+    {
+        if (body != null) {
+            ArrayList<DrawingCommand> copied = new ArrayList<DrawingCommand>(body.size());
+            for (DrawingCommand command : body) {
+                copied.add(command.copy());
+            }
+            return repeat(distance, copied);
+        }
+        DrawingCommand command = new DrawingCommand(dir, distance, paint, colour);
+        command.fill = fill;
+        command.rows = rows;
+        return command;
+    }
+
+    /**
+     * Make a copy of this command with its colour changed through a table,
+     * including the colours of the body of a repeat.
+     *
+     * @param map The new colour for each of the 16 colours.
+     * @return The recoloured command.
+     */
+    DrawingCommand remap(int[] map)
+    {
+        if (body != null) {
+            ArrayList<DrawingCommand> recoloured = new ArrayList<DrawingCommand>(body.size());
+            for (DrawingCommand command : body) {
+                recoloured.add(command.remap(map));
+            }
+            return repeat(distance, recoloured);
+        }
+        if (fill) {
+            return fill(distance, rows, map[colour]);
+        }
+        return new DrawingCommand(dir, distance, paint, paint ? map[colour] : colour);
+    }
+
+    /**
+     * Parse the first line of a repeat command, "repeat count {".
+     *
+     * @param s The line.
+     * @param line The line number, for error reporting.
+     * @return The count, or -1 if the line does not start a repeat.
+     * @throws FormatException If the line starts a repeat but is malformed.
+     */
+    static int parseRepeat(String s, int line) throws FormatException
+    {
+        String[] elems = s.split("\\s");
+        if (!elems[0].equals("repeat")) {
+            return -1;
+        }
+        if (elems.length != 3 || !elems[2].equals("{")) {
+            throw new FormatException("Bad repeat (should be repeat count {): " + s, line, 1);
+        }
+        try {
+            int count = Integer.parseInt(elems[1]);
+            if (count < 0)
+                throw new NumberFormatException();
+            return count;
+        } catch (NumberFormatException e) {
+            throw new FormatException("Bad repeat count (should be a number, 0 or more): " + elems[1],
+                    line, elems[0].length() + 2);
+        }
+    }
+
+    /**
+     * Get the oldest version of the drawing format that can hold this command.
+     *
+     * @return 3 for a repeat, 2 for a fill, otherwise 1.
+     */
+    int getVersion()
+    {
+        if (body != null) {
+            return 3;
+        }
+        return fill ? 2 : 1;
+    }
+
+    /**
+     * Get the number of commands this command is written as, counting a
+     * repeat once for itself and once for each command of its body.
+     *
+     * @return The number of commands.
+     */
+    int size()
+    {
+        if (body == null) {
+            return 1;
+        }
+        int size = 1;
+        for (DrawingCommand command : body) {
+            size += command.size();
+        }
+        return size;
+    }
+
+    /**
+     * Get how far this command moves the cursor along the x axis.
+     *
+     * @return The change in x.
+     */
+    int moveX()
+    {
+        if (body != null) {
+            int x = 0;
+            for (DrawingCommand command : body) {
+                x += command.moveX();
+            }
+            return x * Math.max(0, distance);
+        }
+        // A negative distance does not move, and a fill does not move.
+        return fill ? 0 : dir.dx * Math.max(0, distance);
+    }
+
+    /**
+     * Get how far this command moves the cursor along the y axis.
+     *
+     * @return The change in y.
+     */
+    int moveY()
+    {
+        if (body != null) {
+            int y = 0;
+            for (DrawingCommand command : body) {
+                y += command.moveY();
+            }
+            return y * Math.max(0, distance);
+        }
+        return fill ? 0 : dir.dy * Math.max(0, distance);
+    }
+
+    /**
+     * Create a command directly from its parts.
+     *
+     * @param dir The direction to move in.
+     * @param distance How far to move.
+     * @param paint True to paint the spaces moved over, false to just move.
+     * @param colour The colour to paint, if paint is true.
+     */
+    public DrawingCommand(Direction dir, int distance, boolean paint, int colour)
+    {
+        this.dir = dir;
+        this.distance = distance;
+        this.paint = paint;
+        this.colour = paint ? colour : 0;
+    }
+
+    /**
+     * Create a command from the op byte of the binary format.
+     *
+     * @param op The direction ordinal in bits 0-1, the paint flag in bit 2,
+     * the fill flag in bit 3 and the colour in bits 4-7. Repeats are read by
+     * DrawingReader.
+     * @param distance How far to move, or the width of a fill.
+     * @param rows The height of a fill.
+     * @return The command.
+     */
+    static DrawingCommand fromOp(int op, int distance, int rows)
+    {
+        if ((op & 8) != 0) {
+            return fill(distance, rows, op >>> 4);
+        }
+        return new DrawingCommand(Direction.values()[op & 3], distance, (op & 4) != 0, op >>> 4);
+    }
+
+    // A fill always paints, so the fill flag without the paint flag marks a
+    // repeat in the binary format.
+    static final int REPEAT_OP = 8;
+
+    /**
+     * Get the op byte of this command for the binary format.
+     *
+     * @return The direction ordinal in bits 0-1, the paint flag in bit 2,
+     * the fill flag in bit 3 and the colour in bits 4-7, or REPEAT_OP for a
+     * repeat.
+     */
+    int toOp()
+    {
+        if (body != null) {
+            return REPEAT_OP;
+        }
+        return dir.ordinal() | (paint ? 4 | colour << 4 : 0) | (fill ? 8 : 0);
+    }
+
+    /**
+     * Custom toString method.
+     *
+     * @return A string for a single Drawing command.
+     */
+    public String toString()
+    {
+        if (body != null) {
+            StringBuilder s = new StringBuilder("repeat " + distance + " {\n");
+            for (DrawingCommand command : body) {
+                s.append("  " + command.toString().replace("\n", "\n  ") + "\n");
+            }
+            return s.append("}").toString();
+        }
+        if (fill) {
+            return "fill " + distance + " " + rows + " " + Integer.toHexString(colour);
+        }
+        return (dir.toString() + " " + distance + " " + (paint ? Integer.toHexString(colour) : ""));
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (obj instanceof DrawingCommand) {
+            DrawingCommand c = (DrawingCommand) obj;
+            return c.dir == dir && c.distance == distance && c.paint == paint && c.colour == colour
+                    && c.fill == fill && c.rows == rows && Objects.equals(c.body, body);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int result = dir.hashCode();
+        result = 31 * result + distance;
+        result = 31 * result + (paint ? 1 : 0);
+        result = 31 * result + colour;
+        result = 31 * result + (fill ? 1 : 0);
+        result = 31 * result + rows;
+        result = 31 * result + Objects.hashCode(body);
+        return result;
+    }
+}
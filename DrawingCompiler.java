@@ -0,0 +1,444 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DrawingCompiler Class.
+ *
+ * Turns a drawing into a hidden class whose code paints the drawing's pixels
+ * straight into an image, one Arrays.fill or array store per run of pixels,
+ * with no commands left to interpret. Every command is checked against the
+ * picture when the class is made, so the generated code does no bounds
+ * checks of its own, and the bodies of repeats are unrolled.
+ *
+ * Drawing.draw promotes a drawing to a compiled one once it has been drawn
+ * THRESHOLD times. Compiled drawings are cached by their text, so the same
+ * drawing read in again is not compiled again.
+ *
+ * The class file is written out by hand, as it only needs straight-line code:
+ * a constructor, a paint method, and static part methods that paint up to
+ * OPS_PER_METHOD runs each, to stay inside the 64KB limit on a method's code.
+ */
+public class DrawingCompiler
+{
+    /**
+     * A compiled drawing.
+     */
+    interface Program
+    {
+        /**
+         * Paint the drawing's pixels, which are known to be inside the picture.
+         *
+         * @param pixels The pixels of an image the size of the drawing.
+         */
+        void paint(int[][] pixels);
+    }
+
+    // The number of times a drawing is drawn before it is compiled.
+    static final int THRESHOLD = 100;
+
+    // Drawings painting more runs than this are left to the interpreter, as
+    // the class would be too large to be worth it.
+    private static final int MAX_OPS = 100000;
+    private static final int OPS_PER_METHOD = 2000;
+    private static final int CACHE_SIZE = 64;
+
+    // Returned by compile for drawings that cannot be compiled, so that they
+    // are not tried again.
+    static final Program NOT_COMPILED = pixels -> {
+        throw new IllegalStateException("Drawing was not compiled");
+    };
+
+    private static final Map<String, Program> cache = new LinkedHashMap<String, Program>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Program> eldest)
+        {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    // Kinds of run in the generated code.
+    private static final int ROW = 0;
+    private static final int PIXEL = 1;
+    private static final int COLUMN = 2;
+
+    /**
+     * Compile a drawing, or fetch it from the cache if the same drawing has
+     * been compiled before.
+     *
+     * @param drawing The drawing.
+     * @return The compiled drawing, or NOT_COMPILED if a command paints
+     * outside of the picture or the drawing is too large to compile.
+     */
+    public static Program compile(Drawing drawing)
+    {
+        String key = drawing.toString();
+        synchronized (cache) {
+            Program program = cache.get(key);
+            if (program != null) {
+                return program;
+            }
+        }
+
+        Program program;
+        try {
+            drawing.trace(new int[drawing.commands.size()], new int[drawing.commands.size()]);
+            List<int[]> ops = new ArrayList<int[]>();
+            if (emit(drawing.commands, new Coordinate(0, 0), ops)) {
+                program = define(ops);
+            } else {
+                program = NOT_COMPILED;
+            }
+        } catch (BadCommand e) {
+            program = NOT_COMPILED;
+        }
+
+        synchronized (cache) {
+            cache.put(key, program);
+        }
+        return program;
+    }
+
+    /**
+     * Paint part of a column, for the generated code.
+     *
+     * @param pixels The pixels of the image.
+     * @param x The column.
+     * @param from The first row to paint.
+     * @param to The row after the last row to paint.
+     * @param colour The colour to paint.
+     */
+    static void fillColumn(int[][] pixels, int x, int from, int to, int colour)
+    {
+        for (int y = from; y < to; y++) {
+            pixels[y][x] = colour;
+        }
+    }
+
+    /**
+     * Turn commands into runs of pixels, in the order they are painted.
+     *
+     * @param commands The commands, which are known to stay inside the picture.
+     * @param cursor The cursor, which is moved by the commands.
+     * @param ops Filled in with one {kind, x, y, end, colour} entry per run.
+     * @return False if there are too many runs to compile.
+     */
+    private static boolean emit(List<DrawingCommand> commands, Coordinate cursor, List<int[]> ops)
+    {
+        for (DrawingCommand command : commands) {
+            if (ops.size() > MAX_OPS) {
+                return false;
+            }
+            int x = cursor.x;
+            int y = cursor.y;
+            if (command.body != null) {
+                for (int i = 0; i < command.distance; i++) {
+                    if (!emit(command.body, cursor, ops)) {
+                        return false;
+                    }
+                }
+                continue;
+            }
+            cursor.x += command.moveX();
+            cursor.y += command.moveY();
+            if (!command.paint || command.distance < 0) {
+                continue;
+            }
+
+            if (command.fill) {
+                if (command.distance > 0) {
+                    for (int row = y; row < y + command.rows; row++) {
+                        ops.add(new int[]{ROW, x, row, x + command.distance, command.colour});
+                    }
+                }
+            } else if (command.distance == 0) {
+                ops.add(new int[]{PIXEL, x, y, 0, command.colour});
+            } else if (command.dir.dx == 0) {
+                int from = command.dir.dy > 0 ? y + 1 : y - command.distance;
+                int to = command.dir.dy > 0 ? y + command.distance + 1 : y;
+                if (to - from <= 2) {
+                    for (int row = from; row < to; row++) {
+                        ops.add(new int[]{PIXEL, x, row, 0, command.colour});
+                    }
+                } else {
+                    ops.add(new int[]{COLUMN, x, from, to, command.colour});
+                }
+            } else {
+                int from = command.dir.dx > 0 ? x + 1 : x - command.distance;
+                int to = command.dir.dx > 0 ? x + command.distance + 1 : x;
+                ops.add(new int[]{ROW, from, y, to, command.colour});
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the class for a list of runs and define it as a hidden class.
+     *
+     * @param ops The runs, as made by emit.
+     * @return An instance of the class.
+     */
+    private static Program define(List<int[]> ops)
+    {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(write(ops), true);
+            return (Program) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Cannot define compiled drawing", e);
+        }
+    }
+
+    /**
+     * Write the class file for a list of runs.
+     *
+     * @param ops The runs, as made by emit.
+     * @return The class file.
+     * @throws IOException Never, as the class file is written to memory.
+     */
+    private static byte[] write(List<int[]> ops) throws IOException
+    {
+        ConstantPool pool = new ConstantPool();
+        String name = "CompiledDrawing";
+        int thisClass = pool.classRef(name);
+        int superClass = pool.classRef("java/lang/Object");
+        int program = pool.classRef("DrawingCompiler$Program");
+        int code = pool.utf8("Code");
+        int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+        int arraysFill = pool.methodRef("java/util/Arrays", "fill", "([IIII)V");
+        int fillColumn = pool.methodRef("DrawingCompiler", "fillColumn", "([[IIIII)V");
+
+        int parts = (ops.size() + OPS_PER_METHOD - 1) / OPS_PER_METHOD;
+        List<byte[]> methods = new ArrayList<byte[]>();
+
+        // The constructor.
+        Bytecode init = new Bytecode();
+        init.op(0x2a);
+        init.op(0xb7).u2(objectInit);
+        init.op(0xb1);
+        methods.add(method(pool, 0x0001, "<init>", "()V", code, init, 1, 1));
+
+        // paint calls each part in turn.
+        Bytecode paint = new Bytecode();
+        for (int p = 0; p < parts; p++) {
+            paint.op(0x2b);
+            paint.op(0xb8).u2(pool.methodRef(name, "part" + p, "([[I)V"));
+        }
+        paint.op(0xb1);
+        methods.add(method(pool, 0x0001, "paint", "([[I)V", code, paint, 1, 2));
+
+        for (int p = 0; p < parts; p++) {
+            Bytecode part = new Bytecode();
+            for (int[] op : ops.subList(p * OPS_PER_METHOD, Math.min(ops.size(), (p + 1) * OPS_PER_METHOD))) {
+                if (op[0] == COLUMN) {
+                    // fillColumn(pixels, x, from, to, colour)
+                    part.op(0x2a);
+                    part.push(pool, op[1]);
+                    part.push(pool, op[2]);
+                    part.push(pool, op[3]);
+                    part.push(pool, op[4]);
+                    part.op(0xb8).u2(fillColumn);
+                    continue;
+                }
+                // pixels[y] is on the stack for both of the others.
+                part.op(0x2a);
+                part.push(pool, op[2]);
+                part.op(0x32);
+                if (op[0] == ROW) {
+                    // Arrays.fill(pixels[y], from, to, colour)
+                    part.push(pool, op[1]);
+                    part.push(pool, op[3]);
+                    part.push(pool, op[4]);
+                    part.op(0xb8).u2(arraysFill);
+                } else {
+                    // pixels[y][x] = colour
+                    part.push(pool, op[1]);
+                    part.push(pool, op[4]);
+                    part.op(0x4f);
+                }
+            }
+            part.op(0xb1);
+            methods.add(method(pool, 0x000a, "part" + p, "([[I)V", code, part, 5, 1));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xcafebabe);
+        out.writeShort(0);
+        out.writeShort(61);
+        pool.write(out);
+        out.writeShort(0x0031);
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(program);
+        out.writeShort(0);
+        out.writeShort(methods.size());
+        for (byte[] m : methods) {
+            out.write(m);
+        }
+        out.writeShort(0);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write the method_info of a method with straight-line code.
+     *
+     * @param pool The constant pool.
+     * @param access The access flags.
+     * @param name The name of the method.
+     * @param descriptor The descriptor of the method.
+     * @param code The constant pool index of "Code".
+     * @param bytecode The code.
+     * @param maxStack The deepest the operand stack gets.
+     * @param maxLocals The number of local variable slots.
+     * @return The method_info.
+     * @throws IOException Never, as the method is written to memory.
+     */
+    private static byte[] method(ConstantPool pool, int access, String name, String descriptor, int code,
+            Bytecode bytecode, int maxStack, int maxLocals) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(access);
+        out.writeShort(pool.utf8(name));
+        out.writeShort(pool.utf8(descriptor));
+        out.writeShort(1);
+        out.writeShort(code);
+        out.writeInt(12 + bytecode.size());
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(bytecode.size());
+        bytecode.writeTo(out);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The code of one method.
+     */
+    private static class Bytecode extends ByteArrayOutputStream
+    {
+        Bytecode op(int opcode)
+        {
+            write(opcode);
+            return this;
+        }
+
+        Bytecode u2(int value)
+        {
+            write(value >>> 8);
+            write(value);
+            return this;
+        }
+
+        /**
+         * Push an int constant with the shortest instruction that holds it.
+         */
+        void push(ConstantPool pool, int value)
+        {
+            if (value >= -1 && value <= 5) {
+                op(0x03 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(0x10).op(value & 0xff);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(0x11).u2(value & 0xffff);
+            } else {
+                op(0x13).u2(pool.integer(value));
+            }
+        }
+    }
+
+    /**
+     * The constant pool of a class file, sharing equal entries.
+     */
+    private static class ConstantPool
+    {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final HashMap<String, Integer> indices = new HashMap<String, Integer>();
+        private int count = 1;
+
+        int utf8(String s)
+        {
+            Integer index = indices.get("U" + s);
+            if (index == null) {
+                index = add("U" + s);
+                try {
+                    out.writeByte(1);
+                    out.writeUTF(s);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return index;
+        }
+
+        int integer(int value)
+        {
+            return entry("I" + value, 3, value, -1);
+        }
+
+        int classRef(String name)
+        {
+            return entry("C" + name, 7, utf8(name), -1);
+        }
+
+        int methodRef(String owner, String name, String descriptor)
+        {
+            int nameAndType = entry("N" + name + " " + descriptor, 12, utf8(name), utf8(descriptor));
+            return entry("M" + owner + "." + name + descriptor, 10, classRef(owner), nameAndType);
+        }
+
+        /**
+         * Add an entry of a tag and one int, or two shorts, if it is not
+         * already in the pool.
+         */
+        private int entry(String key, int tag, int a, int b)
+        {
+            Integer index = indices.get(key);
+            if (index != null) {
+                return index;
+            }
+            index = add(key);
+            try {
+                out.writeByte(tag);
+                if (b < 0) {
+                    if (tag == 3) {
+                        out.writeInt(a);
+                    } else {
+                        out.writeShort(a);
+                    }
+                } else {
+                    out.writeShort(a);
+                    out.writeShort(b);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return index;
+        }
+
+        private int add(String key)
+        {
+            int index = count++;
+            indices.put(key, index);
+            return index;
+        }
+
+        void write(DataOutputStream to) throws IOException
+        {
+            to.writeShort(count);
+            bytes.writeTo(to);
+        }
+    }
+}
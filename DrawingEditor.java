@@ -0,0 +1,442 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * DrawingEditor Class.
+ *
+ * Keeps the image of a drawing up to date as its commands are changed,
+ * inserted and removed, without drawing it again from the first command.
+ *
+ * A snapshot of the image and cursor is kept every interval commands, and at
+ * the end. The image is split into TILE x TILE tiles, and a snapshot only
+ * copies the tiles painted since the one before it, sharing the rest, so
+ * snapshots cost memory in proportion to what the commands between them
+ * paint. An edit draws again from the last snapshot before it, and as the
+ * commands after an edit are the same as before, only moved along, it stops
+ * as soon as the image and cursor are the same as they were at one of the
+ * old snapshots, skipping to the last of them.
+ *
+ * So an edit whose effect is painted over, or that changes nothing, costs the
+ * commands up to the next snapshot or so, but one that moves the cursor of
+ * everything after it still costs drawing the rest of the drawing.
+ */
+public class DrawingEditor
+{
+    public static final int DEFAULT_INTERVAL = 1024;
+    private static final int TILE = 64;
+
+    /**
+     * The image and cursor before a command.
+     */
+    private static class Snapshot
+    {
+        // The index of the command the snapshot is taken before.
+        int index;
+        final int x;
+        final int y;
+        // Each tile, row by row, shared with other snapshots where it is the same.
+        final byte[][] tiles;
+
+        Snapshot(int index, int x, int y, byte[][] tiles)
+        {
+            this.index = index;
+            this.x = x;
+            this.y = y;
+            this.tiles = tiles;
+        }
+    }
+
+    private final Drawing drawing;
+    private final int interval;
+    private final int tilesAcross;
+    private final int tilesDown;
+
+    // The image being edited, which matches shown apart from the dirty tiles,
+    // those painted since.
+    private final Image image;
+    private Snapshot shown;
+    private final BitSet dirty;
+
+    // Snapshots in order of index, the last one for the end of the drawing
+    // once it has been drawn without a BadCommand.
+    private final List<Snapshot> snapshots = new ArrayList<Snapshot>();
+    // How many of the snapshots are known to hold. The rest are in doubt, as
+    // commands before them have changed, though not those after them.
+    private int valid = 1;
+
+    // Where the cursor is while marking the tiles a command paints.
+    private int markX;
+    private int markY;
+    private long replayed;
+
+    /**
+     * Start editing a drawing, with a snapshot every DEFAULT_INTERVAL commands.
+     *
+     * @param drawing The drawing, whose commands are changed in place.
+     */
+    public DrawingEditor(Drawing drawing)
+    {
+        this(drawing, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Start editing a drawing.
+     *
+     * @param drawing The drawing, whose commands are changed in place.
+     * @param interval The most commands between two snapshots.
+     */
+    public DrawingEditor(Drawing drawing, int interval)
+    {
+        assert (interval > 0);
+        this.drawing = drawing;
+        this.interval = interval;
+        tilesAcross = (drawing.width + TILE - 1) / TILE;
+        tilesDown = (drawing.height + TILE - 1) / TILE;
+        image = new Image(drawing.height, drawing.width, drawing.background);
+        dirty = new BitSet(tilesAcross * tilesDown);
+        Snapshot start = new Snapshot(0, 0, 0, new byte[tilesAcross * tilesDown][]);
+        for (int t = 0; t < start.tiles.length; t++) {
+            start.tiles[t] = copyTile(t);
+        }
+        snapshots.add(start);
+        shown = start;
+    }
+
+    /**
+     * Get the image of the drawing, drawing whatever has not been drawn yet.
+     * The image belongs to the editor and is changed by later edits, so it
+     * must not be changed by anything else.
+     *
+     * @return The image.
+     * @throws BadCommand If any command tries to paint outside of the image.
+     */
+    public Image getImage() throws BadCommand
+    {
+        Snapshot last = snapshots.get(snapshots.size() - 1);
+        if (valid < snapshots.size() || last.index != drawing.commands.size()) {
+            replay();
+        } else {
+            restore(last);
+        }
+        return image;
+    }
+
+    /**
+     * Replace a command.
+     *
+     * @param index The index of the command.
+     * @param command The new command.
+     * @return The image of the drawing after the change, as from getImage.
+     * @throws BadCommand If any command tries to paint outside of the image.
+     */
+    public Image set(int index, DrawingCommand command) throws BadCommand
+    {
+        drawing.commands.set(index, command);
+        return edited(index, 0);
+    }
+
+    /**
+     * Insert a command before another.
+     *
+     * @param index The index the new command takes.
+     * @param command The new command.
+     * @return The image of the drawing after the change, as from getImage.
+     * @throws BadCommand If any command tries to paint outside of the image.
+     */
+    public Image insert(int index, DrawingCommand command) throws BadCommand
+    {
+        drawing.commands.add(index, command);
+        return edited(index, 1);
+    }
+
+    /**
+     * Remove a command.
+     *
+     * @param index The index of the command.
+     * @return The image of the drawing after the change, as from getImage.
+     * @throws BadCommand If any command tries to paint outside of the image.
+     */
+    public Image remove(int index) throws BadCommand
+    {
+        drawing.commands.remove(index);
+        return edited(index, -1);
+    }
+
+    /**
+     * Get the number of commands drawn since the editor was made, counting a
+     * repeat once, to see how much the snapshots are saving.
+     *
+     * @return The number of commands drawn.
+     */
+    public long getReplayed()
+    {
+        return replayed;
+    }
+
+    /**
+     * Move the snapshots after an edit along to the new indexes of the
+     * commands they were taken before, and draw from the last snapshot at or
+     * before the edit.
+     *
+     * @param index The index of the edited command.
+     * @param shift How many commands were added, or -1 if one was removed.
+     * @return The image of the drawing.
+     * @throws BadCommand If any command tries to paint outside of the image.
+     */
+    private Image edited(int index, int shift) throws BadCommand
+    {
+        // Snapshots up to the edit still hold, and those after it may be met
+        // again, but not those that were already in doubt before the edit.
+        List<Snapshot> kept = new ArrayList<Snapshot>();
+        int stillValid = 0;
+        for (int i = 0; i < snapshots.size(); i++) {
+            Snapshot s = snapshots.get(i);
+            if (s.index <= index) {
+                if (i < valid) {
+                    kept.add(s);
+                    stillValid++;
+                }
+            } else {
+                s.index += shift;
+                kept.add(s);
+            }
+        }
+        snapshots.clear();
+        snapshots.addAll(kept);
+        valid = stillValid;
+        replay();
+        return image;
+    }
+
+    /**
+     * Draw from the last snapshot known to hold to the end of the drawing,
+     * taking snapshots along the way, until the image and cursor are the same
+     * as at one of the snapshots in doubt, from which on they all hold.
+     *
+     * @throws BadCommand If any command tries to paint outside of the image.
+     */
+    private void replay() throws BadCommand
+    {
+        List<Snapshot> doubtful = new ArrayList<Snapshot>(snapshots.subList(valid, snapshots.size()));
+        snapshots.subList(valid, snapshots.size()).clear();
+        Snapshot last = snapshots.get(valid - 1);
+        restore(last);
+
+        List<DrawingCommand> commands = drawing.commands;
+        int n = commands.size();
+        int pos = last.index;
+        Coordinate cursor = new Coordinate(last.x, last.y);
+        Coordinate newCursor = new Coordinate(last.x, last.y);
+        int next = 0;
+        try {
+            while (true) {
+                while (next < doubtful.size() && doubtful.get(next).index < pos) {
+                    next++;
+                }
+                boolean meets = next < doubtful.size() && doubtful.get(next).index == pos;
+                if (pos != last.index && (meets || pos == n || pos - last.index >= interval)) {
+                    last = take(pos, cursor);
+                    snapshots.add(last);
+                }
+                if (meets && same(last, doubtful.get(next))) {
+                    // Skip to the last of the old snapshots, which may not be
+                    // the end if drawing stopped at a BadCommand before.
+                    snapshots.addAll(doubtful.subList(next + 1, doubtful.size()));
+                    next = doubtful.size();
+                    last = snapshots.get(snapshots.size() - 1);
+                    restore(last);
+                    pos = last.index;
+                    cursor = new Coordinate(last.x, last.y);
+                    newCursor = new Coordinate(last.x, last.y);
+                    meets = false;
+                }
+                if (pos == n) {
+                    valid = snapshots.size();
+                    return;
+                }
+                if (meets) {
+                    next++;
+                }
+
+                int stop = (int) Math.min((long) last.index + interval, n);
+                if (next < doubtful.size()) {
+                    stop = Math.min(stop, doubtful.get(next).index);
+                }
+                for (; pos < stop; pos++) {
+                    DrawingCommand command = commands.get(pos);
+                    markX = cursor.x;
+                    markY = cursor.y;
+                    mark(command);
+                    Drawing.draw(command, image, cursor, newCursor);
+                    replayed++;
+                }
+            }
+        } catch (BadCommand e) {
+            // The dirty tiles are put right by the next restore. The old
+            // snapshots after this one are dropped, as the next edit cannot
+            // tell them from those taken here, and skipping to them would
+            // skip over the bad command.
+            valid = snapshots.size();
+            throw e;
+        }
+    }
+
+    /**
+     * Take a snapshot of the image, copying the dirty tiles and sharing the
+     * rest with the snapshot the image matched.
+     *
+     * @param index The index of the command the snapshot is taken before.
+     * @param cursor The cursor.
+     * @return The snapshot, which the image now matches.
+     */
+    private Snapshot take(int index, Coordinate cursor)
+    {
+        byte[][] tiles = shown.tiles.clone();
+        for (int t = dirty.nextSetBit(0); t >= 0; t = dirty.nextSetBit(t + 1)) {
+            tiles[t] = copyTile(t);
+        }
+        dirty.clear();
+        shown = new Snapshot(index, cursor.x, cursor.y, tiles);
+        return shown;
+    }
+
+    /**
+     * Check whether two snapshots have the same image and cursor.
+     *
+     * @param a One snapshot.
+     * @param b The other.
+     * @return True if they are the same.
+     */
+    private static boolean same(Snapshot a, Snapshot b)
+    {
+        if (a.x != b.x || a.y != b.y) {
+            return false;
+        }
+        for (int t = 0; t < a.tiles.length; t++) {
+            if (a.tiles[t] != b.tiles[t] && !Arrays.equals(a.tiles[t], b.tiles[t])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Put the image back to a snapshot, copying only the tiles that are dirty
+     * or differ from the snapshot it matches.
+     *
+     * @param target The snapshot.
+     */
+    private void restore(Snapshot target)
+    {
+        if (target == shown && dirty.isEmpty()) {
+            return;
+        }
+        Snapshot from = shown;
+        image.writePixels(pixels -> {
+            for (int t = 0; t < target.tiles.length; t++) {
+                if (dirty.get(t) || from.tiles[t] != target.tiles[t]) {
+                    writeTile(pixels, t, target.tiles[t]);
+                }
+            }
+        });
+        dirty.clear();
+        shown = target;
+    }
+
+    /**
+     * Mark the tiles a command may paint as dirty, starting at markX and
+     * markY and moving them as the command moves the cursor.
+     *
+     * @param command The command.
+     */
+    private void mark(DrawingCommand command)
+    {
+        if (command.body != null) {
+            // A body that ends where it starts paints the same place each time.
+            int times = command.moveX() == 0 && command.moveY() == 0 ? Math.min(1, command.distance) : command.distance;
+            for (int i = 0; i < times; i++) {
+                for (DrawingCommand c : command.body) {
+                    mark(c);
+                }
+            }
+        } else if (command.fill) {
+            markRect(markX, markY, (long) markX + command.distance - 1, (long) markY + command.rows - 1);
+        } else {
+            int x = markX + command.moveX();
+            int y = markY + command.moveY();
+            if (command.paint) {
+                markRect(Math.min(markX, x), Math.min(markY, y), Math.max(markX, x), Math.max(markY, y));
+            }
+            markX = x;
+            markY = y;
+        }
+    }
+
+    /**
+     * Mark the tiles of a rectangle that are inside the image as dirty.
+     *
+     * @param left The x value of the first column.
+     * @param top The y value of the first row.
+     * @param right The x value of the last column.
+     * @param bottom The y value of the last row.
+     */
+    private void markRect(long left, long top, long right, long bottom)
+    {
+        left = Math.max(left, 0);
+        top = Math.max(top, 0);
+        right = Math.min(right, drawing.width - 1);
+        bottom = Math.min(bottom, drawing.height - 1);
+        if (left > right || top > bottom) {
+            return;
+        }
+        for (int ty = (int) top / TILE; ty <= (int) bottom / TILE; ty++) {
+            dirty.set(ty * tilesAcross + (int) left / TILE, ty * tilesAcross + (int) right / TILE + 1);
+        }
+    }
+
+    /**
+     * Write one tile into the pixels of the image.
+     *
+     * @param pixels The pixels of the image.
+     * @param t The tile, numbered row by row.
+     * @param tile The colours of the tile, row by row.
+     */
+    private void writeTile(int[][] pixels, int t, byte[] tile)
+    {
+        int left = t % tilesAcross * TILE;
+        int top = t / tilesAcross * TILE;
+        int w = Math.min(TILE, drawing.width - left);
+        int h = Math.min(TILE, drawing.height - top);
+        for (int y = 0; y < h; y++) {
+            int[] row = pixels[top + y];
+            for (int x = 0; x < w; x++) {
+                row[left + x] = tile[y * w + x];
+            }
+        }
+    }
+
+    /**
+     * Copy one tile of the image.
+     *
+     * @param t The tile, numbered row by row.
+     * @return The colours of the tile, row by row.
+     */
+    private byte[] copyTile(int t)
+    {
+        int left = t % tilesAcross * TILE;
+        int top = t / tilesAcross * TILE;
+        int w = Math.min(TILE, drawing.width - left);
+        int h = Math.min(TILE, drawing.height - top);
+        byte[] tile = new byte[w * h];
+        int[] scratch = new int[drawing.width];
+        for (int y = 0; y < h; y++) {
+            int[] row = image.getRow(top + y, scratch);
+            for (int x = 0; x < w; x++) {
+                tile[y * w + x] = (byte) row[left + x];
+            }
+        }
+        return tile;
+    }
+}
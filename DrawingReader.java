@@ -0,0 +1,285 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * DrawingReader Class.
+ *
+ * Reads a drawing one command at a time, so that a drawing never has to be
+ * held in memory as a whole. Both the text format read by Drawing(String) and
+ * the binary format written by Drawing.writeBinary are understood, and told
+ * apart by the magic number at the start of the binary format.
+ *
+ * Errors in the text format are reported with their line and column. Errors
+ * in the binary format are reported on line 0.
+ *
+ * Drawings using fill commands are version 2 of the format, and drawings
+ * using repeat commands are version 3. In text, a later version drawing
+ * starts with a line such as "v2" before the height, and version 1 drawings
+ * have no version line. Readers that only know version 1 then stop at the
+ * header rather than part way through the commands.
+ *
+ * A repeat is read with its body, which is held as it is rather than
+ * expanded. In text, the body is the lines after "repeat count {" up to a
+ * line "}", and leading whitespace on command lines is ignored.
+ *
+ * The binary format is the 3 bytes of MAGIC and a version byte, then the
+ * height and width as ints and the background colour as a byte, followed by
+ * one entry per command: an op byte (direction ordinal in bits 0-1, paint
+ * flag in bit 2, fill flag in bit 3, colour in bits 4-7) and the distance as
+ * an int, followed for a fill by the number of rows as an int. A repeat is
+ * the op byte DrawingCommand.REPEAT_OP and the count as an int, followed by
+ * the number of commands in its body as an int and then those commands.
+ */
+public class DrawingReader implements AutoCloseable
+{
+    static final byte[] MAGIC = {'D', 'R', 'W'};
+    static final int VERSION = 3;
+
+    public int height;
+    public int width;
+    public int background;
+    public int version = 1;
+    private BufferedReader text;
+    private int line;
+    private DataInputStream binary;
+
+    /**
+     * Read the header of a drawing from a stream.
+     *
+     * @param stream The stream holding the drawing, in text or binary format.
+     * @throws FormatException If the header is malformed.
+     * @throws IOException If the stream cannot be read.
+     */
+    public DrawingReader(InputStream stream) throws IOException
+    {
+        BufferedInputStream in = new BufferedInputStream(stream);
+        in.mark(MAGIC.length);
+        byte[] start = new byte[MAGIC.length];
+        int read = in.readNBytes(start, 0, start.length);
+        in.reset();
+
+        if (read == MAGIC.length && Arrays.equals(start, MAGIC)) {
+            binary = new DataInputStream(in);
+            binary.skipBytes(MAGIC.length);
+            version = binary.readUnsignedByte();
+            checkVersion();
+            height = binary.readInt();
+            width = binary.readInt();
+            background = binary.readUnsignedByte();
+        } else {
+            text = new BufferedReader(new InputStreamReader(in));
+            String s = text.readLine();
+            line++;
+            if (s != null && s.startsWith("v")) {
+                try {
+                    version = Integer.parseInt(s.substring(1));
+                } catch (NumberFormatException e) {
+                    throw new FormatException("Bad format version (should be v followed by a number): " + s, line, 2);
+                }
+                checkVersion();
+                s = text.readLine();
+                line++;
+            }
+            height = parseHeaderLine(s, "height on the first line", 10);
+            width = readHeaderLine("width on the second line", 10);
+            background = readHeaderLine("background colour on the third line", 16);
+        }
+
+        if (background < 0 || background > 15) {
+            throw new FormatException("Bad background colour (should be a hex number betweeen 0 and f): "
+                    + Integer.toHexString(background), line, 1);
+        }
+    }
+
+    /**
+     * Read the next command of the drawing.
+     *
+     * @return The next command, or null at the end of the drawing.
+     * @throws FormatException If the command is malformed.
+     * @throws IOException If the stream cannot be read.
+     */
+    public DrawingCommand next() throws IOException
+    {
+        if (text != null) {
+            String s = text.readLine();
+            if (s == null) {
+                return null;
+            }
+            line++;
+            s = s.stripLeading();
+            if (s.equals("}")) {
+                throw new FormatException("Unexpected } outside of a repeat", line, 1);
+            }
+            return readText(s);
+        }
+
+        int op;
+        try {
+            op = binary.readUnsignedByte();
+        } catch (EOFException e) {
+            return null;
+        }
+        return readBinary(op);
+    }
+
+    /**
+     * Read a command of the text format, with its body if it is a repeat.
+     *
+     * @param s The line of the command, without leading whitespace.
+     * @return The command.
+     * @throws FormatException If the command is malformed.
+     * @throws IOException If the stream cannot be read.
+     */
+    private DrawingCommand readText(String s) throws IOException
+    {
+        int count = DrawingCommand.parseRepeat(s, line);
+        if (count < 0) {
+            return checkCommand(DrawingCommand.fromString(s, line));
+        }
+        if (version < 3) {
+            throw new FormatException("Repeat commands need format version 3: " + s, line, 1);
+        }
+
+        int start = line;
+        List<DrawingCommand> body = new ArrayList<DrawingCommand>();
+        for (String b = text.readLine(); ; b = text.readLine()) {
+            line++;
+            if (b == null) {
+                throw new FormatException("Missing } for the repeat on line " + start, line, 1);
+            }
+            b = b.stripLeading();
+            if (b.equals("}")) {
+                break;
+            }
+            body.add(readText(b));
+        }
+        return DrawingCommand.repeat(count, body);
+    }
+
+    /**
+     * Read a command of the binary format, with its body if it is a repeat.
+     *
+     * @param op The op byte of the command, which has already been read.
+     * @return The command.
+     * @throws FormatException If the command is malformed.
+     * @throws IOException If the stream cannot be read.
+     */
+    private DrawingCommand readBinary(int op) throws IOException
+    {
+        int distance = binary.readInt();
+        if (op != DrawingCommand.REPEAT_OP) {
+            return checkCommand(DrawingCommand.fromOp(op, distance, (op & 8) != 0 ? binary.readInt() : 0));
+        }
+
+        int size = binary.readInt();
+        if (distance < 0 || size < 0) {
+            throw new FormatException("Bad repeat (count and size should be 0 or more): " + distance + " " + size, line, 1);
+        }
+        List<DrawingCommand> body = new ArrayList<DrawingCommand>();
+        for (int i = 0; i < size; i++) {
+            body.add(readBinary(binary.readUnsignedByte()));
+        }
+        return checkCommand(DrawingCommand.repeat(distance, body));
+    }
+
+    /**
+     * Read every remaining command into an in-memory Drawing.
+     *
+     * @return The drawing.
+     * @throws IOException If the stream cannot be read.
+     */
+    public Drawing readAll() throws IOException
+    {
+        Drawing drawing = new Drawing(height, width, background);
+        for (DrawingCommand command = next(); command != null; command = next()) {
+            drawing.addCommand(command);
+        }
+        return drawing;
+    }
+
+    /**
+     * Close the underlying stream.
+     *
+     * @throws IOException If the stream cannot be closed.
+     */
+    public void close() throws IOException
+    {
+        if (text != null) {
+            text.close();
+        } else {
+            binary.close();
+        }
+    }
+
+    /**
+     * Read one of the three number lines at the start of the text format.
+     *
+     * @param name What the line should hold, for the error message.
+     * @param radix The radix the number is written in.
+     * @return The number on the line.
+     * @throws FormatException If the line is missing or not a number.
+     * @throws IOException If the stream cannot be read.
+     */
+    private int readHeaderLine(String name, int radix) throws IOException
+    {
+        String s = text.readLine();
+        line++;
+        return parseHeaderLine(s, name, radix);
+    }
+
+    /**
+     * Parse one of the three number lines at the start of the text format.
+     *
+     * @param s The line.
+     * @param name What the line should hold, for the error message.
+     * @param radix The radix the number is written in.
+     * @return The number on the line.
+     * @throws FormatException If the line is missing or not a number.
+     */
+    private int parseHeaderLine(String s, String name, int radix) throws FormatException
+    {
+        try {
+            return Integer.parseInt(s, radix);
+        } catch (NumberFormatException e) {
+            throw new FormatException("Expected the " + name + ": " + s, line, 1);
+        }
+    }
+
+    /**
+     * Check that this reader understands the version of the drawing.
+     *
+     * @throws FormatException If the version is newer than this reader.
+     */
+    private void checkVersion() throws FormatException
+    {
+        if (version < 1 || version > VERSION) {
+            throw new FormatException("Unsupported drawing format version: " + version, line, 1);
+        }
+    }
+
+    /**
+     * Check that a command is allowed in the version of the drawing.
+     *
+     * @param command The command.
+     * @return The same command.
+     * @throws FormatException If the command needs a later version.
+     */
+    private DrawingCommand checkCommand(DrawingCommand command) throws FormatException
+    {
+        if (command.fill && version < 2) {
+            throw new FormatException("Fill commands need format version 2: " + command, line, 1);
+        }
+        if (command.body != null && version < 3) {
+            throw new FormatException("Repeat commands need format version 3: repeat " + command.distance, line, 1);
+        }
+        return command;
+    }
+}
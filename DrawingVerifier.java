@@ -0,0 +1,140 @@
+import java.util.BitSet;
+
+/**
+ * DrawingVerifier Class.
+ *
+ * Checks that a drawing reproduces an image without drawing it into a second
+ * image. The commands are replayed from last to first, so the first command
+ * seen to paint a pixel is the one that decides its final colour, and that
+ * colour is compared with the image straight away. Pixels no command paints
+ * must be the background colour. Only one bit per pixel is kept, to remember
+ * which pixels have already been decided.
+ */
+public class DrawingVerifier
+{
+    /**
+     * Main method.
+     */
+    public static void main(String[] args)
+    {
+        // Check a drawing file against an image file.
+        Drawing d = new Drawing(args[0]);
+        Image i = new Image(args[1]);
+        try {
+            Mismatch m = verify(d, i);
+            System.out.println(m == null ? "OK" : m.toString());
+        } catch (BadCommand e) {
+            System.out.println(e);
+        }
+    }
+
+    /**
+     * Check that a drawing reproduces an image, stopping at the first pixel
+     * that does not.
+     *
+     * @param drawing The drawing to check.
+     * @param image The image it should reproduce.
+     * @return The first mismatch found, or null if the drawing matches.
+     * @throws BadCommand If a command tries to paint outside of the picture.
+     */
+    public static Mismatch verify(Drawing drawing, Image image) throws BadCommand
+    {
+        int height = drawing.height;
+        int width = drawing.width;
+        if (height != image.getHeight() || width != image.getWidth()) {
+            throw new IllegalArgumentException("Cannot verify a " + height + "x" + width
+                    + " drawing against a " + image.getHeight() + "x" + image.getWidth() + " image");
+        }
+
+        int n = drawing.commands.size();
+        int[] startX = new int[n];
+        int[] startY = new int[n];
+        drawing.trace(startX, startY);
+
+        BitSet decided = new BitSet(height * width);
+        for (int c = n - 1; c >= 0; c--) {
+            Mismatch m = verify(drawing.commands.get(c), startX[c], startY[c], c, image, decided);
+            if (m != null) {
+                return m;
+            }
+        }
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (!decided.get(y * width + x) && image.getColor(x, y) != drawing.background) {
+                    return new Mismatch(-1, x, y, image.getColor(x, y), drawing.background);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check the pixels one command decides, those that no later command
+     * paints over. The body of a repeat is checked from its last run back to
+     * its first.
+     *
+     * @param command The command.
+     * @param x The x value of the cursor before the command.
+     * @param y The y value of the cursor before the command.
+     * @param c The index of the top level command this command is part of.
+     * @param image The image the drawing should reproduce.
+     * @param decided The pixels already decided by later commands, updated
+     * with the pixels this command decides.
+     * @return The first mismatch found, or null if every pixel matches.
+     */
+    private static Mismatch verify(DrawingCommand command, int x, int y, int c, Image image, BitSet decided)
+    {
+        int width = image.getWidth();
+        if (command.body != null) {
+            int size = command.body.size();
+            int[] offsetX = new int[size + 1];
+            int[] offsetY = new int[size + 1];
+            for (int b = 0; b < size; b++) {
+                offsetX[b + 1] = offsetX[b] + command.body.get(b).moveX();
+                offsetY[b + 1] = offsetY[b] + command.body.get(b).moveY();
+            }
+            for (int i = command.distance - 1; i >= 0; i--) {
+                for (int b = size - 1; b >= 0; b--) {
+                    Mismatch m = verify(command.body.get(b), x + offsetX[size] * i + offsetX[b],
+                            y + offsetY[size] * i + offsetY[b], c, image, decided);
+                    if (m != null) {
+                        return m;
+                    }
+                }
+            }
+            return null;
+        }
+        if (!command.paint || command.distance < 0) {
+            return null;
+        }
+        if (command.fill) {
+            for (int py = y; py < y + command.rows; py++) {
+                for (int px = x; px < x + command.distance; px++) {
+                    int index = py * width + px;
+                    if (!decided.get(index)) {
+                        decided.set(index);
+                        if (image.getColor(px, py) != command.colour) {
+                            return new Mismatch(c, px, py, image.getColor(px, py), command.colour);
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+        int first = command.distance == 0 ? 0 : 1;
+        for (int i = first; i <= command.distance; i++) {
+            int px = x + command.dir.dx * i;
+            int py = y + command.dir.dy * i;
+            int index = py * width + px;
+            if (decided.get(index)) {
+                continue;
+            }
+            decided.set(index);
+            if (image.getColor(px, py) != command.colour) {
+                return new Mismatch(c, px, py, image.getColor(px, py), command.colour);
+            }
+        }
+        return null;
+    }
+}
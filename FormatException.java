@@ -0,0 +1,56 @@
+import java.io.IOException;
+
+/**
+ * FormatException Class.
+ *
+ * Thrown when an image or drawing file is malformed, giving where in the file
+ * the problem is, so that bad input can be reported and recovered from rather
+ * than ending the program.
+ */
+public class FormatException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final int line;
+    private final int column;
+
+    /**
+     * Returns an error message.
+     *
+     * @param message What is wrong with the input.
+     * @param line The line of the problem, counting from 1.
+     * @param column The column of the problem, counting from 1.
+     */
+    public FormatException(String message, int line, int column)
+    {
+        super(message);
+        this.line = line;
+        this.column = column;
+    }
+
+    /**
+     * Get the line of the problem.
+     *
+     * @return The line, counting from 1.
+     */
+    public int getLine()
+    {
+        return line;
+    }
+
+    /**
+     * Get the column of the problem.
+     *
+     * @return The column, counting from 1.
+     */
+    public int getColumn()
+    {
+        return column;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FormatException at " + line + ":" + column + ": " + getMessage();
+    }
+}
@@ -1,7 +1,8 @@
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 
 /**
  * Image Class.
@@ -9,7 +10,7 @@ import java.util.ArrayList;
  * This class represents a simple rectangular image, where each pixel can be
  * one of 16 colours.
  */
-public class Image
+public class Image implements AutoCloseable
 {
 
     // This is the standard 4-bit EGA colour scheme, where the numbers represent
@@ -19,8 +20,40 @@ public class Image
                     0xAA0000, 0xAA00AA, 0xAA5500, 0xAAAAAA,
                     0x555555, 0x5555FF, 0x55FF55, 0x55FFFF,
                     0xFF5555, 0xFF55FF, 0xFFFF55, 0xFFFFFF};
-    // Store a 2 dimensional image with "colours" as numbers between 0 and 15
-    public int pixels[][];
+    // Store a 2 dimensional image with "colours" as numbers between 0 and 15,
+    // either on the heap in pixels, as runs of one colour along each row, or
+    // off the heap in a memory mapped canvas (in the last two cases pixels is
+    // null). Runs are turned into pixels once there are more than one for
+    // every DENSE_RATIO pixels, as the image is then too noisy for runs to pay.
+    // Which one is used is hidden, so the pixels are read through getColor
+    // and getRow.
+    private int pixels[][];
+    private RunLengthRows runs;
+    private MappedCanvas canvas;
+    private static final int DENSE_RATIO = 4;
+
+    // How many pixels of each colour there are and where, built when the
+    // image is read or first asked about, and kept up to date by set and
+    // fillRow from then on. Only writePixels writes to pixels any other way,
+    // and it forgets the statistics afterwards.
+    private ColourStats stats;
+    // Set once getPixels has handed out the pixels, after which they can be
+    // changed behind the image's back, so the statistics are never kept.
+    private boolean pixelsShared;
+
+    /**
+     * Something that paints the pixels of an image held on the heap all at
+     * once, such as a compiled drawing.
+     */
+    interface PixelWriter
+    {
+        /**
+         * Write to the pixels, without keeping hold of them afterwards.
+         *
+         * @param pixels The pixels, row by row.
+         */
+        void write(int[][] pixels);
+    }
 
     /**
      * Read in an image from a file. Each line of the file must be the same
@@ -30,45 +63,118 @@ public class Image
      */
     public Image(String filename)
     {
-        // Read the whole file into lines
-        ArrayList<String> lines = new ArrayList<String>();
         try {
-            BufferedReader in = new BufferedReader(new FileReader(filename));
-            for (String s = in.readLine(); s != null; s = in.readLine())
-                lines.add(s);
+            Image image = read(filename);
+            pixels = image.pixels;
+            runs = image.runs;
+            stats = image.stats;
         } catch (FileNotFoundException e) {
             System.out.println("File not found: " + filename);
             System.exit(1);
+        } catch (FormatException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
         } catch (IOException e) {
             System.exit(2);
         }
+    }
+
+    /**
+     * Read in an image from a file, in the same format as Image(String), but
+     * throwing an exception rather than exiting if anything goes wrong.
+     *
+     * @param filename The file to be read.
+     * @return The image.
+     * @throws FormatException If the file is not a valid image.
+     * @throws IOException If the file cannot be read.
+     */
+    public static Image read(String filename) throws IOException
+    {
+        // Read the whole file into lines
+        ArrayList<String> lines = new ArrayList<String>();
+        try (BufferedReader in = new BufferedReader(new FileReader(filename))) {
+            for (String s = in.readLine(); s != null; s = in.readLine())
+                lines.add(s);
+        }
 
         if (lines.size() == 0) {
-            System.out.println("Empty file: " + filename);
-            System.exit(1);
+            throw new FormatException("Empty file: " + filename, 1, 1);
         }
+        return fromLines(lines);
+    }
 
-        // Initialise the array based on the number of lines and the length of the
-        // first one.
+    /**
+     * Read in an image from a PNG, giving each pixel the nearest of the 16
+     * colours.
+     *
+     * @param filename The PNG to be read.
+     * @return The image.
+     * @throws FormatException If the file is not an image that can be read.
+     * @throws IOException If the file cannot be read.
+     */
+    public static Image readPNG(String filename) throws IOException
+    {
+        return PngReader.read(filename);
+    }
+
+    /**
+     * Read in an image from lines of text, in the same format as a file read
+     * by Image(String), without exiting on bad input.
+     *
+     * @param lines The lines of the image.
+     * @return The image.
+     * @throws FormatException If the lines are not a valid image.
+     */
+    public static Image fromLines(List<String> lines) throws FormatException
+    {
+        if (lines.size() == 0) {
+            throw new FormatException("Empty image", 1, 1);
+        }
+        return parse(lines);
+    }
+
+    /**
+     * Convert lines of hex digits into an image, held as runs until it turns
+     * out to be too noisy.
+     *
+     * @param lines The lines of the image, of which there is at least one.
+     * @return The image.
+     * @throws FormatException If the lines are not a valid image.
+     */
+    private static Image parse(List<String> lines) throws FormatException
+    {
+        // Initialise the image based on the number of lines and the length of
+        // the first one.
         int length = lines.get(0).length();
-        pixels = new int[lines.size()][length];
+        if (length == 0) {
+            throw new FormatException("Empty first line", 1, 1);
+        }
+        Image image = createRuns(lines.size(), length, 0);
+        image.stats = new ColourStats(lines.size());
+        int[] row = new int[length];
 
         for (int i = 0; i < lines.size(); i++) {
             // Check that all of the lines have the same length as the first one.
             if (length != lines.get(i).length()) {
-                System.out.println("Inconsistent line lengths: " + length + " and " + lines.get(i).length() + " on lines 1 and " + (i + 1));
-                System.exit(1);
+                throw new FormatException("Inconsistent line lengths: " + length + " and " + lines.get(i).length() + " on lines 1 and " + (i + 1),
+                        i + 1, Math.min(length, lines.get(i).length()) + 1);
             }
 
-            // Copy each line into the array
+            // Copy each line into the image
+            int[] pixels = image.pixels == null ? row : image.pixels[i];
             for (int j = 0; j < length; j++) {
-                pixels[i][j] = Character.getNumericValue(lines.get(i).charAt(j));
-                if (pixels[i][j] < 0 || pixels[i][j] > 15) {
-                    System.out.println("Invalid contents: " + lines.get(i).charAt(j) + " on line " + (i + 1));
-                    System.exit(1);
+                pixels[j] = Character.getNumericValue(lines.get(i).charAt(j));
+                if (pixels[j] < 0 || pixels[j] > 15) {
+                    throw new FormatException("Invalid contents: " + lines.get(i).charAt(j) + " on line " + (i + 1), i + 1, j + 1);
                 }
             }
+            image.stats.addRow(i, pixels);
+            if (image.runs != null) {
+                image.runs.setRow(i, row);
+                image.checkDensity();
+            }
         }
+        return image;
     }
 
     /**
@@ -86,6 +192,220 @@ public class Image
                 pixels[i][j] = colour;
     }
 
+    /**
+     * Create a solid image with given dimensions and colour, held as runs of
+     * one colour along each row until it gets too noisy.
+     *
+     * @param height The height.
+     * @param width The width.
+     * @param colour The colour of the background.
+     * @return The image.
+     */
+    public static Image createRuns(int height, int width, int colour)
+    {
+        Image image = new Image(0, 0, 0);
+        image.pixels = null;
+        image.runs = new RunLengthRows(height, width, colour);
+        return image;
+    }
+
+    /**
+     * Copy this image into one held as runs, which is turned into pixels
+     * straight away if it is too noisy.
+     *
+     * @return The copy.
+     */
+    public Image toRuns()
+    {
+        Image copy = createRuns(getHeight(), getWidth(), 0);
+        int[] scratch = new int[getWidth()];
+        for (int y = 0; y < getHeight(); y++) {
+            copy.runs.setRow(y, getRow(y, scratch));
+        }
+        copy.checkDensity();
+        return copy;
+    }
+
+    /**
+     * Check whether the image is held as runs of one colour along each row.
+     *
+     * @return True if it is held as runs.
+     */
+    public boolean isRuns()
+    {
+        return runs != null;
+    }
+
+    /**
+     * Get the pixels as an array, row by row. An image held as runs is turned
+     * into pixels first. An image held in a memory mapped canvas gives a copy,
+     * so changes to it are not written back. As the array can be changed at
+     * any time, the colour statistics are counted afresh whenever asked for.
+     *
+     * @return The pixels.
+     * @deprecated Read pixels through getColor and getRow, and paint them
+     * through set and fillRow, which work however the image is held.
+     */
+    @Deprecated
+    public int[][] getPixels()
+    {
+        if (canvas != null) {
+            int[][] copy = new int[getHeight()][getWidth()];
+            for (int y = 0; y < copy.length; y++) {
+                canvas.getRow(y, copy[y]);
+            }
+            return copy;
+        }
+        if (runs != null) {
+            pixels = toPixels(runs);
+            runs = null;
+        }
+        pixelsShared = true;
+        stats = null;
+        return pixels;
+    }
+
+    /**
+     * Turn runs into pixels if there are too many of them for the area.
+     */
+    private void checkDensity()
+    {
+        if (runs != null && runs.getRunCount() * DENSE_RATIO > (long) runs.height * runs.width) {
+            pixels = toPixels(runs);
+            runs = null;
+        }
+    }
+
+    /**
+     * Write out runs as pixels.
+     *
+     * @param runs The runs.
+     * @return The pixels, row by row.
+     */
+    private static int[][] toPixels(RunLengthRows runs)
+    {
+        int[][] pixels = new int[runs.height][runs.width];
+        for (int y = 0; y < runs.height; y++) {
+            runs.getRow(y, pixels[y]);
+        }
+        return pixels;
+    }
+
+    /**
+     * Let something paint the pixels of an image held on the heap all at once,
+     * and forget the colour statistics afterwards, as they no longer match.
+     * An image held as runs is written out as pixels for the writer and read
+     * back into runs afterwards, so it stays held as runs unless it has
+     * become too noisy.
+     *
+     * @param writer What paints the pixels.
+     * @return True if the writer was run, or false if the image is held in a
+     * memory mapped canvas.
+     */
+    boolean writePixels(PixelWriter writer)
+    {
+        if (pixels == null && runs == null) {
+            return false;
+        }
+        try {
+            if (pixels != null) {
+                writer.write(pixels);
+            } else {
+                int[][] written = toPixels(runs);
+                writer.write(written);
+                for (int y = 0; y < written.length; y++) {
+                    runs.setRow(y, written[y]);
+                }
+                checkDensity();
+            }
+        } finally {
+            stats = null;
+        }
+        return true;
+    }
+
+    /**
+     * Create an image backed by a memory mapped canvas rather than the heap.
+     *
+     * @param canvas The canvas holding the pixels.
+     */
+    public Image(MappedCanvas canvas)
+    {
+        this.canvas = canvas;
+    }
+
+    /**
+     * Create a solid image with given dimensions and colour, backed by a new
+     * memory mapped canvas file.
+     *
+     * @param filename The file to back the image with, which is overwritten.
+     * @param height The height.
+     * @param width The width.
+     * @param colour The colour of the background.
+     * @return The image.
+     * @throws IOException If the file cannot be created.
+     */
+    public static Image createMapped(String filename, int height, int width, int colour) throws IOException
+    {
+        return new Image(new MappedCanvas(filename, height, width, colour));
+    }
+
+    /**
+     * Reopen an image from a memory mapped canvas file, without reading any
+     * of its pixels.
+     *
+     * @param filename The canvas file.
+     * @return The image.
+     * @throws IOException If the file cannot be opened or is not a canvas.
+     */
+    public static Image openMapped(String filename) throws IOException
+    {
+        return new Image(MappedCanvas.open(filename));
+    }
+
+    /**
+     * Copy this image into a new memory mapped canvas file, so it can later
+     * be reopened with openMapped.
+     *
+     * @param filename The file to back the copy with, which is overwritten.
+     * @return The copy.
+     * @throws IOException If the file cannot be created.
+     */
+    public Image toMapped(String filename) throws IOException
+    {
+        Image copy = createMapped(filename, getHeight(), getWidth(), 0);
+        int[] scratch = new int[getWidth()];
+        for (int y = 0; y < getHeight(); y++) {
+            copy.canvas.setRow(y, getRow(y, scratch));
+        }
+        return copy;
+    }
+
+    /**
+     * Write any changes to a memory mapped image back to its file. Does
+     * nothing for an image on the heap.
+     */
+    public void flush()
+    {
+        if (canvas != null) {
+            canvas.force();
+        }
+    }
+
+    /**
+     * Write any changes to a memory mapped image back to its file and close
+     * the file, after which the image must not be used. Does nothing for an
+     * image on the heap.
+     *
+     * @throws IOException If the file cannot be closed.
+     */
+    public void close() throws IOException
+    {
+        if (canvas != null) {
+            canvas.close();
+        }
+    }
+
     /**
      * Main method.
      */
@@ -104,10 +424,12 @@ public class Image
      */
     public String toString()
     {
-        StringBuilder s = new StringBuilder(pixels.length * pixels[0].length);
-        for (int i = 0; i < pixels.length; i++) {
-            for (int j = 0; j < pixels[i].length; j++)
-                s.append(Integer.toHexString(pixels[i][j]));
+        StringBuilder s = new StringBuilder(getHeight() * (getWidth() + 1));
+        int[] scratch = new int[getWidth()];
+        for (int i = 0; i < getHeight(); i++) {
+            int[] row = getRow(i, scratch);
+            for (int j = 0; j < getWidth(); j++)
+                s.append(Character.forDigit(row[j], 16));
             s.append("\n");
         }
         return s.toString();
@@ -130,8 +452,23 @@ public class Image
      */
     public Drawing compress()
     {
-        Compressor c = new Compressor(this);
-        return c.compress();
+        // An image the compressor gets stuck on is run-length encoded instead.
+        Drawing drawing = new Compressor(this).compress();
+        return drawing != null ? drawing : AnytimeCompressor.runLengthEncode(this);
+    }
+
+    /**
+     * Compress the image as compress does, unless it is the same as an image
+     * compressed through the same cache before but for its colours, when
+     * that image's drawing is recoloured instead.
+     *
+     * @param cache The drawings of earlier images.
+     * @return The drawing, which may be changed freely.
+     */
+    public Drawing compressCached(PaletteCache cache)
+    {
+        Drawing drawing = cache.compress(this);
+        return drawing != null ? drawing : AnytimeCompressor.runLengthEncode(this);
     }
 
     /**
@@ -141,23 +478,30 @@ public class Image
      */
     public void toPNG(String filename)
     {
-
-        BufferedImage im = new BufferedImage(pixels[0].length, pixels.length, BufferedImage.TYPE_INT_RGB);
-
-        for (int i = 0; i < pixels.length; i++)
-            for (int j = 0; j < pixels[i].length; j++) {
-                im.setRGB(j, i, colours[pixels[i][j]]);
-            }
-
-        File f = new File(filename + ".png");
-        try {
-            ImageIO.write(im, "PNG", f);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(filename + ".png"))) {
+            writePNG(out);
         } catch (IOException e) {
             System.out.println("Unable to write image");
             System.exit(1);
         }
     }
 
+    /**
+     * Write the image as a 4-bit palette PNG to a stream, a row at a time.
+     *
+     * @param out The stream to write to.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void writePNG(OutputStream out) throws IOException
+    {
+        PngWriter.write(out, getHeight(), getWidth(), (y, row) -> {
+            int[] r = getRow(y, row);
+            if (r != row) {
+                System.arraycopy(r, 0, row, 0, row.length);
+            }
+        });
+    }
+
     /**
      * As part of Task 1, this method sets the colour of a specific pixel.
      *
@@ -166,6 +510,22 @@ public class Image
      * @param color The colour to be painted at a specific pixel.
      */
     public void set(int x, int y, int color) throws BadCommand {
+        if (stats != null && x >= 0 && x < getWidth() && y >= 0 && y < getHeight()) {
+            stats.remove(y, x, x + 1, getColor(x, y));
+            stats.add(y, x, x + 1, color);
+        }
+        if (runs != null) {
+            if (x < 0 || x >= runs.width || y < 0 || y >= runs.height) {
+                throw new BadCommand(x, y);
+            }
+            runs.fillRow(y, x, x + 1, color);
+            checkDensity();
+            return;
+        }
+        if (pixels == null) {
+            canvas.set(x, y, color);
+            return;
+        }
         try {
             pixels[y][x] = color;
         } catch (ArrayIndexOutOfBoundsException e) {
@@ -173,6 +533,67 @@ public class Image
         }
     }
 
+    /**
+     * Paint a run of pixels along one row, from x0 up to but not including
+     * x1, all at once if the run is inside the image.
+     *
+     * @param y The row.
+     * @param x0 The x value of the first pixel.
+     * @param x1 The x value after the last pixel.
+     * @param color The colour to paint.
+     * @throws BadCommand For the first pixel of the run outside of the image.
+     */
+    public void fillRow(int y, int x0, int x1, int color) throws BadCommand
+    {
+        boolean inside = y >= 0 && y < getHeight() && x0 >= 0 && x1 <= getWidth();
+        if (inside && stats != null && x0 < x1) {
+            // Take off the runs being painted over, a run at a time.
+            for (int x = x0; x < x1; ) {
+                int end = Math.min(runEnd(x, y), x1);
+                stats.remove(y, x, end, getColor(x, y));
+                x = end;
+            }
+            stats.add(y, x0, x1, color);
+        }
+        if (pixels != null && inside) {
+            if (x0 < x1) {
+                Arrays.fill(pixels[y], x0, x1, color);
+            }
+            return;
+        }
+        if (runs != null && inside) {
+            if (x0 < x1) {
+                runs.fillRow(y, x0, x1, color);
+                checkDensity();
+            }
+            return;
+        }
+        for (int x = x0; x < x1; x++) {
+            if (inside) {
+                canvas.set(x, y, color);
+            } else {
+                set(x, y, color);
+            }
+        }
+    }
+
+    /**
+     * Paint a rectangle of pixels a row at a time, from the top left.
+     *
+     * @param x The x value of the top left corner.
+     * @param y The y value of the top left corner.
+     * @param width The number of columns.
+     * @param height The number of rows.
+     * @param color The colour to paint.
+     * @throws BadCommand For the first pixel outside of the image.
+     */
+    public void fillRect(int x, int y, int width, int height, int color) throws BadCommand
+    {
+        for (int row = y; row < y + height; row++) {
+            fillRow(row, x, x + width, color);
+        }
+    }
+
     /**
      * Get colour at a specific pixel, using x and y values.
      *
@@ -182,7 +603,211 @@ public class Image
      */
     public int getColor(int x, int y)
     {
-        return pixels[y][x];
+        if (pixels != null) {
+            return pixels[y][x];
+        }
+        if (runs != null) {
+            return runs.getColor(x, y);
+        }
+        return canvas.getColor(x, y);
+    }
+
+    /**
+     * Get the x value after the last pixel of the run of one colour along a
+     * row that starts at a pixel, without looking at every pixel of the run
+     * if the image is held as runs.
+     *
+     * @param x The x value of a pixel inside the image.
+     * @param y The y value of the pixel.
+     * @return The end of the run.
+     */
+    public int runEnd(int x, int y)
+    {
+        if (runs != null) {
+            return runs.runEnd(x, y);
+        }
+        int color = getColor(x, y);
+        int end = x + 1;
+        while (end < getWidth() && getColor(end, y) == color) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Get the x value of the first pixel of the run of one colour along a row
+     * that ends at a pixel, without looking at every pixel of the run if the
+     * image is held as runs.
+     *
+     * @param x The x value of a pixel inside the image.
+     * @param y The y value of the pixel.
+     * @return The start of the run.
+     */
+    public int runStart(int x, int y)
+    {
+        if (runs != null) {
+            return runs.runStart(x, y);
+        }
+        int color = getColor(x, y);
+        int start = x;
+        while (start > 0 && getColor(start - 1, y) == color) {
+            start--;
+        }
+        return start;
+    }
+
+    /**
+     * Get the height of the image.
+     *
+     * @return The number of rows.
+     */
+    public int getHeight()
+    {
+        if (pixels != null) {
+            return pixels.length;
+        }
+        return runs != null ? runs.height : canvas.height;
+    }
+
+    /**
+     * Get the width of the image.
+     *
+     * @return The number of columns.
+     */
+    public int getWidth()
+    {
+        if (pixels != null) {
+            return pixels[0].length;
+        }
+        return runs != null ? runs.width : canvas.width;
+    }
+
+    /**
+     * Get one row of the image. For an image of pixels this is the row
+     * itself, which must not be changed, otherwise the row is copied into
+     * scratch.
+     *
+     * @param y The row to read.
+     * @param scratch An array of at least the width, used for runs and mapped images.
+     * @return The colours of the row.
+     */
+    int[] getRow(int y, int[] scratch)
+    {
+        if (pixels != null) {
+            return pixels[y];
+        }
+        if (runs != null) {
+            runs.getRow(y, scratch);
+        } else {
+            canvas.getRow(y, scratch);
+        }
+        return scratch;
+    }
+
+    /**
+     * Count how many pixels there are of each colour.
+     *
+     * @return The number of pixels of each of the 16 colours.
+     */
+    public int[] histogram()
+    {
+        return getStats().counts.clone();
+    }
+
+    /**
+     * Find the rows that hold at least one pixel of a colour.
+     *
+     * @param color The colour.
+     * @return The rows, which must not be changed.
+     */
+    public BitSet rowsWith(int color)
+    {
+        return getStats().rows[color];
+    }
+
+    /**
+     * Get the colour statistics, counting them first if they have not been
+     * kept since the image was made.
+     *
+     * @return The statistics.
+     */
+    private ColourStats getStats()
+    {
+        if (stats == null) {
+            ColourStats s = new ColourStats(getHeight());
+            for (int y = 0; y < getHeight(); y++) {
+                for (int x = 0; x < getWidth(); ) {
+                    int end = runEnd(x, y);
+                    s.add(y, x, end, getColor(x, y));
+                    x = end;
+                }
+            }
+            if (pixelsShared) {
+                return s;
+            }
+            stats = s;
+        }
+        return stats;
+    }
+
+    /**
+     * Check whether another image has the same dimensions and pixels as this
+     * one, without building strings of either.
+     *
+     * @param other The image to compare with.
+     * @return True if every pixel matches.
+     */
+    public boolean pixelsEqual(Image other)
+    {
+        if (getHeight() != other.getHeight() || getWidth() != other.getWidth()) {
+            return false;
+        }
+        int[] scratch = new int[getWidth()];
+        int[] otherScratch = new int[getWidth()];
+        for (int y = 0; y < getHeight(); y++) {
+            if (!Arrays.equals(getRow(y, scratch), other.getRow(y, otherScratch))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find every run of pixels that differs between this image and another
+     * of the same dimensions.
+     *
+     * @param other The image to compare with.
+     * @return The mismatching spans, in row order.
+     */
+    public List<Span> diff(Image other)
+    {
+        if (getHeight() != other.getHeight() || getWidth() != other.getWidth()) {
+            throw new IllegalArgumentException("Cannot diff a " + getHeight() + "x" + getWidth()
+                    + " image with a " + other.getHeight() + "x" + other.getWidth() + " image");
+        }
+        List<Span> spans = new ArrayList<Span>();
+        int width = getWidth();
+        int[] scratch = new int[width];
+        int[] otherScratch = new int[width];
+        for (int y = 0; y < getHeight(); y++) {
+            int[] row = getRow(y, scratch);
+            int[] otherRow = other.getRow(y, otherScratch);
+            int x = 0;
+            while (x < width) {
+                int skip = Arrays.mismatch(row, x, width, otherRow, x, width);
+                if (skip < 0) {
+                    break;
+                }
+                int start = x + skip;
+                int end = start + 1;
+                while (end < width && row[end] != otherRow[end]) {
+                    end++;
+                }
+                spans.add(new Span(y, start, end));
+                x = end;
+            }
+        }
+        return spans;
     }
 
     /**
@@ -0,0 +1,99 @@
+/**
+ * Line Class.
+ */
+class Line
+{
+    protected int startX;
+    protected int startY;
+    protected int endX;
+    protected int endY;
+
+    /**
+     * Create an empty line, to be filled in with set.
+     */
+    public Line()
+    {
+    }
+
+    /**
+     * Create a line, with a start and end point, so we can try to draw an entire line in one command.
+     *
+     * @param startX The x value of the start coordinate.
+     * @param startY The y value of the start coordinate.
+     * @param endX The x value of the end coordinate.
+     * @param endY The y value of the end coordinate.
+     */
+    public Line(int startX, int startY, int endX, int endY)
+    {
+        set(startX, startY, endX, endY);
+    }
+
+    /**
+     * Moves the line to a new start and end point, so one line can be reused.
+     *
+     * @param startX The x value of the start coordinate.
+     * @param startY The y value of the start coordinate.
+     * @param endX The x value of the end coordinate.
+     * @param endY The y value of the end coordinate.
+     */
+    protected void set(int startX, int startY, int endX, int endY)
+    {
+        this.startX = startX;
+        this.startY = startY;
+        this.endX = endX;
+        this.endY = endY;
+    }
+
+    /**
+     * Finds out whether the line is a single coordinate, a vertical line or a horizontal line.
+     *
+     * @return A LineType object, which is one of three Enums: SINGLE, VERTICAL and HORIZONTAL.
+     */
+    protected LineType findLineType()
+    {
+        if (startX == endX && startY == endY) {
+            return LineType.SINGLE;
+        }
+        if (startX == endX) {
+            return LineType.VERTICAL;
+        }
+        if (startY == endY) {
+            return LineType.HORIZONTAL;
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the direction of a line by comparing the x and y values of the start and end points.
+     *
+     * @return A Direction object defining the direction of travel.
+     */
+    protected Direction getDirecton()
+    {
+        if (startX < endX) {
+            return Direction.RIGHT;
+        }
+        if (startX > endX) {
+            return Direction.LEFT;
+        }
+        if (startY < endY) {
+            return Direction.DOWN;
+        }
+        if (startY > endY) {
+            return Direction.UP;
+        }
+
+        return null;
+    }
+
+    /**
+     * Calculates the length of a line.
+     *
+     * @return The length of the line.
+     */
+    protected int getLength()
+    {
+        return Math.abs((startX - endX) + (startY - endY)) + 1;
+    }
+}
@@ -0,0 +1,7 @@
+/**
+ * LineType Enum.
+ */
+enum LineType
+{
+    VERTICAL, HORIZONTAL, SINGLE;
+}
@@ -0,0 +1,228 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * MappedCanvas Class.
+ *
+ * A canvas of colours between 0 and 15, one byte per pixel, held in a memory
+ * mapped file rather than on the heap. The file is mapped in segments of whole
+ * rows, so canvases larger than 2GB can be used.
+ *
+ * The file starts with a header of the 4 bytes of MAGIC and the height and
+ * width as ints, so a canvas can be reopened without being redrawn.
+ */
+public class MappedCanvas implements AutoCloseable
+{
+    static final byte[] MAGIC = {'C', 'N', 'V', 1};
+    private static final int HEADER_SIZE = 12;
+
+    public final int height;
+    public final int width;
+    private final int rowsPerSegment;
+    private final MappedByteBuffer[] segments;
+    private final FileChannel channel;
+
+    /**
+     * Create a canvas file of the given dimensions, filled with one colour.
+     *
+     * @param filename The file to back the canvas with, which is overwritten.
+     * @param height The height.
+     * @param width The width.
+     * @param colour The colour of the background.
+     * @throws IOException If the file cannot be created or mapped.
+     */
+    public MappedCanvas(String filename, int height, int width, int colour) throws IOException
+    {
+        this(FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), height, width);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC).putInt(height).putInt(width).flip();
+        channel.write(header, 0);
+
+        byte[] row = new byte[width];
+        Arrays.fill(row, (byte) colour);
+        for (int y = 0; y < height; y++) {
+            segments[y / rowsPerSegment].put((y % rowsPerSegment) * width, row);
+        }
+    }
+
+    /**
+     * Map the pixels of an open canvas file.
+     *
+     * @param channel The open canvas file.
+     * @param height The height.
+     * @param width The width.
+     * @throws IOException If the file cannot be mapped.
+     */
+    private MappedCanvas(FileChannel channel, int height, int width) throws IOException
+    {
+        this.channel = channel;
+        this.height = height;
+        this.width = width;
+        // No more rows than the canvas has, so a narrow canvas cannot overflow
+        // the count of segments.
+        rowsPerSegment = Math.max(1, Math.min(height, Integer.MAX_VALUE / Math.max(1, width)));
+        segments = new MappedByteBuffer[(int) ((height + (long) rowsPerSegment - 1) / rowsPerSegment)];
+        for (int i = 0; i < segments.length; i++) {
+            int rows = Math.min(rowsPerSegment, height - i * rowsPerSegment);
+            long offset = HEADER_SIZE + (long) i * rowsPerSegment * width;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset, (long) rows * width);
+        }
+    }
+
+    /**
+     * Reopen an existing canvas file, without reading any of its pixels.
+     *
+     * @param filename The canvas file.
+     * @return The canvas, sharing its pixels with the file.
+     * @throws IOException If the file cannot be opened or is not a canvas.
+     */
+    public static MappedCanvas open(String filename) throws IOException
+    {
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        byte[] magic = new byte[MAGIC.length];
+        if (header.remaining() == HEADER_SIZE) {
+            header.get(magic);
+        }
+        if (!Arrays.equals(magic, MAGIC)) {
+            channel.close();
+            throw new IOException("Not a canvas file: " + filename);
+        }
+        int height = header.getInt();
+        int width = header.getInt();
+        if (channel.size() < HEADER_SIZE + (long) height * width) {
+            channel.close();
+            throw new IOException("Truncated canvas file: " + filename);
+        }
+        return new MappedCanvas(channel, height, width);
+    }
+
+    /**
+     * Get colour at a specific pixel, using x and y values.
+     *
+     * @param x Value of x.
+     * @param y Value of y.
+     * @return The colour at the specified coordinate.
+     */
+    public int getColor(int x, int y)
+    {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new ArrayIndexOutOfBoundsException("Index " + x + "," + y + " out of bounds");
+        }
+        return segments[y / rowsPerSegment].get((y % rowsPerSegment) * width + x);
+    }
+
+    /**
+     * Sets the colour of a specific pixel.
+     *
+     * @param x The x value.
+     * @param y The y value.
+     * @param color The colour to be painted at a specific pixel.
+     * @throws BadCommand If the pixel is outside of the canvas.
+     */
+    public void set(int x, int y, int color) throws BadCommand
+    {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new BadCommand(x, y);
+        }
+        segments[y / rowsPerSegment].put((y % rowsPerSegment) * width + x, (byte) color);
+    }
+
+    /**
+     * Read one row of the canvas.
+     *
+     * @param y The row to read.
+     * @param row The array to fill in, one colour per pixel.
+     */
+    public void getRow(int y, int[] row)
+    {
+        MappedByteBuffer segment = segments[y / rowsPerSegment];
+        int offset = (y % rowsPerSegment) * width;
+        for (int x = 0; x < width; x++) {
+            row[x] = segment.get(offset + x);
+        }
+    }
+
+    /**
+     * Write one whole row of the canvas.
+     *
+     * @param y The row to write.
+     * @param row The colours of the row, one per pixel.
+     */
+    public void setRow(int y, int[] row)
+    {
+        MappedByteBuffer segment = segments[y / rowsPerSegment];
+        int offset = (y % rowsPerSegment) * width;
+        for (int x = 0; x < width; x++) {
+            segment.put(offset + x, (byte) row[x]);
+        }
+    }
+
+    /**
+     * Write the canvas out in the text-based format read by Image(String).
+     *
+     * @param out Where the canvas is written to.
+     * @throws IOException If the canvas cannot be written.
+     */
+    public void writeHex(Writer out) throws IOException
+    {
+        int[] row = new int[width];
+        char[] line = new char[width + 1];
+        line[width] = '\n';
+        for (int y = 0; y < height; y++) {
+            getRow(y, row);
+            for (int x = 0; x < width; x++) {
+                line[x] = Character.forDigit(row[x], 16);
+            }
+            out.write(line);
+        }
+        out.flush();
+    }
+
+    /**
+     * Render the canvas into a PNG with the given filename.
+     *
+     * @param filename The file to be rendered into a PNG.
+     * @throws IOException If the PNG cannot be written.
+     */
+    public void toPNG(String filename) throws IOException
+    {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(filename + ".png"))) {
+            PngWriter.write(out, height, width, this::getRow);
+        }
+    }
+
+    /**
+     * Write any changes back to the file.
+     */
+    public void force()
+    {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Write any changes back to the file and close it.
+     *
+     * @throws IOException If the file cannot be closed.
+     */
+    public void close() throws IOException
+    {
+        force();
+        channel.close();
+    }
+}
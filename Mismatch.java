@@ -0,0 +1,40 @@
+/**
+ * Mismatch Class.
+ *
+ * Where a drawing fails to reproduce an image.
+ */
+class Mismatch
+{
+    public final int command;
+    public final int x;
+    public final int y;
+    public final int expected;
+    public final int actual;
+
+    /**
+     * Describe a mismatch.
+     *
+     * @param command The index of the command that painted the pixel last, or
+     * -1 if it was left as the background.
+     * @param x The x value of the pixel.
+     * @param y The y value of the pixel.
+     * @param expected The colour in the image.
+     * @param actual The colour the drawing gives.
+     */
+    public Mismatch(int command, int x, int y, int expected, int actual)
+    {
+        this.command = command;
+        this.x = x;
+        this.y = y;
+        this.expected = expected;
+        this.actual = actual;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Mismatch at coordinate: (" + x + "," + y + ") expected " + Integer.toHexString(expected)
+                + " but " + (command < 0 ? "the background gives " : "command " + command + " gives ")
+                + Integer.toHexString(actual);
+    }
+}
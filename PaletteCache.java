@@ -0,0 +1,186 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PaletteCache Class.
+ *
+ * Remembers the drawings of recently compressed images, so that an image that
+ * is the same as one of them but for its colours, such as another colour
+ * variant of a sprite, is drawn by recolouring the drawing rather than
+ * compressing the image again.
+ *
+ * Each image is put in a canonical form by numbering its colours in the order
+ * they are first met, reading row by row, so two images have the same form
+ * exactly when one is the other with its colours swapped one for one. The
+ * cache is looked up by a hash of the form, and the form itself is compared
+ * to rule out a clash. A drawing is kept with its colours turned into the
+ * numbers of the form, and is turned into the colours of each image that
+ * finds it.
+ *
+ * Only images of up to MAX_PIXELS are kept, as the form takes a byte per
+ * pixel, and the cache keeps the images used most recently, by default
+ * CAPACITY of them. A cache is only used by those that make one and pass it
+ * to Image.compressCached, so plain compression never depends on what was
+ * compressed before.
+ */
+public class PaletteCache
+{
+    static final int CAPACITY = 64;
+    static final long MAX_PIXELS = 1 << 20;
+
+    /**
+     * An image with its colours numbered in the order they are first met.
+     */
+    private static class Canonical
+    {
+        final int height;
+        final int width;
+        final byte[] pixels;
+        final long hash;
+        // The colour of each number, with the colours the image does not use
+        // given the numbers after those it does, so it is one for one.
+        final int[] colours = new int[16];
+        final int[] numbers = new int[16];
+
+        Canonical(Image image)
+        {
+            height = image.getHeight();
+            width = image.getWidth();
+            pixels = new byte[height * width];
+            Arrays.fill(numbers, -1);
+            int next = 0;
+            long h = 0xcbf29ce484222325L;
+            int[] scratch = new int[width];
+            for (int y = 0, i = 0; y < height; y++) {
+                int[] row = image.getRow(y, scratch);
+                for (int x = 0; x < width; x++, i++) {
+                    int n = numbers[row[x]];
+                    if (n < 0) {
+                        n = numbers[row[x]] = next++;
+                    }
+                    pixels[i] = (byte) n;
+                    h = (h ^ n) * 0x100000001b3L;
+                }
+            }
+            hash = h ^ (long) height << 32 ^ width;
+            for (int colour = 0; colour < 16; colour++) {
+                if (numbers[colour] < 0) {
+                    numbers[colour] = next++;
+                }
+                colours[numbers[colour]] = colour;
+            }
+        }
+
+        /**
+         * Check whether another image has the same form as this one.
+         *
+         * @param other The other image.
+         * @return True if they have the same form.
+         */
+        boolean sameForm(Canonical other)
+        {
+            return height == other.height && width == other.width && Arrays.equals(pixels, other.pixels);
+        }
+    }
+
+    /**
+     * A drawing, in the numbers of the form of the image it draws.
+     */
+    private static class Entry
+    {
+        final Canonical form;
+        final Drawing drawing;
+
+        Entry(Canonical form, Drawing drawing)
+        {
+            this.form = form;
+            this.drawing = drawing;
+        }
+    }
+
+    private final Map<Long, Entry> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * Create an empty cache of the default capacity.
+     */
+    public PaletteCache()
+    {
+        this(CAPACITY);
+    }
+
+    /**
+     * Create an empty cache.
+     *
+     * @param capacity The most drawings to keep.
+     */
+    public PaletteCache(int capacity)
+    {
+        entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest)
+            {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Compress an image, recolouring the drawing of an earlier image if it is
+     * the same but for its colours. The drawing returned is always new, so
+     * it may be changed freely.
+     *
+     * @param image The image to be compressed.
+     * @return The compressed drawing, or null if the compressor got stuck.
+     */
+    public Drawing compress(Image image)
+    {
+        if ((long) image.getHeight() * image.getWidth() > MAX_PIXELS) {
+            return new Compressor(image).compress();
+        }
+        Canonical form = new Canonical(image);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(form.hash);
+        }
+        if (entry != null && entry.form.sameForm(form)) {
+            synchronized (this) {
+                hits++;
+            }
+            return entry.drawing.remap(form.colours);
+        }
+
+        Drawing drawing = new Compressor(image).compress();
+        if (drawing == null) {
+            return null;
+        }
+        Drawing numbered = drawing.remap(form.numbers);
+        synchronized (this) {
+            misses++;
+            entries.put(form.hash, new Entry(form, numbered));
+        }
+        return drawing;
+    }
+
+    /**
+     * Get the number of images compressed by recolouring a drawing.
+     *
+     * @return The number of hits.
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Get the number of images compressed in full.
+     *
+     * @return The number of misses.
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+}
@@ -0,0 +1,206 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.stream.IntStream;
+
+/**
+ * PngReader Class.
+ *
+ * Reads a PNG (or any other image ImageIO can decode) into an Image, giving
+ * each pixel the nearest of the 16 EGA colours of Image.
+ *
+ * Pixels are taken from the decoded raster a row at a time, straight from its
+ * bytes for 8-bit palette and RGB images, which are what PNGs decode to, and
+ * through getRGB a row at a time for anything else. The rows are mapped in
+ * bands on the common fork join pool, as drawParallel does.
+ *
+ * The nearest colour to each 24-bit RGB value is kept in a table shared by
+ * every image, filled in the first time the value is met, so an image of a
+ * few colours only ever works out a few, and every later image with the same
+ * colours maps each pixel with one lookup.
+ */
+public class PngReader
+{
+    /**
+     * The nearest colour to each RGB value, plus one, or 0 if it has not been
+     * worked out yet. As every thread works out the same entry, they fill it
+     * in without locking. The 16MB table is made the first time it is used.
+     */
+    private static class Nearest
+    {
+        static final byte[] TABLE = new byte[1 << 24];
+    }
+
+    /**
+     * Read a PNG into an image.
+     *
+     * @param filename The file to be read.
+     * @return The image.
+     * @throws FormatException If the file is not an image ImageIO can read.
+     * @throws IOException If the file cannot be read.
+     */
+    public static Image read(String filename) throws IOException
+    {
+        File f = new File(filename);
+        if (!f.isFile()) {
+            throw new FileNotFoundException(filename);
+        }
+        BufferedImage im = ImageIO.read(f);
+        if (im == null) {
+            throw new FormatException("Not a PNG or other image that can be read: " + filename, 1, 1);
+        }
+        return fromBufferedImage(im);
+    }
+
+    /**
+     * Map a decoded image onto the EGA colours.
+     *
+     * @param im The decoded image.
+     * @return The image, with each pixel the nearest EGA colour.
+     */
+    public static Image fromBufferedImage(BufferedImage im)
+    {
+        int height = im.getHeight();
+        int width = im.getWidth();
+        Image image = new Image(height, width, 0);
+
+        // The nearest colour to each entry of a palette, worked out once for
+        // the whole image.
+        ColorModel model = im.getColorModel();
+        int[] palette = null;
+        if (model instanceof IndexColorModel) {
+            IndexColorModel icm = (IndexColorModel) model;
+            palette = new int[Math.max(256, icm.getMapSize())];
+            for (int i = 0; i < icm.getMapSize(); i++) {
+                palette[i] = nearest(icm.getRGB(i));
+            }
+        }
+
+        Raster raster = im.getRaster();
+        boolean bytes = raster.getSampleModel() instanceof PixelInterleavedSampleModel
+                && raster.getDataBuffer() instanceof DataBufferByte
+                && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+        boolean indexed = bytes && palette != null && raster.getNumBands() == 1;
+        boolean rgb = bytes && model instanceof ComponentColorModel && model.getColorSpace().isCS_sRGB()
+                && raster.getNumBands() >= 3;
+        int[] map = palette;
+
+        int bands = Math.min(height, Runtime.getRuntime().availableProcessors() * 4);
+        image.writePixels(pixels -> IntStream.range(0, bands).parallel().forEach(band -> {
+            int top = (int) ((long) height * band / bands);
+            int bottom = (int) ((long) height * (band + 1) / bands);
+            int[] scratch = new int[width];
+            for (int y = top; y < bottom; y++) {
+                if (indexed) {
+                    mapIndexed(raster, y, map, pixels[y]);
+                } else if (rgb) {
+                    mapRGB(raster, y, pixels[y]);
+                } else {
+                    im.getRGB(0, y, width, 1, scratch, 0, width);
+                    for (int x = 0; x < width; x++) {
+                        pixels[y][x] = nearest(scratch[x]);
+                    }
+                }
+            }
+        }));
+        return image;
+    }
+
+    /**
+     * Map one row of an 8-bit palette image, straight from its bytes.
+     *
+     * @param raster The raster, of one band of bytes.
+     * @param y The row.
+     * @param palette The nearest colour to each palette entry.
+     * @param row The row of the image to fill in.
+     */
+    private static void mapIndexed(Raster raster, int y, int[] palette, int[] row)
+    {
+        PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+        DataBuffer buffer = raster.getDataBuffer();
+        byte[] data = ((DataBufferByte) buffer).getData();
+        int stride = sm.getPixelStride();
+        int i = buffer.getOffset() + sm.getOffset(0, y, 0);
+        for (int x = 0; x < row.length; x++, i += stride) {
+            row[x] = palette[data[i] & 0xff];
+        }
+    }
+
+    /**
+     * Map one row of an 8-bit RGB or RGBA image, straight from its bytes.
+     * Alpha is ignored.
+     *
+     * @param raster The raster, of red, green and blue bands of bytes.
+     * @param y The row.
+     * @param row The row of the image to fill in.
+     */
+    private static void mapRGB(Raster raster, int y, int[] row)
+    {
+        PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+        DataBuffer buffer = raster.getDataBuffer();
+        byte[] data = ((DataBufferByte) buffer).getData();
+        int stride = sm.getPixelStride();
+        int r = buffer.getOffset() + sm.getOffset(0, y, 0);
+        int g = buffer.getOffset() + sm.getOffset(0, y, 1);
+        int b = buffer.getOffset() + sm.getOffset(0, y, 2);
+        byte[] table = Nearest.TABLE;
+        for (int x = 0; x < row.length; x++, r += stride, g += stride, b += stride) {
+            int c = (data[r] & 0xff) << 16 | (data[g] & 0xff) << 8 | data[b] & 0xff;
+            int n = table[c];
+            row[x] = n != 0 ? n - 1 : nearest(c);
+        }
+    }
+
+    /**
+     * Get the nearest EGA colour to an RGB value, from the table if it has
+     * been worked out before.
+     *
+     * @param rgb The RGB value, in the low 24 bits.
+     * @return The colour, between 0 and 15.
+     */
+    static int nearest(int rgb)
+    {
+        rgb &= 0xffffff;
+        byte[] table = Nearest.TABLE;
+        int n = table[rgb];
+        if (n == 0) {
+            n = closest(rgb) + 1;
+            table[rgb] = (byte) n;
+        }
+        return n - 1;
+    }
+
+    /**
+     * Work out the EGA colour closest to an RGB value, by distance in RGB,
+     * taking the lowest numbered of any that are as close.
+     *
+     * @param rgb The RGB value, in the low 24 bits.
+     * @return The colour, between 0 and 15.
+     */
+    private static int closest(int rgb)
+    {
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < Image.colours.length; i++) {
+            int c = Image.colours[i];
+            int dr = (rgb >> 16 & 0xff) - (c >> 16 & 0xff);
+            int dg = (rgb >> 8 & 0xff) - (c >> 8 & 0xff);
+            int db = (rgb & 0xff) - (c & 0xff);
+            int distance = dr * dr + dg * dg + db * db;
+            if (distance < bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,357 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * PngWriter Class.
+ *
+ * Writes a 4-bit palette PNG using the EGA colours of Image, one row at a time,
+ * so that the image being written never has to be held in memory as a whole.
+ *
+ * Images of PARALLEL_PIXELS or more are deflated in chunks of whole scanlines
+ * on the common fork join pool, as pigz does. Each chunk is deflated on its
+ * own, primed with the last 32KB of the scanlines before it as a preset
+ * dictionary, and all but the last end on a byte boundary with a sync flush,
+ * so the chunks join up into one zlib stream. The Adler-32 checksums of the
+ * chunks are combined for the end of the stream. Only a few chunks are held
+ * at a time, and the bytes written do not depend on the number of threads.
+ */
+public class PngWriter
+{
+    private static final byte[] SIGNATURE = {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+    private static final int IDAT_SIZE = 1 << 16;
+    private static final long PARALLEL_PIXELS = 1 << 20;
+    private static final int CHUNK_SIZE = 1 << 17;
+    private static final int WINDOW_SIZE = 1 << 15;
+    private static final int ADLER_BASE = 65521;
+
+    /**
+     * The deflated form of one chunk of scanlines.
+     */
+    private static class Chunk
+    {
+        final byte[] deflated;
+        final long adler;
+        final int length;
+
+        Chunk(byte[] deflated, long adler, int length)
+        {
+            this.deflated = deflated;
+            this.adler = adler;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A source of rows of colours between 0 and 15.
+     */
+    interface RowSource
+    {
+        /**
+         * Fill in one row of the image.
+         *
+         * @param y The row to read.
+         * @param row The array to fill in, one colour per pixel.
+         */
+        void getRow(int y, int[] row);
+    }
+
+    /**
+     * Write an image as a PNG.
+     *
+     * @param out The stream to write to.
+     * @param height The height of the image.
+     * @param width The width of the image.
+     * @param rows Where the rows of the image are read from.
+     * @throws IOException If the stream cannot be written.
+     */
+    public static void write(OutputStream out, int height, int width, RowSource rows) throws IOException
+    {
+        write(out, height, width, rows,
+                (long) height * width >= PARALLEL_PIXELS && ForkJoinPool.getCommonPoolParallelism() > 1);
+    }
+
+    /**
+     * Write an image as a PNG, choosing whether to deflate it in parallel.
+     *
+     * @param out The stream to write to.
+     * @param height The height of the image.
+     * @param width The width of the image.
+     * @param rows Where the rows of the image are read from.
+     * @param parallel True to deflate in chunks on several threads.
+     * @throws IOException If the stream cannot be written.
+     */
+    static void write(OutputStream out, int height, int width, RowSource rows, boolean parallel) throws IOException
+    {
+        out.write(SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream h = new DataOutputStream(header);
+        h.writeInt(width);
+        h.writeInt(height);
+        h.writeByte(4); // bit depth
+        h.writeByte(3); // palette colour type
+        h.writeByte(0); // deflate
+        h.writeByte(0); // adaptive filtering
+        h.writeByte(0); // no interlace
+        writeChunk(out, "IHDR", header.toByteArray(), header.size());
+        writeChunk(out, "PLTE", palette(), Image.colours.length * 3);
+
+        IdatStream idat = new IdatStream(out);
+        if (parallel) {
+            deflateParallel(idat, height, width, rows);
+        } else {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            DeflaterOutputStream deflate = new DeflaterOutputStream(idat, deflater, IDAT_SIZE);
+            int[] row = new int[width];
+            byte[] scanline = new byte[1 + (width + 1) / 2];
+            for (int y = 0; y < height; y++) {
+                rows.getRow(y, row);
+                packScanline(row, scanline, 0);
+                deflate.write(scanline);
+            }
+            deflate.finish();
+            deflater.end();
+        }
+        idat.flushChunk();
+
+        writeChunk(out, "IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    /**
+     * Deflate the scanlines of an image into a zlib stream a chunk at a time,
+     * on several threads, reading the rows on this one.
+     *
+     * @param idat Where the stream is written.
+     * @param height The height of the image.
+     * @param width The width of the image.
+     * @param rows Where the rows of the image are read from.
+     * @throws IOException If the stream cannot be written.
+     */
+    private static void deflateParallel(IdatStream idat, int height, int width, RowSource rows) throws IOException
+    {
+        // The zlib header, for a 32KB window and the fastest level.
+        idat.write(0x78);
+        idat.write(0x01);
+
+        int scanlineSize = 1 + (width + 1) / 2;
+        int rowsPerChunk = Math.max(1, CHUNK_SIZE / scanlineSize);
+        int limit = 2 * ForkJoinPool.getCommonPoolParallelism();
+        ArrayDeque<CompletableFuture<Chunk>> pending = new ArrayDeque<CompletableFuture<Chunk>>();
+        int[] row = new int[width];
+        byte[] window = new byte[0];
+        long adler = 1;
+        for (int top = 0; top < height; top += rowsPerChunk) {
+            int n = Math.min(rowsPerChunk, height - top);
+            byte[] data = new byte[n * scanlineSize];
+            for (int y = 0; y < n; y++) {
+                rows.getRow(top + y, row);
+                packScanline(row, data, y * scanlineSize);
+            }
+
+            byte[] dictionary = window;
+            boolean last = top + n >= height;
+            pending.add(CompletableFuture.supplyAsync(() -> deflateChunk(data, dictionary, last)));
+
+            // The next chunk is primed with the last 32KB before it, which
+            // may reach back past this one if it is small.
+            byte[] joined = Arrays.copyOf(window, window.length + data.length);
+            System.arraycopy(data, 0, joined, window.length, data.length);
+            window = Arrays.copyOfRange(joined, Math.max(0, joined.length - WINDOW_SIZE), joined.length);
+
+            while (pending.size() >= limit) {
+                adler = writeChunk(idat, pending.removeFirst().join(), adler);
+            }
+        }
+        while (!pending.isEmpty()) {
+            adler = writeChunk(idat, pending.removeFirst().join(), adler);
+        }
+
+        idat.write((int) (adler >>> 24));
+        idat.write((int) (adler >>> 16));
+        idat.write((int) (adler >>> 8));
+        idat.write((int) adler);
+    }
+
+    /**
+     * Deflate one chunk of scanlines as raw deflate data, carrying on from the
+     * scanlines before it.
+     *
+     * @param data The scanlines.
+     * @param dictionary Up to 32KB of the scanlines before, or none for the first chunk.
+     * @param last True to end the deflate stream, otherwise it ends on a byte boundary.
+     * @return The deflated chunk.
+     */
+    private static Chunk deflateChunk(byte[] data, byte[] dictionary, boolean last)
+    {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        if (dictionary.length > 0) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[IDAT_SIZE];
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } else {
+            int length;
+            do {
+                length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                out.write(buffer, 0, length);
+            } while (length == buffer.length);
+        }
+        deflater.end();
+
+        Adler32 adler = new Adler32();
+        adler.update(data);
+        return new Chunk(out.toByteArray(), adler.getValue(), data.length);
+    }
+
+    /**
+     * Write out a deflated chunk and add it to the checksum of the stream.
+     *
+     * @param idat Where the stream is written.
+     * @param chunk The chunk.
+     * @param adler The Adler-32 checksum of the scanlines before the chunk.
+     * @return The checksum of the scanlines up to the end of the chunk.
+     * @throws IOException If the stream cannot be written.
+     */
+    private static long writeChunk(IdatStream idat, Chunk chunk, long adler) throws IOException
+    {
+        idat.write(chunk.deflated, 0, chunk.deflated.length);
+
+        // Combine the checksums as zlib's adler32_combine does.
+        long rem = chunk.length % ADLER_BASE;
+        long sum1 = adler & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (chunk.adler & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler >>> 16) & 0xffff) + ((chunk.adler >>> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= ADLER_BASE * 2L) {
+            sum2 -= ADLER_BASE * 2L;
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | sum2 << 16;
+    }
+
+    /**
+     * Pack a row of colours two to a byte, after a filter byte of 0 (none).
+     *
+     * @param row The colours of the row.
+     * @param scanline The array to fill in.
+     * @param offset Where in the array the scanline starts.
+     */
+    static void packScanline(int[] row, byte[] scanline, int offset)
+    {
+        scanline[offset] = 0;
+        for (int x = 0; x < row.length; x += 2) {
+            int high = row[x] << 4;
+            int low = x + 1 < row.length ? row[x + 1] : 0;
+            scanline[offset + 1 + x / 2] = (byte) (high | low);
+        }
+    }
+
+    /**
+     * Get the EGA colours as PNG palette entries.
+     *
+     * @return The red, green and blue bytes of each colour.
+     */
+    static byte[] palette()
+    {
+        byte[] p = new byte[Image.colours.length * 3];
+        for (int i = 0; i < Image.colours.length; i++) {
+            p[i * 3] = (byte) (Image.colours[i] >> 16);
+            p[i * 3 + 1] = (byte) (Image.colours[i] >> 8);
+            p[i * 3 + 2] = (byte) Image.colours[i];
+        }
+        return p;
+    }
+
+    /**
+     * Write one PNG chunk with its length and CRC.
+     *
+     * @param out The stream to write to.
+     * @param type The four letter chunk type.
+     * @param data The chunk data.
+     * @param length How many bytes of data to write.
+     * @throws IOException If the stream cannot be written.
+     */
+    static void writeChunk(OutputStream out, String type, byte[] data, int length) throws IOException
+    {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        DataOutputStream d = new DataOutputStream(out);
+        d.writeInt(length);
+        d.write(typeBytes);
+        d.write(data, 0, length);
+        d.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Splits the deflated image data into IDAT chunks as it is written.
+     */
+    private static class IdatStream extends OutputStream
+    {
+        private OutputStream out;
+        private byte[] buffer = new byte[IDAT_SIZE];
+        private int size;
+
+        IdatStream(OutputStream out)
+        {
+            this.out = out;
+        }
+
+        public void write(int b) throws IOException
+        {
+            if (size == buffer.length) {
+                flushChunk();
+            }
+            buffer[size++] = (byte) b;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0) {
+                if (size == buffer.length) {
+                    flushChunk();
+                }
+                int n = Math.min(len, buffer.length - size);
+                System.arraycopy(b, off, buffer, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        void flushChunk() throws IOException
+        {
+            if (size > 0) {
+                writeChunk(out, "IDAT", buffer, size);
+                size = 0;
+            }
+        }
+    }
+}
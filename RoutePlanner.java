@@ -0,0 +1,711 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * RoutePlanner Class.
+ *
+ * Reorders the painting commands of a drawing to cut down the commands that
+ * only move the cursor between them. Commands in a run that all paint the
+ * same colour can be painted in any order without changing the picture, so
+ * each one is a stop on a route that starts wherever the cursor is, and the
+ * moves between the stops are worked out again. Moving to a point costs a
+ * command for each of x and y that has to change, as in
+ * Compressor.calculateCost, so 0, 1 or 2.
+ *
+ * A line can be painted from either end and a single pixel from any side,
+ * which leave the cursor in different places. The route starts as the better
+ * of the order the commands came in and a nearest neighbour tour, and is then
+ * improved by moving chains of up to MAX_CHAIN stops elsewhere (Or-opt), by
+ * reversing runs of stops (2-opt) and by changing the way each stop is
+ * painted, each within WINDOW places, until nothing improves or the deadline
+ * passes. Only changes that save a move are made, so the route is never
+ * longer than the one the commands came in.
+ */
+class RoutePlanner
+{
+    private static final int MAX_CHAIN = 3;
+    private static final int WINDOW = 32;
+
+    private final long deadline;
+    private boolean finished = true;
+    private int startX;
+    private int startY;
+    private int endX;
+    private int endY;
+
+    // The stops of the run being planned. Stop s can be painted in ways[s]
+    // ways, stored at s * 4 + way: where the cursor has to be first, the
+    // direction to paint in and where the cursor is left. Ways 0 and 1, and
+    // ways 2 and 3, paint the same pixels in opposite directions.
+    private int n;
+    private DrawingCommand[] commands = new DrawingCommand[16];
+    private int[] ways = new int[16];
+    private int[] original = new int[16];
+    private int[] entryX = new int[64];
+    private int[] entryY = new int[64];
+    private int[] exitX = new int[64];
+    private int[] exitY = new int[64];
+    private Direction[] dir = new Direction[64];
+
+    // The route, the stop at each position and the way it is painted.
+    private int[] tour;
+    private int[] way;
+
+    /**
+     * Create a planner.
+     *
+     * @param deadline The System.nanoTime() by which to stop improving routes.
+     */
+    public RoutePlanner(long deadline)
+    {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Plan the route through a list of commands.
+     *
+     * @param list The commands, which must not hold repeats.
+     * @param x The x value the cursor starts at.
+     * @param y The y value the cursor starts at.
+     * @return The reordered commands, which paint the same picture, or null
+     * if the commands hold a repeat or a line of negative distance.
+     */
+    public CommandBuffer plan(List<DrawingCommand> list, int x, int y)
+    {
+        for (DrawingCommand c : list) {
+            if (c.body != null || (!c.fill && c.distance < 0)) {
+                return null;
+            }
+        }
+
+        CommandBuffer out = new CommandBuffer();
+        endX = x;
+        endY = y;
+        int i = 0;
+        while (i < list.size()) {
+            // Moves are dropped, as they are worked out again.
+            DrawingCommand c = list.get(i);
+            if (!c.paint) {
+                x += c.moveX();
+                y += c.moveY();
+                i++;
+                continue;
+            }
+
+            // Gather the run of commands painting this colour, with where the
+            // cursor was before each.
+            n = 0;
+            int colour = c.colour;
+            for (; i < list.size() && (!list.get(i).paint || list.get(i).colour == colour); i++) {
+                c = list.get(i);
+                if (c.paint) {
+                    addStop(c, x, y);
+                }
+                x += c.moveX();
+                y += c.moveY();
+            }
+
+            startX = endX;
+            startY = endY;
+            route();
+            emit(out);
+        }
+        return out;
+    }
+
+    /**
+     * Get the x value the cursor is left at by the planned commands.
+     *
+     * @return The x value of the cursor.
+     */
+    public int getEndX()
+    {
+        return endX;
+    }
+
+    /**
+     * Get the y value the cursor is left at by the planned commands.
+     *
+     * @return The y value of the cursor.
+     */
+    public int getEndY()
+    {
+        return endY;
+    }
+
+    /**
+     * Check whether every route was improved until nothing improved, rather
+     * than until the deadline passed.
+     *
+     * @return True if more time would not have shortened the routes.
+     */
+    public boolean isFinished()
+    {
+        return finished;
+    }
+
+    /**
+     * Add a painting command as a stop, with every way it can be painted.
+     *
+     * @param c The command.
+     * @param x The x value of the cursor before the command.
+     * @param y The y value of the cursor before the command.
+     */
+    private void addStop(DrawingCommand c, int x, int y)
+    {
+        if (n == commands.length) {
+            commands = Arrays.copyOf(commands, n * 2);
+            ways = Arrays.copyOf(ways, n * 2);
+            original = Arrays.copyOf(original, n * 2);
+            entryX = Arrays.copyOf(entryX, n * 8);
+            entryY = Arrays.copyOf(entryY, n * 8);
+            exitX = Arrays.copyOf(exitX, n * 8);
+            exitY = Arrays.copyOf(exitY, n * 8);
+            dir = Arrays.copyOf(dir, n * 8);
+        }
+        int s = n++;
+        commands[s] = c;
+        original[s] = 0;
+        if (c.fill || c.distance == 0) {
+            // Painted where the cursor is, which it does not move from.
+            ways[s] = 1;
+            setWay(s * 4, x, y, c.dir, x, y);
+        } else if (c.distance == 1) {
+            int px = x + c.dir.dx;
+            int py = y + c.dir.dy;
+            ways[s] = 4;
+            setWay(s * 4, px - 1, py, Direction.RIGHT, px, py);
+            setWay(s * 4 + 1, px + 1, py, Direction.LEFT, px, py);
+            setWay(s * 4 + 2, px, py - 1, Direction.DOWN, px, py);
+            setWay(s * 4 + 3, px, py + 1, Direction.UP, px, py);
+            original[s] = c.dir == Direction.RIGHT ? 0 : c.dir == Direction.LEFT ? 1 : c.dir == Direction.DOWN ? 2 : 3;
+        } else {
+            int lastX = x + c.dir.dx * c.distance;
+            int lastY = y + c.dir.dy * c.distance;
+            ways[s] = 2;
+            setWay(s * 4, x, y, c.dir, lastX, lastY);
+            setWay(s * 4 + 1, lastX + c.dir.dx, lastY + c.dir.dy, opposite(c.dir), x + c.dir.dx, y + c.dir.dy);
+        }
+    }
+
+    /**
+     * Fill in one way of painting a stop.
+     *
+     * @param id The stop * 4 + the way.
+     * @param x The x value the cursor has to start at.
+     * @param y The y value the cursor has to start at.
+     * @param d The direction to paint in.
+     * @param toX The x value the cursor is left at.
+     * @param toY The y value the cursor is left at.
+     */
+    private void setWay(int id, int x, int y, Direction d, int toX, int toY)
+    {
+        entryX[id] = x;
+        entryY[id] = y;
+        dir[id] = d;
+        exitX[id] = toX;
+        exitY[id] = toY;
+    }
+
+    /**
+     * Get the opposite of a direction.
+     *
+     * @param d The direction.
+     * @return The direction going the other way.
+     */
+    private static Direction opposite(Direction d)
+    {
+        if (d == Direction.UP) {
+            return Direction.DOWN;
+        }
+        if (d == Direction.DOWN) {
+            return Direction.UP;
+        }
+        return d == Direction.LEFT ? Direction.RIGHT : Direction.LEFT;
+    }
+
+    /**
+     * Calculates the number of moves from one point to another.
+     *
+     * @param ax The x value of the first point.
+     * @param ay The y value of the first point.
+     * @param bx The x value of the second point.
+     * @param by The y value of the second point.
+     * @return 0, 1 or 2.
+     */
+    private static int cost(int ax, int ay, int bx, int by)
+    {
+        return (ax != bx ? 1 : 0) + (ay != by ? 1 : 0);
+    }
+
+    /**
+     * Find the best route through the stops, in tour and way.
+     */
+    private void route()
+    {
+        tour = new int[n];
+        way = new int[n];
+        for (int k = 0; k < n; k++) {
+            tour[k] = k;
+            way[k] = original[k];
+        }
+        int given = total();
+        int[] givenTour = tour.clone();
+        int[] givenWay = way.clone();
+        nearestNeighbour();
+        if (total() >= given) {
+            tour = givenTour;
+            way = givenWay;
+        }
+
+        boolean improved = true;
+        while (improved && System.nanoTime() - deadline < 0) {
+            improved = refineWays();
+            improved |= orOpt();
+            improved |= twoOpt();
+        }
+        if (System.nanoTime() - deadline >= 0) {
+            finished = false;
+        }
+    }
+
+    /**
+     * Write out the route as commands, moving across then up or down to the
+     * start of each stop.
+     *
+     * @param out Where to add the commands.
+     */
+    private void emit(CommandBuffer out)
+    {
+        int x = startX;
+        int y = startY;
+        for (int k = 0; k < n; k++) {
+            int id = id(k);
+            if (entryX[id] < x) {
+                out.add(Direction.LEFT, x - entryX[id], false, 0);
+            } else if (entryX[id] > x) {
+                out.add(Direction.RIGHT, entryX[id] - x, false, 0);
+            }
+            if (entryY[id] < y) {
+                out.add(Direction.UP, y - entryY[id], false, 0);
+            } else if (entryY[id] > y) {
+                out.add(Direction.DOWN, entryY[id] - y, false, 0);
+            }
+            DrawingCommand c = commands[tour[k]];
+            if (c.fill) {
+                out.addFill(c.distance, c.rows, c.colour);
+            } else {
+                out.add(dir[id], c.distance, true, c.colour);
+            }
+            x = exitX[id];
+            y = exitY[id];
+        }
+        endX = x;
+        endY = y;
+    }
+
+    /**
+     * Get the stop and way at a position of the route.
+     *
+     * @param k The position.
+     * @return The stop * 4 + the way.
+     */
+    private int id(int k)
+    {
+        return tour[k] * 4 + way[k];
+    }
+
+    /**
+     * Get the way a stop is painted in when the route through it is reversed.
+     *
+     * @param stop The stop.
+     * @param w The way it is painted now.
+     * @return The way that paints the same pixels the other way round.
+     */
+    private int reverse(int stop, int w)
+    {
+        return ways[stop] == 1 ? w : w ^ 1;
+    }
+
+    /**
+     * Get the x value the cursor is left at after a position of the route.
+     *
+     * @param k The position, or -1 for where the route starts.
+     * @return The x value.
+     */
+    private int exitX(int k)
+    {
+        return k < 0 ? startX : exitX[id(k)];
+    }
+
+    /**
+     * Get the y value the cursor is left at after a position of the route.
+     *
+     * @param k The position, or -1 for where the route starts.
+     * @return The y value.
+     */
+    private int exitY(int k)
+    {
+        return k < 0 ? startY : exitY[id(k)];
+    }
+
+    /**
+     * Get the number of moves into a position of the route.
+     *
+     * @param k The position, or n for past the end, which costs nothing.
+     * @return The number of moves.
+     */
+    private int edge(int k)
+    {
+        if (k >= n) {
+            return 0;
+        }
+        int id = id(k);
+        return cost(exitX(k - 1), exitY(k - 1), entryX[id], entryY[id]);
+    }
+
+    /**
+     * Get the number of moves along the whole route.
+     *
+     * @return The number of moves.
+     */
+    private int total()
+    {
+        int total = 0;
+        for (int k = 0; k < n; k++) {
+            total += edge(k);
+        }
+        return total;
+    }
+
+    /**
+     * Build a route by always going next to a stop that can be reached with
+     * the fewest moves, using lists of the ways into the stops sorted by row
+     * and by column so each step does not look at every stop.
+     */
+    private void nearestNeighbour()
+    {
+        int m = 0;
+        Integer[] byRow = new Integer[n * 4];
+        for (int s = 0; s < n; s++) {
+            for (int w = 0; w < ways[s]; w++) {
+                byRow[m++] = s * 4 + w;
+            }
+        }
+        byRow = Arrays.copyOf(byRow, m);
+        Integer[] byColumn = byRow.clone();
+        Comparator<Integer> rows = Comparator.<Integer>comparingInt(id -> entryY[id])
+                .thenComparingInt(id -> entryX[id]).thenComparingInt(id -> id);
+        Comparator<Integer> columns = Comparator.<Integer>comparingInt(id -> entryX[id])
+                .thenComparingInt(id -> entryY[id]).thenComparingInt(id -> id);
+        Arrays.sort(byRow, rows);
+        Arrays.sort(byColumn, columns);
+
+        // next[p] skips over ways into stops already visited, and is shortened
+        // as they are skipped so each is only stepped over once or twice.
+        int[] nextInRow = new int[m + 1];
+        int[] nextInColumn = new int[m + 1];
+        for (int p = 0; p <= m; p++) {
+            nextInRow[p] = p + 1;
+            nextInColumn[p] = p + 1;
+        }
+        boolean[] visited = new boolean[n];
+        int unvisited = 0;
+        int x = startX;
+        int y = startY;
+        for (int k = 0; k < n; k++) {
+            // A way in from right here, else the first on the same row or
+            // column, else the first unvisited stop.
+            int best = -1;
+            int p = skip(byRow, nextInRow, visited, lowerBound(byRow, y, x, true));
+            if (p < m && entryY[byRow[p]] == y && entryX[byRow[p]] == x) {
+                best = byRow[p];
+            } else {
+                p = skip(byRow, nextInRow, visited, lowerBound(byRow, y, Integer.MIN_VALUE, true));
+                if (p < m && entryY[byRow[p]] == y) {
+                    best = byRow[p];
+                }
+                int q = skip(byColumn, nextInColumn, visited, lowerBound(byColumn, x, Integer.MIN_VALUE, false));
+                if (q < m && entryX[byColumn[q]] == x && (best < 0 || byColumn[q] < best)) {
+                    best = byColumn[q];
+                }
+            }
+            if (best < 0) {
+                while (visited[unvisited]) {
+                    unvisited++;
+                }
+                best = unvisited * 4 + original[unvisited];
+            }
+            visited[best / 4] = true;
+            tour[k] = best / 4;
+            way[k] = best % 4;
+            x = exitX[best];
+            y = exitY[best];
+        }
+    }
+
+    /**
+     * Find the first position in a sorted list of ways into stops that have
+     * not been visited, from a position on.
+     *
+     * @param sorted The ways.
+     * @param next The next position to try after each position.
+     * @param visited Which stops have been visited.
+     * @param p The position to start from.
+     * @return The position, or the length of the list if there is none.
+     */
+    private static int skip(Integer[] sorted, int[] next, boolean[] visited, int p)
+    {
+        int q = p;
+        while (q < sorted.length && visited[sorted[q] / 4]) {
+            q = next[q];
+        }
+        while (p < q) {
+            int t = next[p];
+            next[p] = q;
+            p = t;
+        }
+        return q;
+    }
+
+    /**
+     * Find the first position in a sorted list of ways into stops at or after
+     * a point.
+     *
+     * @param sorted The ways, sorted by row then column, or column then row.
+     * @param major The row, or the column.
+     * @param minor The column, or the row.
+     * @param byRow True if the list is sorted by row first.
+     * @return The position.
+     */
+    private int lowerBound(Integer[] sorted, int major, int minor, boolean byRow)
+    {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int id = sorted[mid];
+            int a = byRow ? entryY[id] : entryX[id];
+            int b = byRow ? entryX[id] : entryY[id];
+            if (a < major || (a == major && b < minor)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Paint each stop in whichever way needs the fewest moves into and out of
+     * it.
+     *
+     * @return True if any move was saved.
+     */
+    private boolean refineWays()
+    {
+        boolean improved = false;
+        for (int k = 0; k < n && System.nanoTime() - deadline < 0; k++) {
+            int before = edge(k) + edge(k + 1);
+            int best = way[k];
+            for (int w = 0; w < ways[tour[k]]; w++) {
+                way[k] = w;
+                if (edge(k) + edge(k + 1) < before) {
+                    before = edge(k) + edge(k + 1);
+                    best = w;
+                    improved = true;
+                }
+            }
+            way[k] = best;
+        }
+        return improved;
+    }
+
+    /**
+     * Move chains of up to MAX_CHAIN stops to elsewhere in the route, either
+     * way round, where that saves moves.
+     *
+     * @return True if any move was saved.
+     */
+    private boolean orOpt()
+    {
+        boolean improved = false;
+        int[] chainWays = new int[MAX_CHAIN];
+        for (int i = 0; i < n && System.nanoTime() - deadline < 0; i++) {
+            for (int length = 1; length <= MAX_CHAIN && i + length <= n; length++) {
+                int end = i + length;
+
+                // The saving from taking the chain out.
+                int removed = edge(i) + edge(end);
+                if (end < n) {
+                    removed -= cost(exitX(i - 1), exitY(i - 1), entryX[id(end)], entryY[id(end)]);
+                }
+
+                int bestDelta = 0;
+                int bestAfter = 0;
+                boolean bestReversed = false;
+                int bestWay = 0;
+                int from = Math.max(-1, i - 1 - WINDOW);
+                int to = Math.min(n - 1, end - 1 + WINDOW);
+                for (int after = from; after <= to; after++) {
+                    if (after >= i - 1 && after < end) {
+                        continue;
+                    }
+                    // The chain goes between after and the position following it.
+                    int next = after + 1 < n ? after + 1 : -1;
+                    int px = exitX(after);
+                    int py = exitY(after);
+                    int broken = next >= 0 ? cost(px, py, entryX[id(next)], entryY[id(next)]) : 0;
+                    if (length == 1) {
+                        for (int w = 0; w < ways[tour[i]]; w++) {
+                            int c = tour[i] * 4 + w;
+                            int added = cost(px, py, entryX[c], entryY[c]);
+                            if (next >= 0) {
+                                added += cost(exitX[c], exitY[c], entryX[id(next)], entryY[id(next)]);
+                            }
+                            if (added - broken - removed < bestDelta) {
+                                bestDelta = added - broken - removed;
+                                bestAfter = after;
+                                bestWay = w;
+                            }
+                        }
+                    } else {
+                        for (int r = 0; r < 2; r++) {
+                            int added = chainCost(i, length, r == 1, px, py, next);
+                            int internal = 0;
+                            for (int t = i + 1; t < end; t++) {
+                                internal += edge(t);
+                            }
+                            if (added - internal - broken - removed < bestDelta) {
+                                bestDelta = added - internal - broken - removed;
+                                bestAfter = after;
+                                bestReversed = r == 1;
+                            }
+                        }
+                    }
+                }
+                if (bestDelta < 0) {
+                    int[] chain = Arrays.copyOfRange(tour, i, end);
+                    for (int t = 0; t < length; t++) {
+                        chainWays[t] = way[i + t];
+                    }
+                    if (length == 1) {
+                        chainWays[0] = bestWay;
+                    } else if (bestReversed) {
+                        for (int t = 0; t < length; t++) {
+                            chain[t] = tour[end - 1 - t];
+                            chainWays[t] = reverse(chain[t], way[end - 1 - t]);
+                        }
+                    }
+                    move(i, length, bestAfter, chain, chainWays);
+                    improved = true;
+                    break;
+                }
+            }
+        }
+        return improved;
+    }
+
+    /**
+     * Get the moves into, through and out of a chain of stops put somewhere else.
+     *
+     * @param i The position of the first stop of the chain.
+     * @param length The number of stops in the chain.
+     * @param reversed True to go through the chain the other way round.
+     * @param px The x value of the cursor before the chain.
+     * @param py The y value of the cursor before the chain.
+     * @param next The position after where the chain goes, or -1 for the end.
+     * @return The number of moves.
+     */
+    private int chainCost(int i, int length, boolean reversed, int px, int py, int next)
+    {
+        int moves = 0;
+        for (int t = 0; t < length; t++) {
+            int k = reversed ? i + length - 1 - t : i + t;
+            int c = tour[k] * 4 + (reversed ? reverse(tour[k], way[k]) : way[k]);
+            moves += cost(px, py, entryX[c], entryY[c]);
+            px = exitX[c];
+            py = exitY[c];
+        }
+        if (next >= 0) {
+            moves += cost(px, py, entryX[id(next)], entryY[id(next)]);
+        }
+        return moves;
+    }
+
+    /**
+     * Take a chain of stops out of the route and put it back after another position.
+     *
+     * @param i The position of the first stop of the chain.
+     * @param length The number of stops in the chain.
+     * @param after The position the chain goes after, or -1 for the start.
+     * @param chain The stops of the chain, in their new order.
+     * @param chainWays The ways of the stops of the chain, in their new order.
+     */
+    private void move(int i, int length, int after, int[] chain, int[] chainWays)
+    {
+        int at;
+        if (after < i) {
+            // Shift the stops between along to make room before the chain's old place.
+            at = after + 1;
+            System.arraycopy(tour, at, tour, at + length, i - at);
+            System.arraycopy(way, at, way, at + length, i - at);
+        } else {
+            at = after + 1 - length;
+            System.arraycopy(tour, i + length, tour, i, at - i);
+            System.arraycopy(way, i + length, way, i, at - i);
+        }
+        for (int t = 0; t < length; t++) {
+            tour[at + t] = chain[t];
+            way[at + t] = chainWays[t];
+        }
+    }
+
+    /**
+     * Reverse runs of stops where going through them the other way round
+     * saves moves.
+     *
+     * @return True if any move was saved.
+     */
+    private boolean twoOpt()
+    {
+        boolean improved = false;
+        for (int i = 0; i < n && System.nanoTime() - deadline < 0; i++) {
+            int px = exitX(i - 1);
+            int py = exitY(i - 1);
+            int first = tour[i] * 4 + reverse(tour[i], way[i]);
+            int before = edge(i);
+            int after = 0;
+            for (int j = i + 1; j < n && j <= i + WINDOW; j++) {
+                // Moves inside the run, the old way and reversed.
+                before += edge(j);
+                int last = tour[j] * 4 + reverse(tour[j], way[j]);
+                int previous = tour[j - 1] * 4 + reverse(tour[j - 1], way[j - 1]);
+                after += cost(exitX[last], exitY[last], entryX[previous], entryY[previous]);
+
+                int old = before + edge(j + 1);
+                int reversed = after + cost(px, py, entryX[last], entryY[last]);
+                if (j + 1 < n) {
+                    reversed += cost(exitX[first], exitY[first], entryX[id(j + 1)], entryY[id(j + 1)]);
+                }
+                if (reversed < old) {
+                    for (int a = i, b = j; a < b; a++, b--) {
+                        int t = tour[a];
+                        tour[a] = tour[b];
+                        tour[b] = t;
+                        t = way[a];
+                        way[a] = way[b];
+                        way[b] = t;
+                    }
+                    for (int k = i; k <= j; k++) {
+                        way[k] = reverse(tour[k], way[k]);
+                    }
+                    improved = true;
+                    break;
+                }
+            }
+        }
+        return improved;
+    }
+}
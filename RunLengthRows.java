@@ -0,0 +1,272 @@
+import java.util.Arrays;
+
+/**
+ * RunLengthRows Class.
+ *
+ * The pixels of an image held as runs of one colour along each row, rather
+ * than one entry per pixel, so a picture made of large flat areas takes
+ * memory in proportion to how many runs it has rather than to its area.
+ *
+ * Each row keeps the x value each run starts at, in increasing order with the
+ * first at 0, and the colour of each run. Two runs next to each other never
+ * have the same colour.
+ */
+public class RunLengthRows
+{
+    public final int height;
+    public final int width;
+    private final int[][] starts;
+    private final byte[][] colours;
+    private final int[] counts;
+    private long runCount;
+
+    // Where a row is rebuilt when a span is painted over it.
+    private int[] scratchStarts;
+    private byte[] scratchColours;
+    private int scratchCount;
+
+    /**
+     * Create rows of the given dimensions, filled with one colour.
+     *
+     * @param height The height.
+     * @param width The width.
+     * @param colour The colour of the background.
+     */
+    public RunLengthRows(int height, int width, int colour)
+    {
+        this.height = height;
+        this.width = width;
+        starts = new int[height][];
+        colours = new byte[height][];
+        counts = new int[height];
+        for (int y = 0; y < height; y++) {
+            starts[y] = new int[]{0};
+            colours[y] = new byte[]{(byte) colour};
+            counts[y] = 1;
+        }
+        runCount = height;
+    }
+
+    /**
+     * Get the number of runs in every row put together.
+     *
+     * @return The number of runs.
+     */
+    public long getRunCount()
+    {
+        return runCount;
+    }
+
+    /**
+     * Get colour at a specific pixel, using x and y values.
+     *
+     * @param x Value of x.
+     * @param y Value of y.
+     * @return The colour at the specified coordinate.
+     */
+    public int getColor(int x, int y)
+    {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new ArrayIndexOutOfBoundsException("Index " + x + "," + y + " out of bounds");
+        }
+        return colours[y][find(x, y)];
+    }
+
+    /**
+     * Get the x value after the last pixel of the run that holds a pixel.
+     *
+     * @param x The x value of a pixel inside the rows.
+     * @param y The y value of the pixel.
+     * @return The end of the run.
+     */
+    public int runEnd(int x, int y)
+    {
+        int i = find(x, y);
+        return i + 1 < counts[y] ? starts[y][i + 1] : width;
+    }
+
+    /**
+     * Get the x value of the first pixel of the run that holds a pixel.
+     *
+     * @param x The x value of a pixel inside the rows.
+     * @param y The y value of the pixel.
+     * @return The start of the run.
+     */
+    public int runStart(int x, int y)
+    {
+        return starts[y][find(x, y)];
+    }
+
+    /**
+     * Read one row, one colour per pixel.
+     *
+     * @param y The row to read.
+     * @param row The array to fill in.
+     */
+    public void getRow(int y, int[] row)
+    {
+        int[] s = starts[y];
+        byte[] c = colours[y];
+        int n = counts[y];
+        for (int i = 0; i < n; i++) {
+            int end = i + 1 < n ? s[i + 1] : width;
+            for (int x = s[i]; x < end; x++) {
+                row[x] = c[i];
+            }
+        }
+    }
+
+    /**
+     * Replace one row with the runs of a row of colours.
+     *
+     * @param y The row to write.
+     * @param row The colours of the row, one per pixel.
+     */
+    public void setRow(int y, int[] row)
+    {
+        scratch();
+        for (int x = 0; x < width; x++) {
+            append(x, row[x]);
+        }
+        store(y);
+    }
+
+    /**
+     * Paint a span of one row in one colour, from x0 up to but not including
+     * x1, which must be inside the rows with x0 before x1.
+     *
+     * The runs the span covers are replaced where they are, by what is left of
+     * the run it starts in, the span and what is left of the run it ends in,
+     * and only the runs after them are moved along, so painting a single
+     * pixel splits its run in place rather than building the row again.
+     *
+     * @param y The row.
+     * @param x0 The x value of the first pixel.
+     * @param x1 The x value after the last pixel.
+     * @param colour The colour to paint.
+     */
+    public void fillRow(int y, int x0, int x1, int colour)
+    {
+        int[] s = starts[y];
+        byte[] c = colours[y];
+        int n = counts[y];
+        int first = find(x0, y);
+        int last = x1 - 1 < (first + 1 < n ? s[first + 1] : width) ? first : find(x1 - 1, y);
+        if (first == last && c[first] == colour) {
+            return;
+        }
+
+        // Runs from..to-1 are replaced. The span is joined onto the runs
+        // either side of it that are its colour.
+        boolean left = s[first] < x0 && c[first] != colour;
+        boolean right = x1 < (last + 1 < n ? s[last + 1] : width) && c[last] != colour;
+        int from = first;
+        int to = last + 1;
+        if (!left && from > 0 && c[from - 1] == colour) {
+            from--;
+        }
+        if (!right && to < n && c[to] == colour) {
+            to++;
+        }
+        int spanStart = left ? x0 : s[from];
+        int leftStart = s[first];
+        byte leftColour = c[first];
+        byte rightColour = c[last];
+        int replaced = (left ? 1 : 0) + 1 + (right ? 1 : 0);
+        int newCount = n - (to - from) + replaced;
+
+        if (s.length < newCount) {
+            int capacity = Math.min(width, Math.max(newCount, s.length * 2));
+            starts[y] = Arrays.copyOf(s, capacity);
+            colours[y] = Arrays.copyOf(c, capacity);
+        }
+        int[] ns = starts[y];
+        byte[] nc = colours[y];
+        System.arraycopy(s, to, ns, from + replaced, n - to);
+        System.arraycopy(c, to, nc, from + replaced, n - to);
+        int i = from;
+        if (left) {
+            ns[i] = leftStart;
+            nc[i++] = leftColour;
+        }
+        ns[i] = spanStart;
+        nc[i++] = (byte) colour;
+        if (right) {
+            ns[i] = x1;
+            nc[i] = rightColour;
+        }
+        runCount += newCount - n;
+        counts[y] = newCount;
+    }
+
+    /**
+     * Find the run that holds a pixel.
+     *
+     * @param x The x value, inside the rows.
+     * @param y The row.
+     * @return The index of the run in its row.
+     */
+    private int find(int x, int y)
+    {
+        int[] s = starts[y];
+        int low = 0;
+        int high = counts[y] - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (s[mid] <= x) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Start building a row in the scratch arrays.
+     */
+    private void scratch()
+    {
+        if (scratchStarts == null) {
+            scratchStarts = new int[width];
+            scratchColours = new byte[width];
+        }
+        scratchCount = 0;
+    }
+
+    /**
+     * Add a run to the row being built, joining it onto the last run if they
+     * are the same colour.
+     *
+     * @param start The x value the run starts at.
+     * @param colour The colour of the run.
+     */
+    private void append(int start, int colour)
+    {
+        if (scratchCount > 0 && scratchColours[scratchCount - 1] == colour) {
+            return;
+        }
+        scratchStarts[scratchCount] = start;
+        scratchColours[scratchCount] = (byte) colour;
+        scratchCount++;
+    }
+
+    /**
+     * Copy the row built in the scratch arrays into a row, growing its arrays
+     * if they are too small.
+     *
+     * @param y The row.
+     */
+    private void store(int y)
+    {
+        if (starts[y].length < scratchCount) {
+            int capacity = Math.min(width, Math.max(scratchCount, starts[y].length * 2));
+            starts[y] = new int[capacity];
+            colours[y] = new byte[capacity];
+        }
+        System.arraycopy(scratchStarts, 0, starts[y], 0, scratchCount);
+        System.arraycopy(scratchColours, 0, colours[y], 0, scratchCount);
+        runCount += scratchCount - counts[y];
+        counts[y] = scratchCount;
+    }
+}
@@ -0,0 +1,293 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ScalingReport Class.
+ *
+ * Runs each stage, parse, compress (with each strategy), draw and export, on
+ * square synthetic images of doubling size, and prints the time, the bytes
+ * allocated and the number of commands for each. It then sweeps each setting
+ * of the images in turn, the number of colours, the noise, the number of
+ * islands and the number of stripes, at one size with the others held at
+ * their defaults. A stage whose time grows faster than the pixel count, or
+ * than the setting being swept, by more than GROWTH_LIMIT as a power of it
+ * (give or take NOISE_MARGIN) is flagged at the end.
+ *
+ * Each stage is run up to RUNS times, until it has taken REPEAT_MS in all,
+ * and the fastest run is kept, which takes out most of the noise from the JIT
+ * and the garbage collector. Allocations are those of the first run.
+ *
+ * A stage that took over a quarter of the time budget is not run again at
+ * the next size, as it would be expected to take at least the whole budget.
+ * Allocations are counted for the calling thread only, so they leave out the
+ * worker threads of drawParallel.
+ */
+public class ScalingReport
+{
+    // Times under this are too noisy to judge growth by, in milliseconds.
+    private static final double MIN_MS = 5;
+    // Every stage should be at most linear in the pixels and in the content.
+    // The fastest of RUNS runs still moves by up to about 7% from one run of
+    // the report to the next, which over a step of at least doubling is under
+    // 0.1 in the power, so only growth beyond that margin is flagged.
+    private static final double GROWTH_LIMIT = 1.0;
+    private static final double NOISE_MARGIN = 0.1;
+    private static final int SWEEP_SIZE = 256;
+    private static final int[] SWEEP_COLOURS = {2, 4, 8, 16};
+    private static final double[] SWEEP_NOISE = {0.001, 0.004, 0.016, 0.064};
+    private static final int[] SWEEP_ISLANDS = {16, 64, 256, 1024};
+    private static final int[] SWEEP_STRIPE_PERIODS = {64, 32, 16, 8, 4};
+    private static final int RUNS = 5;
+    private static final double REPEAT_MS = 500;
+
+    private final long seed;
+    private final long budgetMs;
+    // The runs of each stage along each axis, as the value of the axis and
+    // the time taken, keyed by the stage and the axis.
+    private final Map<String, List<double[]>> results = new LinkedHashMap<String, List<double[]>>();
+
+    /**
+     * The work done by one stage.
+     */
+    private interface Stage
+    {
+        /**
+         * Run the stage.
+         *
+         * @return The number of commands made, or -1 if it makes none.
+         */
+        int run() throws IOException, BadCommand;
+    }
+
+    /**
+     * Create a report.
+     *
+     * @param seed The seed for the generated images.
+     * @param budgetMs The most time to spend on one stage at one size.
+     */
+    public ScalingReport(long seed, long budgetMs)
+    {
+        this.seed = seed;
+        this.budgetMs = budgetMs;
+    }
+
+    /**
+     * Main method.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        // Report on sizes from 64 up to a largest size (by default 1024), then
+        // sweep the settings at one size, with an optional seed and time
+        // budget per stage in seconds.
+        int maxSize = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        long budget = args.length > 2 ? Long.parseLong(args[2]) * 1000 : 60000;
+        ScalingReport report = new ScalingReport(seed, budget);
+        for (int size = 64; size <= maxSize; size *= 2) {
+            report.run(size);
+        }
+        report.sweep(Math.min(maxSize, SWEEP_SIZE));
+        report.printFlags();
+    }
+
+    /**
+     * Run every stage on one image size.
+     *
+     * @param size The height and width of the image.
+     */
+    public void run(int size) throws IOException, BadCommand
+    {
+        // Islands and stripes scale with the image, so the content per pixel
+        // stays about the same from one size to the next.
+        Image image = images(size).generate(size, size);
+        runStages("pixels", (double) size * size, "size " + size, image);
+    }
+
+    /**
+     * Run every stage on images of one size, sweeping each of the settings
+     * in turn.
+     *
+     * @param size The height and width of the images.
+     */
+    public void sweep(int size) throws IOException, BadCommand
+    {
+        for (int colours : SWEEP_COLOURS) {
+            runStages("colours", colours, "colours " + colours, images(size).colours(colours).generate(size, size));
+        }
+        for (double noise : SWEEP_NOISE) {
+            runStages("noise", noise, "noise " + noise, images(size).noise(noise).generate(size, size));
+        }
+        for (int islands : SWEEP_ISLANDS) {
+            runStages("islands", islands, "islands " + islands, images(size).islands(islands).generate(size, size));
+        }
+        // The stripes are counted rather than their period, as the work grows
+        // with the number of them.
+        for (int period : SWEEP_STRIPE_PERIODS) {
+            runStages("stripes", (double) size / period, "stripes " + size / period,
+                    images(size).stripePeriod(period).generate(size, size));
+        }
+    }
+
+    /**
+     * Describe the images of one size with the default settings.
+     *
+     * @param size The height and width of the images.
+     * @return The settings, to be changed further before generating.
+     */
+    private SyntheticImages images(int size)
+    {
+        return new SyntheticImages(seed).colours(6).noise(0.001).islands(size / 4).stripePeriod(16);
+    }
+
+    /**
+     * Run every stage on one image.
+     *
+     * @param axis The setting that changes from one image to the next.
+     * @param value The value of the setting for this image.
+     * @param label How to print the image in the report.
+     * @param image The image.
+     */
+    private void runStages(String axis, double value, String label, Image image) throws IOException, BadCommand
+    {
+        List<String> lines = Arrays.asList(image.toString().split("\n"));
+
+        // Drawing and exporting use the row by row run-length encoding, which
+        // is made for every image, so the same kind of drawing is timed each time.
+        Drawing drawing = AnytimeCompressor.runLengthEncode(image, 0, false);
+
+        measure(axis, value, label, "parse", () -> {
+            Image.fromLines(lines);
+            return -1;
+        });
+        measure(axis, value, label, "compress", () -> commandCount(new Compressor(image).compress()));
+        measure(axis, value, label, "compress-v1", () -> {
+            Compressor c = new Compressor(image);
+            c.setMaxVersion(1);
+            return commandCount(c.compress());
+        });
+        measure(axis, value, label, "compress-rle-rows",
+                () -> AnytimeCompressor.runLengthEncode(image, 0, false).getCommandCount());
+        measure(axis, value, label, "compress-rle-columns",
+                () -> AnytimeCompressor.runLengthEncode(image, 0, true).getCommandCount());
+        measure(axis, value, label, "draw", () -> {
+            drawing.draw();
+            return -1;
+        });
+        measure(axis, value, label, "draw-parallel", () -> {
+            drawing.drawParallel();
+            return -1;
+        });
+        measure(axis, value, label, "export-png", () -> {
+            image.writePNG(OutputStream.nullOutputStream());
+            return -1;
+        });
+        measure(axis, value, label, "export-binary", () -> {
+            drawing.writeBinary(new ByteArrayOutputStream());
+            return -1;
+        });
+    }
+
+    /**
+     * Count the commands of a drawing made by the compressor.
+     *
+     * @param drawing The drawing, or null if the compressor got stuck.
+     * @return The number of commands, or -1 if there is no drawing.
+     */
+    private static int commandCount(Drawing drawing)
+    {
+        return drawing == null ? -1 : drawing.getCommandCount();
+    }
+
+    /**
+     * Run a stage, unless it ran out of budget at the last size, and print
+     * and record how it went.
+     *
+     * @param axis The setting that changes from one image to the next.
+     * @param value The value of the setting for this image.
+     * @param label How to print the image in the report.
+     * @param name The name of the stage.
+     * @param stage The stage.
+     */
+    private void measure(String axis, double value, String label, String name, Stage stage)
+            throws IOException, BadCommand
+    {
+        List<double[]> runs = results.computeIfAbsent(name + " by " + axis, k -> new ArrayList<double[]>());
+        if (!runs.isEmpty() && runs.get(runs.size() - 1)[1] * 4 > budgetMs) {
+            System.out.println(String.format("%-22s %-14s skipped (over budget)", name, label));
+            return;
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        int commands = stage.run();
+        double ms = (System.nanoTime() - start) / 1e6;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        double total = ms;
+        for (int i = 1; i < RUNS && total < REPEAT_MS; i++) {
+            start = System.nanoTime();
+            stage.run();
+            double again = (System.nanoTime() - start) / 1e6;
+            ms = Math.min(ms, again);
+            total += again;
+        }
+
+        runs.add(new double[]{value, ms});
+        System.out.println(String.format("%-22s %-14s %10.1f ms %10.1f MB %10s", name, label, ms,
+                allocated / 1e6, commands < 0 ? "" : commands + " cmds"));
+    }
+
+    /**
+     * Print the stages whose time grew faster than linearly in the number of
+     * pixels, or in a setting, between two steps.
+     */
+    public void printFlags()
+    {
+        System.out.println();
+        boolean any = false;
+        for (Map.Entry<String, List<double[]>> e : results.entrySet()) {
+            List<double[]> runs = e.getValue();
+            for (int i = 1; i < runs.size(); i++) {
+                double[] a = runs.get(i - 1);
+                double[] b = runs.get(i);
+                if (b[1] < MIN_MS || a[1] <= 0) {
+                    continue;
+                }
+                double growth = Math.log(b[1] / a[1]) / Math.log(b[0] / a[0]);
+                if (growth > GROWTH_LIMIT + NOISE_MARGIN) {
+                    any = true;
+                    String axis = e.getKey().substring(e.getKey().lastIndexOf(' ') + 1);
+                    System.out.println(String.format("WORSE THAN LINEAR: %s grows as %s^%.2f from %s to %s",
+                            e.getKey(), axis, growth, format(axis, a[0]), format(axis, b[0])));
+                }
+            }
+        }
+        if (!any) {
+            System.out.println("Every stage grew at most linearly in the number of pixels and in each setting");
+        }
+    }
+
+    /**
+     * Format a step along an axis, giving the size rather than the pixel
+     * count.
+     *
+     * @param axis The axis.
+     * @param value The value of the axis.
+     * @return The value as printed.
+     */
+    private static String format(String axis, double value)
+    {
+        if (axis.equals("pixels")) {
+            return "size " + (int) Math.sqrt(value);
+        }
+        return value == (int) value ? Integer.toString((int) value) : Double.toString(value);
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * Span Class.
+ *
+ * A run of pixels along one row, from start up to but not including end.
+ */
+class Span
+{
+    public final int y;
+    public final int start;
+    public final int end;
+
+    /**
+     * Create a span.
+     *
+     * @param y The row.
+     * @param start The x value of the first pixel.
+     * @param end The x value after the last pixel.
+     */
+    public Span(int y, int start, int end)
+    {
+        this.y = y;
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "(" + start + "-" + (end - 1) + "," + y + ")";
+    }
+}
@@ -0,0 +1,179 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * StreamingCompressor Class.
+ *
+ * Compresses an image file a band of rows at a time, so that only one band is
+ * ever held in memory. Each band is compressed on its own and its commands are
+ * written straight out, with the cursor carried on from where the previous
+ * band left it.
+ */
+public class StreamingCompressor
+{
+    private String filename;
+    private int bandHeight;
+    private int height;
+    private int width;
+    private int background;
+
+    /**
+     * Reads through an image file once to find its dimensions and the most
+     * common colour, which becomes the background for every band.
+     *
+     * @param filename The file to be compressed.
+     * @param bandHeight The number of rows to hold in memory at once.
+     * @throws FormatException If the file is not a valid image.
+     * @throws IOException If the file cannot be read.
+     */
+    public StreamingCompressor(String filename, int bandHeight) throws IOException
+    {
+        this.filename = filename;
+        this.bandHeight = bandHeight;
+        assert (bandHeight > 0);
+
+        int[] mapOfColors = new int[16];
+        try (BufferedReader in = new BufferedReader(new FileReader(filename))) {
+            for (String s = in.readLine(); s != null; s = in.readLine()) {
+                if (height == 0) {
+                    width = s.length();
+                    if (width == 0) {
+                        throw new FormatException("Empty first line", 1, 1);
+                    }
+                }
+                height++;
+                checkLine(s, height);
+                for (int j = 0; j < width; j++) {
+                    mapOfColors[Character.getNumericValue(s.charAt(j))]++;
+                }
+            }
+        }
+
+        if (height == 0) {
+            throw new FormatException("Empty file: " + filename, 1, 1);
+        }
+
+        for (int color = 0; color < 16; color++) {
+            if (mapOfColors[color] > mapOfColors[background]) {
+                background = color;
+            }
+        }
+    }
+
+    /**
+     * Main method.
+     */
+    public static void main(String[] args)
+    {
+        // Compress an image file, optionally with a band height, to standard output.
+        int bandHeight = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        try {
+            new StreamingCompressor(args[0], bandHeight).compress(out);
+            out.flush();
+        } catch (FileNotFoundException e) {
+            System.out.println("File not found: " + args[0]);
+            System.exit(1);
+        } catch (FormatException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Compress the image, writing the drawing out in the same text format as
+     * Drawing.toString as each band is finished.
+     *
+     * @param out Where the drawing is written to.
+     * @throws FormatException If the file has changed and is no longer a
+     * valid image of the same size.
+     * @throws IOException If the file cannot be read or the drawing cannot be
+     * written.
+     */
+    public void compress(Writer out) throws IOException
+    {
+        out.write(height + "\n");
+        out.write(width + "\n");
+        out.write(Integer.toHexString(background) + "\n");
+
+        int cursorX = 0;
+        int cursorY = 0;
+        try (BufferedReader in = new BufferedReader(new FileReader(filename))) {
+            for (int top = 0; top < height; top += bandHeight) {
+                List<String> lines = new ArrayList<String>();
+                for (int i = 0; i < Math.min(bandHeight, height - top); i++) {
+                    String s = in.readLine();
+                    checkLine(s, top + i + 1);
+                    lines.add(s);
+                }
+                Image band = Image.fromLines(lines);
+
+                // The header has already been written as version 1, so the
+                // bands cannot use fill or repeat commands.
+                Compressor c = new Compressor(band, background, cursorX, cursorY - top);
+                c.setMaxVersion(1);
+                Drawing drawing = c.compress();
+                if (drawing != null) {
+                    for (DrawingCommand command : drawing.commands) {
+                        out.write(command.toString() + "\n");
+                    }
+                    cursorX = c.getCursorX();
+                    cursorY = c.getCursorY() + top;
+                    continue;
+                }
+
+                // The compressor got stuck, so the band is run-length encoded
+                // instead, after moving to its top left corner.
+                List<DrawingCommand> commands = new ArrayList<DrawingCommand>();
+                if (cursorX != 0) {
+                    commands.add(new DrawingCommand(cursorX > 0 ? Direction.LEFT : Direction.RIGHT,
+                            Math.abs(cursorX), false, 0));
+                }
+                if (cursorY != top) {
+                    commands.add(new DrawingCommand(cursorY > top ? Direction.UP : Direction.DOWN,
+                            Math.abs(cursorY - top), false, 0));
+                }
+                commands.addAll(AnytimeCompressor.runLengthEncode(band, background, false).commands);
+                cursorX = 0;
+                cursorY = top;
+                for (DrawingCommand command : commands) {
+                    out.write(command.toString() + "\n");
+                    cursorX += command.moveX();
+                    cursorY += command.moveY();
+                }
+            }
+        }
+    }
+
+    /**
+     * Check that a line of the file is the same length as the first one and
+     * only holds hex digits.
+     *
+     * @param s The line to check, or null if the file ended before it.
+     * @param lineNumber The line number, counting from 1.
+     * @throws FormatException If the line is not valid.
+     */
+    private void checkLine(String s, int lineNumber) throws FormatException
+    {
+        if (s == null || s.length() != width) {
+            int length = s == null ? 0 : s.length();
+            throw new FormatException("Inconsistent line lengths: " + width + " and " + length + " on lines 1 and " + lineNumber,
+                    lineNumber, Math.min(width, length) + 1);
+        }
+        for (int j = 0; j < width; j++) {
+            int colour = Character.getNumericValue(s.charAt(j));
+            if (colour < 0 || colour > 15) {
+                throw new FormatException("Invalid contents: " + s.charAt(j) + " on line " + lineNumber, lineNumber, j + 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * StreamingRenderer Class.
+ *
+ * Draws a drawing into a MappedCanvas as its commands are read, so neither the
+ * command list nor the image is ever held on the heap. Painting follows the
+ * same rules as Drawing.draw, including throwing BadCommand at the first
+ * attempt to paint outside of the picture.
+ */
+public class StreamingRenderer
+{
+    /**
+     * Main method.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        // Render a drawing file into a canvas file, then print it as hex or
+        // write it out as a PNG next to the drawing.
+        try (MappedCanvas canvas = render(new FileInputStream(args[0]), args[1])) {
+            if (args.length > 2 && args[2].equals("png")) {
+                canvas.toPNG(args[0]);
+            } else {
+                Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+                canvas.writeHex(out);
+            }
+        } catch (BadCommand e) {
+            System.out.println(e);
+        }
+    }
+
+    /**
+     * Read a drawing, in text or binary format, and draw it into a new canvas.
+     *
+     * @param in The stream holding the drawing, which is closed afterwards.
+     * @param canvasFile The file to back the canvas with.
+     * @return The canvas holding the drawn image.
+     * @throws IOException If the drawing cannot be read or the canvas created.
+     * @throws BadCommand If a command tries to paint outside of the picture.
+     */
+    public static MappedCanvas render(InputStream in, String canvasFile) throws IOException, BadCommand
+    {
+        try (DrawingReader reader = new DrawingReader(new BufferedInputStream(in))) {
+            MappedCanvas canvas = new MappedCanvas(canvasFile, reader.height, reader.width, reader.background);
+            try {
+                draw(reader, canvas);
+            } catch (BadCommand | IOException e) {
+                canvas.close();
+                throw e;
+            }
+            return canvas;
+        }
+    }
+
+    /**
+     * Draw every remaining command of a drawing into a canvas.
+     *
+     * @param reader Where the commands are read from.
+     * @param canvas The canvas to draw into.
+     * @throws IOException If the drawing cannot be read.
+     * @throws BadCommand If a command tries to paint outside of the picture.
+     */
+    public static void draw(DrawingReader reader, MappedCanvas canvas) throws IOException, BadCommand
+    {
+        Coordinate cursor = new Coordinate(0, 0);
+        for (DrawingCommand command = reader.next(); command != null; command = reader.next()) {
+            draw(command, canvas, cursor);
+        }
+    }
+
+    /**
+     * Draw one command into a canvas, running the body of a repeat as many
+     * times as it asks.
+     *
+     * @param command The command.
+     * @param canvas The canvas to draw into.
+     * @param cursor The cursor, which is moved by the command.
+     * @throws BadCommand If the command tries to paint outside of the picture.
+     */
+    private static void draw(DrawingCommand command, MappedCanvas canvas, Coordinate cursor) throws BadCommand
+    {
+        int x = cursor.x;
+        int y = cursor.y;
+        if (command.body != null) {
+            for (int i = 0; i < command.distance; i++) {
+                for (DrawingCommand c : command.body) {
+                    draw(c, canvas, cursor);
+                }
+            }
+            return;
+        }
+        if (command.fill) {
+            for (int row = y; row < y + command.rows; row++) {
+                for (int column = x; column < x + command.distance; column++) {
+                    canvas.set(column, row, command.colour);
+                }
+            }
+            return;
+        }
+
+        // As in Drawing.draw, a negative distance neither paints nor moves.
+        int distance = Math.max(0, command.distance);
+        if (command.paint) {
+            if (command.distance == 0) {
+                canvas.set(x, y, command.colour);
+            }
+            for (int i = 1; i <= distance; i++) {
+                canvas.set(x + command.dir.dx * i, y + command.dir.dy * i, command.colour);
+            }
+        }
+        cursor.x = x + command.dir.dx * distance;
+        cursor.y = y + command.dir.dy * distance;
+    }
+}
@@ -0,0 +1,155 @@
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * SyntheticImages Class.
+ *
+ * Generates images for measuring how the compressor and friends scale, as
+ * the bundled images are all 32x32 or smaller. An image is built up in
+ * layers over a background of colour 0: horizontal stripes, then rectangular
+ * islands, then noise. The same seed and settings always give the same image.
+ */
+public class SyntheticImages
+{
+    private final long seed;
+    private int colours = 4;
+    private double noise = 0;
+    private int islands = 0;
+    private int stripePeriod = 0;
+
+    /**
+     * Start describing images made from a seed, which by default use 4
+     * colours and have no stripes, islands or noise.
+     *
+     * @param seed The seed for the random choices.
+     */
+    public SyntheticImages(long seed)
+    {
+        this.seed = seed;
+    }
+
+    /**
+     * Main method.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        // Print an image in the text-based format read by Image(String), from
+        // a seed, height, width, and optionally colours, noise, islands and
+        // stripe period.
+        SyntheticImages s = new SyntheticImages(Long.parseLong(args[0]));
+        if (args.length > 3) {
+            s.colours(Integer.parseInt(args[3]));
+        }
+        if (args.length > 4) {
+            s.noise(Double.parseDouble(args[4]));
+        }
+        if (args.length > 5) {
+            s.islands(Integer.parseInt(args[5]));
+        }
+        if (args.length > 6) {
+            s.stripePeriod(Integer.parseInt(args[6]));
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        out.write(s.generate(Integer.parseInt(args[1]), Integer.parseInt(args[2])).toString());
+        out.flush();
+    }
+
+    /**
+     * Set the number of colours used, including the background.
+     *
+     * @param colours Between 1 and 16.
+     * @return This, to chain settings.
+     */
+    public SyntheticImages colours(int colours)
+    {
+        assert (colours >= 1 && colours <= 16);
+        this.colours = colours;
+        return this;
+    }
+
+    /**
+     * Set the chance of each pixel being replaced by a random colour.
+     *
+     * @param noise Between 0 and 1.
+     * @return This, to chain settings.
+     */
+    public SyntheticImages noise(double noise)
+    {
+        this.noise = noise;
+        return this;
+    }
+
+    /**
+     * Set the number of solid rectangles of a random colour, each up to a
+     * quarter of the image across.
+     *
+     * @param islands The number of rectangles.
+     * @return This, to chain settings.
+     */
+    public SyntheticImages islands(int islands)
+    {
+        this.islands = islands;
+        return this;
+    }
+
+    /**
+     * Set the height of horizontal stripes, which cycle through the colours.
+     *
+     * @param stripePeriod The height of each stripe in rows, or 0 for none.
+     * @return This, to chain settings.
+     */
+    public SyntheticImages stripePeriod(int stripePeriod)
+    {
+        this.stripePeriod = stripePeriod;
+        return this;
+    }
+
+    /**
+     * Generate an image.
+     *
+     * @param height The height.
+     * @param width The width.
+     * @return The image.
+     */
+    public Image generate(int height, int width)
+    {
+        Random random = new Random(seed);
+        Image image = new Image(height, width, 0);
+        image.writePixels(pixels -> {
+            if (stripePeriod > 0 && colours > 1) {
+                for (int y = 0; y < height; y++) {
+                    int colour = (y / stripePeriod) % colours;
+                    for (int x = 0; x < width; x++) {
+                        pixels[y][x] = colour;
+                    }
+                }
+            }
+
+            for (int i = 0; i < islands && colours > 1; i++) {
+                int h = 1 + random.nextInt(Math.max(1, height / 4));
+                int w = 1 + random.nextInt(Math.max(1, width / 4));
+                int top = random.nextInt(height - h + 1);
+                int left = random.nextInt(width - w + 1);
+                int colour = 1 + random.nextInt(colours - 1);
+                for (int y = top; y < top + h; y++) {
+                    for (int x = left; x < left + w; x++) {
+                        pixels[y][x] = colour;
+                    }
+                }
+            }
+
+            if (noise > 0) {
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        if (random.nextDouble() < noise) {
+                            pixels[y][x] = random.nextInt(colours);
+                        }
+                    }
+                }
+            }
+        });
+        return image;
+    }
+}
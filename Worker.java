@@ -0,0 +1,104 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+
+/**
+ * Worker Class.
+ *
+ * Processes jobs read from standard input, one per line, in a single long
+ * running JVM, so each job runs on already warmed up code instead of paying
+ * for a new JVM. A job is an action and a file:
+ *
+ * compress image-file   writes the drawing to image-file.drawing
+ * draw drawing-file     writes the image to drawing-file.image
+ * png image-file        writes the PNG to image-file.png
+ * import png-file       writes the image read from png-file to png-file.image
+ *
+ * One line is printed per job, "ok action file milliseconds" or
+ * "error action file line:column message", and a bad file never stops the
+ * worker.
+ */
+public class Worker
+{
+    /**
+     * Main method.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        PrintStream out = System.out;
+        for (String s = in.readLine(); s != null; s = in.readLine()) {
+            s = s.trim();
+            if (s.isEmpty()) {
+                continue;
+            }
+            out.println(run(s));
+            out.flush();
+        }
+    }
+
+    /**
+     * Run one job.
+     *
+     * @param job The action and file, separated by whitespace.
+     * @return The line reporting how the job went.
+     */
+    static String run(String job)
+    {
+        String[] elems = job.split("\\s+", 2);
+        if (elems.length != 2) {
+            return "error " + job + " 0:0 Bad job (should be an action and a file)";
+        }
+        String action = elems[0];
+        String file = elems[1];
+
+        // The whole result is made before its file is opened, so a job that
+        // fails leaves no file behind.
+        long start = System.nanoTime();
+        try {
+            if (action.equals("compress")) {
+                write(file + ".drawing", Image.read(file).compress().toString());
+            } else if (action.equals("draw")) {
+                write(file + ".image", Drawing.read(file).draw().toString());
+            } else if (action.equals("png")) {
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                Image.read(file).writePNG(png);
+                try (OutputStream o = new FileOutputStream(file + ".png")) {
+                    png.writeTo(o);
+                }
+            } else if (action.equals("import")) {
+                write(file + ".image", Image.readPNG(file).toString());
+            } else {
+                return "error " + job + " 0:0 Bad action (should be compress, draw, png, or import): " + action;
+            }
+        } catch (FormatException e) {
+            return "error " + job + " " + e.getLine() + ":" + e.getColumn() + " " + e.getMessage();
+        } catch (IOException | BadCommand e) {
+            return "error " + job + " 0:0 " + e;
+        } catch (RuntimeException e) {
+            // A bug hit by one file is reported, rather than ending the worker.
+            return "error " + job + " 0:0 " + e;
+        }
+        return "ok " + job + " " + (System.nanoTime() - start) / 1000000;
+    }
+
+    /**
+     * Write the result of a job to its file.
+     *
+     * @param filename The file to write.
+     * @param result The text to write.
+     * @throws IOException If the file cannot be written.
+     */
+    private static void write(String filename, String result) throws IOException
+    {
+        try (Writer w = new FileWriter(filename)) {
+            w.write(result);
+        }
+    }
+}